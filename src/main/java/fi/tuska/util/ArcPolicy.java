@@ -0,0 +1,150 @@
+package fi.tuska.util;
+
+import java.util.Objects;
+
+/**
+ * The adaptive replacement cache (ARC) eviction policy. The keys are kept in
+ * two LRU lists: T1 for the keys used once recently, and T2 for the keys
+ * used at least twice. Ghost lists B1 and B2 remember the keys evicted from
+ * T1 and T2. A new key that is found in a ghost list shows that the
+ * corresponding list was too small, so the target size of T1 is adapted
+ * towards it. This balances recency and frequency according to the
+ * workload, and resists scans.
+ *
+ * Keys inserted cold are kept apart until they are used, and they are
+ * evicted first, the oldest first, without being remembered in the ghost
+ * lists. The first use of a cold key is handled as its insert.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ */
+public class ArcPolicy<K> implements EvictionPolicy<K> {
+
+    private final KeyList<K> t1 = new KeyList<K>();
+    private final KeyList<K> t2 = new KeyList<K>();
+    private final KeyList<K> b1 = new KeyList<K>();
+    private final KeyList<K> b2 = new KeyList<K>();
+    /** The cold keys that have not been used, the oldest at the tail */
+    private final KeyList<K> cold = new KeyList<K>();
+    private final int capacity;
+    /** Target size of T1 */
+    private int p = 0;
+    /** Whether the latest insert was found in B2 */
+    private boolean hitInB2 = false;
+    /** The key given to {@link #prepareInsert(Object)}, if not yet inserted */
+    private K prepared = null;
+    private boolean isPrepared = false;
+
+    /**
+     * @param capacity the amount of entries in the map
+     */
+    public ArcPolicy(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        this.capacity = capacity;
+    }
+
+    /** @return the current target size of T1 (the recency list) */
+    public int getTargetRecencySize() {
+        return p;
+    }
+
+    /**
+     * Adapts the target size of T1 if the key is found in a ghost list, and
+     * trims the ghost lists, so that the victims chosen after this already
+     * reflect the key.
+     */
+    @Override
+    public void prepareInsert(K key) {
+        hitInB2 = false;
+        if (b1.contains(key)) {
+            p = Math.min(capacity, p + Math.max(b2.size() / Math.max(b1.size(), 1), 1));
+        } else if (b2.contains(key)) {
+            p = Math.max(0, p - Math.max(b1.size() / Math.max(b2.size(), 1), 1));
+            hitInB2 = true;
+        } else {
+            // Keep the ghost lists bounded: |T1| + |B1| <= c and the total
+            // size at most 2c
+            if (t1.size() + b1.size() >= capacity && !b1.isEmpty()) {
+                b1.removeLast();
+            } else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * capacity
+                && !b2.isEmpty()) {
+                b2.removeLast();
+            }
+        }
+        prepared = key;
+        isPrepared = true;
+    }
+
+    @Override
+    public void recordInsert(K key) {
+        if (!isPrepared || !Objects.equals(prepared, key))
+            prepareInsert(key);
+        isPrepared = false;
+        prepared = null;
+        if (b1.remove(key) || b2.remove(key)) {
+            t2.addFirst(key);
+        } else {
+            t1.addFirst(key);
+        }
+    }
+
+    @Override
+    public void recordColdInsert(K key) {
+        cold.addFirst(key);
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        if (cold.remove(key)) {
+            recordInsert(key);
+        } else if (t1.remove(key)) {
+            t2.addFirst(key);
+        } else {
+            t2.moveToHead(key);
+        }
+    }
+
+    @Override
+    public void recordRemove(K key) {
+        if (!cold.remove(key) && !t1.remove(key))
+            t2.remove(key);
+    }
+
+    @Override
+    public K chooseVictim(Filter<? super K> evictable) {
+        K victim = cold.findLast(evictable);
+        if (victim != null) {
+            cold.remove(victim);
+            return victim;
+        }
+        boolean fromT1 = !t1.isEmpty() && (t1.size() > p || (hitInB2 && t1.size() == p));
+        victim = fromT1 ? evictFrom(t1, b1, evictable) : evictFrom(t2, b2, evictable);
+        if (victim == null)
+            victim = fromT1 ? evictFrom(t2, b2, evictable) : evictFrom(t1, b1, evictable);
+        return victim;
+    }
+
+    private K evictFrom(KeyList<K> list, KeyList<K> ghosts, Filter<? super K> evictable) {
+        K victim = list.findLast(evictable);
+        if (victim != null) {
+            list.remove(victim);
+            ghosts.addFirst(victim);
+            if (ghosts.size() > capacity)
+                ghosts.removeLast();
+        }
+        return victim;
+    }
+
+    @Override
+    public int size() {
+        return t1.size() + t2.size() + cold.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ARC";
+    }
+
+}
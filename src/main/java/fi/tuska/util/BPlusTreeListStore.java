@@ -0,0 +1,814 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link SortedList} store that keeps the entries in an in-memory B+-tree.
+ * The leaves store the keys and the values in arrays, one slot per value, so
+ * the duplicates of a key are stored inline (and may span several leaves).
+ * The leaves are linked to each other for iteration. The inner nodes keep
+ * the amount of entries under each child, so the entry at a given index is
+ * found in logarithmic time as in the tree store.
+ *
+ * When the values are comparable, the entries are ordered by the key and
+ * then by the value, and the inner nodes separate their children with
+ * (key, value) pairs. Otherwise new values are added before the existing
+ * values of the key.
+ *
+ * Leaves and inner nodes are not merged when they become sparse; a node is
+ * removed when it becomes empty. This keeps the removals simple, at the cost
+ * of some space when a large list shrinks.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ * @param <V> the type or values
+ */
+class BPlusTreeListStore<K extends Comparable<K>, V> implements SortedListStore<K, V> {
+
+    /** Maximum amount of entries in a leaf */
+    static final int LEAF_CAPACITY = 64;
+    /** Maximum amount of children of an inner node */
+    static final int INNER_CAPACITY = 64;
+
+    private abstract static class Node {
+        Inner parent;
+
+        /** @return the amount of entries in this subtree */
+        abstract int count();
+    }
+
+    private static final class Leaf extends Node {
+        final Object[] keys = new Object[LEAF_CAPACITY];
+        final Object[] values = new Object[LEAF_CAPACITY];
+        int size = 0;
+        Leaf prev;
+        Leaf next;
+
+        @Override
+        int count() {
+            return size;
+        }
+    }
+
+    private static final class Inner extends Node {
+        final Node[] children = new Node[INNER_CAPACITY];
+        /** Amount of entries under each child */
+        final int[] counts = new int[INNER_CAPACITY];
+        /** The separator i is the first entry of child i + 1 when it was created */
+        final Object[] sepKeys = new Object[INNER_CAPACITY - 1];
+        final Object[] sepValues = new Object[INNER_CAPACITY - 1];
+        int size = 0;
+        int total = 0;
+
+        @Override
+        int count() {
+            return total;
+        }
+
+        int indexOf(Node child) {
+            for (int i = 0; i < size; i++) {
+                if (children[i] == child)
+                    return i;
+            }
+            throw new IllegalStateException("Child not found in parent");
+        }
+    }
+
+    /** A position of an entry; a null leaf is the position after the last entry */
+    private static final class Position {
+        Leaf leaf;
+        int index;
+
+        Position(Leaf leaf, int index) {
+            this.leaf = leaf;
+            this.index = index;
+        }
+
+        boolean isValid() {
+            return leaf != null;
+        }
+    }
+
+    private Node root;
+    private Leaf head;
+    private Leaf tail;
+
+    BPlusTreeListStore() {
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        Leaf leaf = new Leaf();
+        root = leaf;
+        head = leaf;
+        tail = leaf;
+    }
+
+    @Override
+    public int size() {
+        return root.count();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return root.count() == 0;
+    }
+
+    @Override
+    public boolean contains(K key) {
+        Position pos = lowerBound(key);
+        return pos.isValid() && keyAt(pos).compareTo(key) == 0;
+    }
+
+    @Override
+    public K getFirstKey() {
+        return isEmpty() ? null : this.<K> cast(head.keys[0]);
+    }
+
+    @Override
+    public K getLastKey() {
+        return isEmpty() ? null : this.<K> cast(tail.keys[tail.size - 1]);
+    }
+
+    @Override
+    public Pair<K, V> getAt(int index) {
+        return entryAt(select(index));
+    }
+
+    @Override
+    public int indexOf(K key) {
+        Position pos = lowerBound(key);
+        if (!pos.isValid() || keyAt(pos).compareTo(key) != 0)
+            return -1;
+        return rank(pos);
+    }
+
+    @Override
+    public int rank(K key) {
+        Position pos = lowerBound(key);
+        return pos.isValid() ? rank(pos) : size();
+    }
+
+    @Override
+    public List<Pair<K, V>> getRange(int from, int to) {
+        List<Pair<K, V>> entries = new ArrayList<Pair<K, V>>(to - from);
+        if (from == to)
+            return entries;
+        Position pos = select(from);
+        while (entries.size() < to - from) {
+            entries.add(entryAt(pos));
+            advance(pos);
+        }
+        return entries;
+    }
+
+    @Override
+    public List<V> getAll(K key) {
+        List<V> values = new ArrayList<V>();
+        for (Position pos = lowerBound(key); pos.isValid() && keyAt(pos).compareTo(key) == 0; advance(pos)) {
+            values.add(valueAt(pos));
+        }
+        return values;
+    }
+
+    @Override
+    public V getFirst(K key) {
+        Position pos = lowerBound(key);
+        return pos.isValid() && keyAt(pos).compareTo(key) == 0 ? valueAt(pos) : null;
+    }
+
+    @Override
+    public V getLast(K key) {
+        Position pos = upperBound(key);
+        retreat(pos);
+        return pos.isValid() && keyAt(pos).compareTo(key) == 0 ? valueAt(pos) : null;
+    }
+
+    @Override
+    public Pair<K, V> getLastFloor(K key) {
+        Position pos = upperBound(key);
+        retreat(pos);
+        return pos.isValid() ? entryAt(pos) : null;
+    }
+
+    @Override
+    public Pair<K, List<V>> getAllFloor(K key) {
+        Position pos = upperBound(key);
+        retreat(pos);
+        if (!pos.isValid())
+            return null;
+        K floor = keyAt(pos);
+        return new Pair<K, List<V>>(floor, getAll(floor));
+    }
+
+    @Override
+    public Pair<K, V> getFirstCeiling(K key) {
+        Position pos = lowerBound(key);
+        return pos.isValid() ? entryAt(pos) : null;
+    }
+
+    @Override
+    public Pair<K, List<V>> getAllCeiling(K key) {
+        Position pos = lowerBound(key);
+        if (!pos.isValid())
+            return null;
+        K ceiling = keyAt(pos);
+        return new Pair<K, List<V>>(ceiling, getAll(ceiling));
+    }
+
+    @Override
+    public Pair<K, V> firstEntry() {
+        return isEmpty() ? null : entryAt(new Position(head, 0));
+    }
+
+    @Override
+    public Pair<K, V> lastEntry() {
+        return isEmpty() ? null : entryAt(new Position(tail, tail.size - 1));
+    }
+
+    @Override
+    public void add(K key, V value) {
+        boolean byValue = value instanceof Comparable;
+        Node node = root;
+        while (node instanceof Inner) {
+            Inner inner = (Inner) node;
+            // Descend to the child after the last separator that is not
+            // greater than the new entry
+            int lo = 0;
+            int hi = inner.size - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (precedes(inner.sepKeys[mid], inner.sepValues[mid], key, value, byValue))
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            node = inner.children[lo];
+        }
+        Leaf leaf = (Leaf) node;
+        int index = 0;
+        while (index < leaf.size
+            && precedes(leaf.keys[index], leaf.values[index], key, value, byValue)) {
+            index++;
+        }
+        if (leaf.size == LEAF_CAPACITY) {
+            Leaf right = splitLeaf(leaf);
+            if (index > leaf.size) {
+                index -= leaf.size;
+                leaf = right;
+            }
+        }
+        System.arraycopy(leaf.keys, index, leaf.keys, index + 1, leaf.size - index);
+        System.arraycopy(leaf.values, index, leaf.values, index + 1, leaf.size - index);
+        leaf.keys[index] = key;
+        leaf.values[index] = value;
+        leaf.size++;
+        adjustCounts(leaf, 1);
+    }
+
+    /**
+     * Fills the leaves in order, and then builds each level of inner nodes
+     * on top of the previous level, so that no node is split.
+     */
+    @Override
+    public void build(K[] keys, V[] values, int size) {
+        clear();
+        if (size == 0)
+            return;
+        List<Node> level = new ArrayList<Node>();
+        // The first entry under each node of the level
+        List<Object> firstKeys = new ArrayList<Object>();
+        List<Object> firstValues = new ArrayList<Object>();
+        Leaf previous = null;
+        for (int i = 0; i < size; i += LEAF_CAPACITY) {
+            Leaf leaf = new Leaf();
+            leaf.size = Math.min(LEAF_CAPACITY, size - i);
+            System.arraycopy(keys, i, leaf.keys, 0, leaf.size);
+            System.arraycopy(values, i, leaf.values, 0, leaf.size);
+            leaf.prev = previous;
+            if (previous != null)
+                previous.next = leaf;
+            else
+                head = leaf;
+            previous = leaf;
+            level.add(leaf);
+            firstKeys.add(keys[i]);
+            firstValues.add(values[i]);
+        }
+        tail = previous;
+
+        while (level.size() > 1) {
+            List<Node> upper = new ArrayList<Node>();
+            List<Object> upperKeys = new ArrayList<Object>();
+            List<Object> upperValues = new ArrayList<Object>();
+            for (int i = 0; i < level.size(); i += INNER_CAPACITY) {
+                Inner inner = new Inner();
+                inner.size = Math.min(INNER_CAPACITY, level.size() - i);
+                for (int c = 0; c < inner.size; c++) {
+                    Node child = level.get(i + c);
+                    inner.children[c] = child;
+                    inner.counts[c] = child.count();
+                    inner.total += child.count();
+                    child.parent = inner;
+                    if (c > 0) {
+                        inner.sepKeys[c - 1] = firstKeys.get(i + c);
+                        inner.sepValues[c - 1] = firstValues.get(i + c);
+                    }
+                }
+                upper.add(inner);
+                upperKeys.add(firstKeys.get(i));
+                upperValues.add(firstValues.get(i));
+            }
+            level = upper;
+            firstKeys = upperKeys;
+            firstValues = upperValues;
+        }
+        root = level.get(0);
+    }
+
+    /**
+     * @return true if the stored entry goes before the new entry: its key is
+     * smaller, or (when ordering by value) its key is equal and its value is
+     * not greater
+     */
+    @SuppressWarnings("unchecked")
+    private boolean precedes(Object storedKey, Object storedValue, K key, V value,
+        boolean byValue) {
+        int c = ((K) storedKey).compareTo(key);
+        if (c != 0 || !byValue)
+            return c < 0;
+        return ((Comparable<V>) storedValue).compareTo(value) <= 0;
+    }
+
+    @Override
+    public V removeFirst(K key) {
+        Position pos = lowerBound(key);
+        if (!pos.isValid() || keyAt(pos).compareTo(key) != 0)
+            return null;
+        V value = valueAt(pos);
+        removeAt(pos.leaf, pos.index);
+        return value;
+    }
+
+    @Override
+    public boolean remove(K key, V value) {
+        Position pos = find(key, value);
+        if (pos == null)
+            return false;
+        removeAt(pos.leaf, pos.index);
+        return true;
+    }
+
+    /**
+     * @return the position of the first entry with the key and the value, or
+     * null if there is none
+     */
+    private Position find(K key, V value) {
+        for (Position pos = lowerBound(key); pos.isValid() && keyAt(pos).compareTo(key) == 0; advance(pos)) {
+            if (valueAt(pos).equals(value))
+                return pos;
+        }
+        return null;
+    }
+
+    @Override
+    public Pair<K, V> nextEntry(K key, V value) {
+        Position pos = find(key, value);
+        if (pos == null)
+            return null;
+        advance(pos);
+        return pos.isValid() ? entryAt(pos) : null;
+    }
+
+    @Override
+    public Pair<K, V> previousEntry(K key, V value) {
+        if (!contains(key))
+            return null;
+        Position pos = find(key, value);
+        if (pos != null) {
+            retreat(pos);
+            if (pos.isValid() && keyAt(pos).compareTo(key) == 0)
+                return entryAt(pos);
+        }
+        // The value is the first one of the key (or not found), so return
+        // the last entry of the previous key
+        pos = lowerBound(key);
+        retreat(pos);
+        return pos.isValid() ? entryAt(pos) : null;
+    }
+
+    @Override
+    public Iterator<V> iterator(final K key) {
+        final EntryIterator entries = new EntryIterator(lowerBound(key), true);
+        return new Iterator<V>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext() && keyAt(entries.next).compareTo(key) == 0;
+            }
+
+            @Override
+            public V next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return entries.next().getSecond();
+            }
+
+            @Override
+            public void remove() {
+                entries.remove();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        return new Iterator<K>() {
+            private K next = getFirstKey();
+            private K current = null;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public K next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                current = next;
+                Position pos = upperBound(current);
+                next = pos.isValid() ? keyAt(pos) : null;
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null)
+                    throw new IllegalStateException();
+                while (removeFirst(current) != null) {
+                    // Remove all values of the key
+                }
+                current = null;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Pair<K, V>> iterator(boolean forward) {
+        Position start = forward ? new Position(head, 0) : new Position(tail, tail.size - 1);
+        if (isEmpty())
+            start.leaf = null;
+        return new EntryIterator(start, forward);
+    }
+
+    private class EntryIterator implements Iterator<Pair<K, V>> {
+        private final Position next;
+        private final boolean forward;
+        private Leaf lastLeaf = null;
+        private int lastIndex;
+
+        private EntryIterator(Position start, boolean forward) {
+            this.next = start;
+            this.forward = forward;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next.isValid();
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No more entries available");
+            Pair<K, V> entry = entryAt(next);
+            lastLeaf = next.leaf;
+            lastIndex = next.index;
+            if (forward)
+                advance(next);
+            else
+                retreat(next);
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (lastLeaf == null)
+                throw new IllegalStateException();
+            // The following entries of the leaf shift down; the next entry
+            // is in another leaf if this leaf becomes empty
+            if (forward && next.leaf == lastLeaf)
+                next.index--;
+            removeAt(lastLeaf, lastIndex);
+            lastLeaf = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("[");
+        K previous = null;
+        for (Iterator<Pair<K, V>> it = iterator(true); it.hasNext();) {
+            Pair<K, V> entry = it.next();
+            if (previous == null || previous.compareTo(entry.getFirst()) != 0) {
+                if (previous != null)
+                    b.append("},");
+                b.append(entry.getFirst());
+                b.append(":{");
+            } else {
+                b.append(",");
+            }
+            b.append(entry.getSecond());
+            previous = entry.getFirst();
+        }
+        if (previous != null)
+            b.append("}");
+        b.append("]");
+        return b.toString();
+    }
+
+    /**
+     * @return the position of the first entry whose key is greater than or
+     * equal to the given key
+     */
+    private Position lowerBound(K key) {
+        return bound(key, false);
+    }
+
+    /**
+     * @return the position of the first entry whose key is greater than the
+     * given key
+     */
+    private Position upperBound(K key) {
+        return bound(key, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Position bound(K key, boolean upper) {
+        Node node = root;
+        while (node instanceof Inner) {
+            Inner inner = (Inner) node;
+            int lo = 0;
+            int hi = inner.size - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = ((K) inner.sepKeys[mid]).compareTo(key);
+                if (c < 0 || (upper && c == 0))
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            node = inner.children[lo];
+        }
+        Leaf leaf = (Leaf) node;
+        int lo = 0;
+        int hi = leaf.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = ((K) leaf.keys[mid]).compareTo(key);
+            if (c < 0 || (upper && c == 0))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        Position pos = new Position(leaf, lo);
+        if (lo == leaf.size) {
+            pos.leaf = leaf.next;
+            pos.index = 0;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the position of the entry at the given index
+     */
+    private Position select(int index) {
+        Node node = root;
+        int i = index;
+        while (node instanceof Inner) {
+            Inner inner = (Inner) node;
+            int child = 0;
+            while (i >= inner.counts[child]) {
+                i -= inner.counts[child];
+                child++;
+            }
+            node = inner.children[child];
+        }
+        return new Position((Leaf) node, i);
+    }
+
+    /**
+     * @return the index of the entry at the position
+     */
+    private int rank(Position pos) {
+        int rank = pos.index;
+        for (Node node = pos.leaf; node.parent != null; node = node.parent) {
+            Inner parent = node.parent;
+            int child = parent.indexOf(node);
+            for (int i = 0; i < child; i++) {
+                rank += parent.counts[i];
+            }
+        }
+        return rank;
+    }
+
+    private void advance(Position pos) {
+        pos.index++;
+        if (pos.index >= pos.leaf.size) {
+            pos.leaf = pos.leaf.next;
+            pos.index = 0;
+        }
+    }
+
+    private void retreat(Position pos) {
+        if (pos.leaf == null) {
+            // From the end to the last entry
+            pos.leaf = isEmpty() ? null : tail;
+            pos.index = tail.size - 1;
+            return;
+        }
+        pos.index--;
+        if (pos.index < 0) {
+            pos.leaf = pos.leaf.prev;
+            pos.index = pos.leaf != null ? pos.leaf.size - 1 : 0;
+        }
+    }
+
+    private K keyAt(Position pos) {
+        return cast(pos.leaf.keys[pos.index]);
+    }
+
+    private V valueAt(Position pos) {
+        return cast(pos.leaf.values[pos.index]);
+    }
+
+    private Pair<K, V> entryAt(Position pos) {
+        return new Pair<K, V>(keyAt(pos), valueAt(pos));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T cast(Object o) {
+        return (T) o;
+    }
+
+    /**
+     * Adds the delta to the entry counts of the ancestors of the node.
+     */
+    private void adjustCounts(Node node, int delta) {
+        for (Node n = node; n.parent != null; n = n.parent) {
+            Inner parent = n.parent;
+            parent.counts[parent.indexOf(n)] += delta;
+            parent.total += delta;
+        }
+    }
+
+    /**
+     * Moves the upper half of the full leaf to a new leaf.
+     *
+     * @return the new leaf
+     */
+    private Leaf splitLeaf(Leaf leaf) {
+        Leaf right = new Leaf();
+        int half = leaf.size / 2;
+        right.size = leaf.size - half;
+        System.arraycopy(leaf.keys, half, right.keys, 0, right.size);
+        System.arraycopy(leaf.values, half, right.values, 0, right.size);
+        for (int i = half; i < leaf.size; i++) {
+            leaf.keys[i] = null;
+            leaf.values[i] = null;
+        }
+        leaf.size = half;
+        right.next = leaf.next;
+        right.prev = leaf;
+        if (leaf.next != null)
+            leaf.next.prev = right;
+        else
+            tail = right;
+        leaf.next = right;
+        insertChild(leaf, right, right.keys[0], right.values[0]);
+        return right;
+    }
+
+    /**
+     * Inserts the new node after the existing node in the parent of the
+     * existing node, splitting the parent if it is full.
+     */
+    private void insertChild(Node left, Node right, Object sepKey, Object sepValue) {
+        Inner parent = left.parent;
+        if (parent == null) {
+            Inner newRoot = new Inner();
+            newRoot.children[0] = left;
+            newRoot.children[1] = right;
+            newRoot.counts[0] = left.count();
+            newRoot.counts[1] = right.count();
+            newRoot.sepKeys[0] = sepKey;
+            newRoot.sepValues[0] = sepValue;
+            newRoot.size = 2;
+            newRoot.total = left.count() + right.count();
+            left.parent = newRoot;
+            right.parent = newRoot;
+            root = newRoot;
+            return;
+        }
+        if (parent.size == INNER_CAPACITY) {
+            splitInner(parent);
+            parent = left.parent;
+        }
+        int i = parent.indexOf(left);
+        System.arraycopy(parent.children, i + 1, parent.children, i + 2, parent.size - i - 1);
+        System.arraycopy(parent.counts, i + 1, parent.counts, i + 2, parent.size - i - 1);
+        System.arraycopy(parent.sepKeys, i, parent.sepKeys, i + 1, parent.size - i - 1);
+        System.arraycopy(parent.sepValues, i, parent.sepValues, i + 1, parent.size - i - 1);
+        parent.children[i + 1] = right;
+        parent.counts[i] = left.count();
+        parent.counts[i + 1] = right.count();
+        parent.sepKeys[i] = sepKey;
+        parent.sepValues[i] = sepValue;
+        parent.size++;
+        right.parent = parent;
+    }
+
+    private void splitInner(Inner inner) {
+        Inner right = new Inner();
+        int half = inner.size / 2;
+        right.size = inner.size - half;
+        System.arraycopy(inner.children, half, right.children, 0, right.size);
+        System.arraycopy(inner.counts, half, right.counts, 0, right.size);
+        System.arraycopy(inner.sepKeys, half, right.sepKeys, 0, right.size - 1);
+        System.arraycopy(inner.sepValues, half, right.sepValues, 0, right.size - 1);
+        Object sepKey = inner.sepKeys[half - 1];
+        Object sepValue = inner.sepValues[half - 1];
+        for (int i = half; i < inner.size; i++) {
+            inner.children[i] = null;
+            inner.total -= inner.counts[i];
+            right.total += inner.counts[i];
+            right.children[i - half].parent = right;
+        }
+        for (int i = half - 1; i < inner.size - 1; i++) {
+            inner.sepKeys[i] = null;
+            inner.sepValues[i] = null;
+        }
+        inner.size = half;
+        insertChild(inner, right, sepKey, sepValue);
+    }
+
+    private void removeAt(Leaf leaf, int index) {
+        System.arraycopy(leaf.keys, index + 1, leaf.keys, index, leaf.size - index - 1);
+        System.arraycopy(leaf.values, index + 1, leaf.values, index, leaf.size - index - 1);
+        leaf.size--;
+        leaf.keys[leaf.size] = null;
+        leaf.values[leaf.size] = null;
+        adjustCounts(leaf, -1);
+        if (leaf.size == 0 && leaf != root) {
+            // Unlink the empty leaf
+            if (leaf.prev != null)
+                leaf.prev.next = leaf.next;
+            else
+                head = leaf.next;
+            if (leaf.next != null)
+                leaf.next.prev = leaf.prev;
+            else
+                tail = leaf.prev;
+            removeChild(leaf);
+        }
+    }
+
+    /**
+     * Removes the empty node from its parent, and the parent as well if it
+     * becomes empty. Collapses the root while it has a single child.
+     */
+    private void removeChild(Node node) {
+        Inner parent = node.parent;
+        int i = parent.indexOf(node);
+        System.arraycopy(parent.children, i + 1, parent.children, i, parent.size - i - 1);
+        System.arraycopy(parent.counts, i + 1, parent.counts, i, parent.size - i - 1);
+        // Remove the separator before the child, or after it for the first
+        // child
+        int sep = i > 0 ? i - 1 : 0;
+        if (parent.size > 1) {
+            System.arraycopy(parent.sepKeys, sep + 1, parent.sepKeys, sep, parent.size - sep - 2);
+            System.arraycopy(parent.sepValues, sep + 1, parent.sepValues, sep, parent.size - sep
+                - 2);
+            parent.sepKeys[parent.size - 2] = null;
+            parent.sepValues[parent.size - 2] = null;
+        }
+        parent.size--;
+        parent.children[parent.size] = null;
+        node.parent = null;
+        if (parent.size == 0) {
+            removeChild(parent);
+            return;
+        }
+        while (root instanceof Inner && ((Inner) root).size == 1) {
+            root = ((Inner) root).children[0];
+            root.parent = null;
+        }
+    }
+
+}
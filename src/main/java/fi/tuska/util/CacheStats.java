@@ -0,0 +1,142 @@
+package fi.tuska.util;
+
+/**
+ * An immutable snapshot of the statistics recorded by a leaking map. The
+ * fix-related counters are only used by {@link FixableLeakingMap}.
+ * 
+ * @author thaapasa
+ */
+public class CacheStats {
+
+    /** Statistics with all counters zero */
+    public static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    private final long hitCount;
+    private final long missCount;
+    private final long putCount;
+    private final long evictionCount;
+    private final long expirationCount;
+    private final long memoryEvictionCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTime;
+    private final long fixCount;
+    private final long unfixCount;
+    private final long bufferFullCount;
+
+    public CacheStats(long hitCount, long missCount, long putCount, long evictionCount,
+        long expirationCount, long memoryEvictionCount, long loadSuccessCount,
+        long loadFailureCount, long totalLoadTime, long fixCount, long unfixCount,
+        long bufferFullCount) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+        this.evictionCount = evictionCount;
+        this.expirationCount = expirationCount;
+        this.memoryEvictionCount = memoryEvictionCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTime = totalLoadTime;
+        this.fixCount = fixCount;
+        this.unfixCount = unfixCount;
+        this.bufferFullCount = bufferFullCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /** @return the amount of lookups (hits + misses) */
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /** @return the ratio of hits to lookups; 1.0 if there are no lookups */
+    public double getHitRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    public long getPutCount() {
+        return putCount;
+    }
+
+    /** @return the amount of entries removed to keep the map within its size */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /** @return the amount of entries removed because they expired */
+    public long getExpirationCount() {
+        return expirationCount;
+    }
+
+    /**
+     * @return the amount of entries removed because the map was shrunk to
+     * relieve memory pressure
+     */
+    public long getMemoryEvictionCount() {
+        return memoryEvictionCount;
+    }
+
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /** @return the total time spent loading values, in nanoseconds */
+    public long getTotalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /** @return the average time spent loading a value, in nanoseconds */
+    public double getAverageLoadPenalty() {
+        long loads = loadSuccessCount + loadFailureCount;
+        return loads == 0 ? 0.0 : (double) totalLoadTime / loads;
+    }
+
+    public long getFixCount() {
+        return fixCount;
+    }
+
+    public long getUnfixCount() {
+        return unfixCount;
+    }
+
+    /**
+     * @return the amount of inserts that failed because the buffer was full
+     * of fixed entries
+     */
+    public long getBufferFullCount() {
+        return bufferFullCount;
+    }
+
+    /**
+     * @return the sum of these and the given statistics
+     */
+    public CacheStats plus(CacheStats o) {
+        return new CacheStats(hitCount + o.hitCount, missCount + o.missCount,
+            putCount + o.putCount, evictionCount + o.evictionCount,
+            expirationCount + o.expirationCount, memoryEvictionCount + o.memoryEvictionCount,
+            loadSuccessCount + o.loadSuccessCount, loadFailureCount + o.loadFailureCount,
+            totalLoadTime + o.totalLoadTime, fixCount + o.fixCount, unfixCount + o.unfixCount,
+            bufferFullCount + o.bufferFullCount);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Hits: %d, misses: %d (hit rate %.3f), puts: %d, evictions: %d, "
+            + "expirations: %d, memory evictions: %d, loads: %d ok / %d failed (avg %.0f ns), "
+            + "fixes: %d, unfixes: %d, buffer full: %d", hitCount, missCount, getHitRate(),
+            putCount, evictionCount, expirationCount, memoryEvictionCount, loadSuccessCount,
+            loadFailureCount, getAverageLoadPenalty(), fixCount, unfixCount, bufferFullCount);
+    }
+
+}
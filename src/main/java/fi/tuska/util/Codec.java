@@ -0,0 +1,22 @@
+package fi.tuska.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes objects to a binary stream and reads them back. Used to store the
+ * contents of the leaking maps in snapshot files; see
+ * {@link LeakingMapSnapshot}. Codecs for common types are in {@link Codecs}.
+ *
+ * @author thaapasa
+ *
+ * @param <T> the type of the encoded objects
+ */
+public interface Codec<T> {
+
+    void write(T object, DataOutput out) throws IOException;
+
+    T read(DataInput in) throws IOException;
+
+}
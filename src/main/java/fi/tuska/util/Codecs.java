@@ -0,0 +1,54 @@
+package fi.tuska.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Codecs for common types.
+ *
+ * @author thaapasa
+ */
+public class Codecs {
+
+    public static final Codec<Integer> INTEGER = new Codec<Integer>() {
+        @Override
+        public void write(Integer object, DataOutput out) throws IOException {
+            out.writeInt(object);
+        }
+
+        @Override
+        public Integer read(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    };
+
+    public static final Codec<Long> LONG = new Codec<Long>() {
+        @Override
+        public void write(Long object, DataOutput out) throws IOException {
+            out.writeLong(object);
+        }
+
+        @Override
+        public Long read(DataInput in) throws IOException {
+            return in.readLong();
+        }
+    };
+
+    /** Strings are stored in modified UTF-8, so they can be at most 64k long */
+    public static final Codec<String> STRING = new Codec<String>() {
+        @Override
+        public void write(String object, DataOutput out) throws IOException {
+            out.writeUTF(object);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+    };
+
+    private Codecs() {
+    }
+
+}
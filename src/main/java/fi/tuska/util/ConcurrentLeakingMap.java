@@ -0,0 +1,394 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import fi.tuska.util.LeakingMap.LeakEventListener;
+
+/**
+ * A lock-striped variant of {@link LeakingMap}. The keys are divided into
+ * independently locked segments, each of which is a leaking map of its own
+ * with its own usage list and its own share of the maximum size. Threads
+ * that access keys in different segments thus never contend for the same
+ * monitor.
+ *
+ * The sum of the segment capacities always equals the maximum size of this
+ * map, so the map never holds more than the maximum amount of entries. The
+ * eviction order is LRU within each segment, which approximates the global
+ * LRU order when the keys are evenly distributed among the segments.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public class ConcurrentLeakingMap<K, V> implements ResizableCache {
+
+    /** The default amount of segments */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    private final LeakingMap<K, V>[] segments;
+    private final int segmentShift;
+    private volatile int maxSize;
+
+    public ConcurrentLeakingMap(int size) {
+        this(size, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param size the maximum size of the map
+     * @param concurrencyLevel the estimated amount of concurrently accessing
+     * threads; the amount of segments is this rounded up to the next power of
+     * two, but at most the size of the map, so that each segment can hold at
+     * least one entry
+     */
+    public ConcurrentLeakingMap(int size, int concurrencyLevel) {
+        this(size, concurrencyLevel, LeakingMap.Policy.LRU);
+    }
+
+    /**
+     * @param size the maximum size of the map
+     * @param concurrencyLevel the estimated amount of concurrently accessing
+     * threads
+     * @param policy the eviction policy used by the segments
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ConcurrentLeakingMap(int size, int concurrencyLevel, LeakingMap.Policy policy) {
+        if (concurrencyLevel < 1)
+            throw new IllegalArgumentException("Invalid concurrency level: " + concurrencyLevel);
+        int bits = 0;
+        // The amount of segments must be a power of two that is at most the
+        // size (if the size allows more than one segment)
+        while ((1 << bits) < concurrencyLevel && (2 << bits) <= size)
+            bits++;
+        this.segmentShift = 32 - bits;
+        this.segments = new LeakingMap[1 << bits];
+        this.maxSize = size;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new LeakingMap<K, V>(getSegmentShare(size, i), policy);
+        }
+    }
+
+    /**
+     * @return the amount of segments in this map
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * @return the capacity of the given segment when the total capacity is
+     * size; the remainder of the division is spread to the first segments
+     */
+    private int getSegmentShare(int size, int segment) {
+        int share = size / segments.length;
+        return segment < size % segments.length ? share + 1 : share;
+    }
+
+    protected LeakingMap<K, V> segmentFor(Object key) {
+        return segments[segmentIndex(key)];
+    }
+
+    private int segmentIndex(Object key) {
+        if (segments.length == 1)
+            return 0;
+        int h = key != null ? key.hashCode() : 0;
+        // Spread the hash bits so that the high bits (used for choosing the
+        // segment) depend on all bits of the original hash code
+        h ^= h >>> 16;
+        h *= 0x9E3779B9;
+        return h >>> segmentShift;
+    }
+
+    /**
+     * Splits the keys by their segments.
+     */
+    private List<List<K>> groupBySegment(Collection<? extends K> keys) {
+        List<List<K>> groups = new ArrayList<List<K>>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            groups.add(new ArrayList<K>());
+        }
+        for (K key : keys) {
+            groups.get(segmentIndex(key)).add(key);
+        }
+        return groups;
+    }
+
+    /**
+     * Adds the listener to all segments. Listeners are called from the thread
+     * that caused the eviction, while that thread holds the monitor of the
+     * segment (but not of the other segments), unless a leak dispatch
+     * executor has been set.
+     */
+    public void addLeakEventListener(LeakEventListener<V> listener) {
+        for (LeakingMap<K, V> segment : segments) {
+            segment.addLeakEventListener(listener);
+        }
+    }
+
+    /**
+     * Sets the executor that delivers the leak events of all segments.
+     *
+     * @see LeakingMap#setLeakDispatchExecutor(Executor)
+     */
+    public void setLeakDispatchExecutor(Executor executor) {
+        for (LeakingMap<K, V> segment : segments) {
+            segment.setLeakDispatchExecutor(executor);
+        }
+    }
+
+    /**
+     * Waits until the queued leak events of all segments have been
+     * delivered.
+     */
+    public void awaitPendingLeaks() throws InterruptedException {
+        for (LeakingMap<K, V> segment : segments) {
+            segment.awaitPendingLeaks();
+        }
+    }
+
+    /**
+     * Sets the weigher used by all segments. Each segment is then limited by
+     * its share of the total weight.
+     *
+     * @see LeakingMap#setWeigher(Weigher)
+     */
+    public void setWeigher(Weigher<? super K, ? super V> weigher) {
+        for (LeakingMap<K, V> segment : segments) {
+            segment.setWeigher(weigher);
+        }
+    }
+
+    /**
+     * Starts recording statistics in all segments.
+     *
+     * @see LeakingMap#recordStats()
+     */
+    public void recordStats() {
+        for (LeakingMap<K, V> segment : segments) {
+            segment.recordStats();
+        }
+    }
+
+    /**
+     * @return the sum of the statistics of all segments
+     */
+    public CacheStats getStats() {
+        CacheStats stats = CacheStats.EMPTY;
+        for (LeakingMap<K, V> segment : segments) {
+            stats = stats.plus(segment.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * @see LeakingMap#setExpireAfterWrite(long, TimeUnit)
+     */
+    public void setExpireAfterWrite(long duration, TimeUnit unit) {
+        for (LeakingMap<K, V> segment : segments) {
+            segment.setExpireAfterWrite(duration, unit);
+        }
+    }
+
+    /**
+     * @see LeakingMap#setExpireAfterAccess(long, TimeUnit)
+     */
+    public void setExpireAfterAccess(long duration, TimeUnit unit) {
+        for (LeakingMap<K, V> segment : segments) {
+            segment.setExpireAfterAccess(duration, unit);
+        }
+    }
+
+    /**
+     * Purges the expired entries from all segments.
+     */
+    public void cleanUp() {
+        for (LeakingMap<K, V> segment : segments) {
+            segment.cleanUp();
+        }
+    }
+
+    /**
+     * Changes the maximum size of the map. The new size is divided among the
+     * segments, and any segment that is now over its budget leaks its least
+     * recently used entries. Each segment keeps room for at least one entry,
+     * so the maximum size is never set below the amount of segments.
+     */
+    public synchronized void setMaximumSize(int size) {
+        setMaximumSize(size, LeakCause.EVICTED);
+    }
+
+    /**
+     * @see #setMaximumSize(int)
+     */
+    @Override
+    public synchronized void setMaximumSize(int size, LeakCause cause) {
+        if (size < 1)
+            throw new IllegalArgumentException("Invalid size " + size);
+        size = Math.max(size, segments.length);
+        this.maxSize = size;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].setMaximumSize(getSegmentShare(size, i), cause);
+        }
+    }
+
+    @Override
+    public int getMaximumSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the current amount of entries in the map; the segments are
+     * counted one at a time, so the result is only an estimate if the map is
+     * concurrently modified
+     */
+    public int getSize() {
+        int size = 0;
+        for (LeakingMap<K, V> segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return the total weight of the entries in all segments
+     */
+    public long getTotalWeight() {
+        long weight = 0;
+        for (LeakingMap<K, V> segment : segments) {
+            weight += segment.getTotalWeight();
+        }
+        return weight;
+    }
+
+    /**
+     * @return a snapshot of the keys currently in the map
+     */
+    public Set<K> keySet() {
+        Set<K> keys = new HashSet<K>();
+        for (LeakingMap<K, V> segment : segments) {
+            synchronized (segment) {
+                keys.addAll(segment.keySet());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Sets the object with the given key. Only the segment of the key is
+     * locked.
+     *
+     * @see LeakingMap#put(Object, Object)
+     */
+    public void put(K key, V value) {
+        segmentFor(key).put(key, value);
+    }
+
+    /**
+     * Sets the object with the given key, with expiry times specific to this
+     * entry.
+     *
+     * @see LeakingMap#put(Object, Object, long, long, TimeUnit)
+     */
+    public void put(K key, V value, long afterWrite, long afterAccess, TimeUnit unit) {
+        segmentFor(key).put(key, value, afterWrite, afterAccess, unit);
+    }
+
+    /**
+     * Stores the entries in the map. The lock of each segment is taken once,
+     * and each segment evicts entries only after its share of the batch has
+     * been stored.
+     *
+     * @see LeakingMap#putAll(Map)
+     */
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        List<Map<K, V>> groups = new ArrayList<Map<K, V>>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            groups.add(new HashMap<K, V>());
+        }
+        for (Map.Entry<? extends K, ? extends V> e : entries.entrySet()) {
+            groups.get(segmentIndex(e.getKey())).put(e.getKey(), e.getValue());
+        }
+        for (int i = 0; i < segments.length; i++) {
+            if (!groups.get(i).isEmpty())
+                segments[i].putAll(groups.get(i));
+        }
+    }
+
+    /**
+     * Looks up the values of the given keys, taking the lock of each segment
+     * once.
+     *
+     * @see LeakingMap#getAll(Collection)
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> result = new HashMap<K, V>();
+        List<List<K>> groups = groupBySegment(keys);
+        for (int i = 0; i < segments.length; i++) {
+            if (!groups.get(i).isEmpty())
+                result.putAll(segments[i].getAll(groups.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Removes the entries with the given keys without notifying the leak
+     * listeners, taking the lock of each segment once.
+     *
+     * @see LeakingMap#invalidateAll(Collection)
+     * @return the amount of entries removed
+     */
+    public int invalidateAll(Collection<? extends K> keys) {
+        int removed = 0;
+        List<List<K>> groups = groupBySegment(keys);
+        for (int i = 0; i < segments.length; i++) {
+            if (!groups.get(i).isEmpty())
+                removed += segments[i].invalidateAll(groups.get(i));
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the value with the given key. Only the segment of the key is
+     * locked.
+     *
+     * @see LeakingMap#get(Object)
+     */
+    public V get(K key) {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * Returns the value with the given key, loading it if it is not in the
+     * map. The segment lock is not held during the load.
+     *
+     * @see LeakingMap#get(Object, Loader)
+     */
+    public V get(K key, Loader<? super K, ? extends V> loader) throws ExecutionException {
+        return segmentFor(key).get(key, loader);
+    }
+
+    /**
+     * @see LeakingMap#getAsync(Object, Loader)
+     */
+    public Future<V> getAsync(K key, Loader<? super K, ? extends V> loader) {
+        return segmentFor(key).getAsync(key, loader);
+    }
+
+    /**
+     * @see LeakingMap#getAsync(Object, Loader, Executor)
+     */
+    public Future<V> getAsync(K key, Loader<? super K, ? extends V> loader, Executor executor) {
+        return segmentFor(key).getAsync(key, loader, executor);
+    }
+
+}
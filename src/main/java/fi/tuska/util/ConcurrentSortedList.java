@@ -0,0 +1,518 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.tuska.util.iterator.EmptyIterator;
+
+/**
+ * A thread-safe variant of {@link SortedList}: a sorted multimap that allows
+ * duplicate entries but does not allow null keys or values. The entries are
+ * stored in a lock-free skip list ({@link ConcurrentSkipListSet}), so adding,
+ * removing and the floor and ceiling searches of different threads do not
+ * block each other.
+ *
+ * Each value is a separate entry of the skip list. The entries are ordered
+ * by the key, then by the value (if the values are comparable), and then by
+ * the insertion order, newest first; so the values of a key are kept
+ * together in the same order as in a {@link SortedList}.
+ *
+ * The iterators are weakly consistent: they never throw
+ * {@link java.util.ConcurrentModificationException}, and they reflect the
+ * state of the list at some point at or since their creation. Likewise, the
+ * value lists returned by the methods are snapshots that may miss concurrent
+ * changes, and {@link #size()} may be momentarily off while other threads
+ * are modifying the list.
+ *
+ * The operations that depend on the position of an entry in the whole list
+ * ({@link SortedList#getAt(int)}, {@link SortedList#indexOf(Comparable)} and
+ * so on) are not provided, as a skip list cannot answer them without
+ * traversing the list.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ * @param <V> the type or values
+ */
+public class ConcurrentSortedList<K extends Comparable<K>, V> implements Iterable<Pair<K, V>> {
+
+    private static final class Entry<K, V> {
+        final K key;
+        /** Null for the search bounds */
+        final V value;
+        final long seq;
+
+        Entry(K key, V value, long seq) {
+            this.key = key;
+            this.value = value;
+            this.seq = seq;
+        }
+
+        Pair<K, V> toPair() {
+            return new Pair<K, V>(key, value);
+        }
+
+        @Override
+        public String toString() {
+            return key + ":" + value;
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = ((Comparable) a.key).compareTo(b.key);
+            if (c != 0)
+                return c;
+            if (a.value instanceof Comparable && b.value instanceof Comparable) {
+                c = ((Comparable) a.value).compareTo(b.value);
+                if (c != 0)
+                    return c;
+            }
+            return a.seq < b.seq ? -1 : (a.seq > b.seq ? 1 : 0);
+        }
+    };
+
+    private final ConcurrentSkipListSet<Entry<K, V>> entries;
+    private final AtomicInteger size = new AtomicInteger();
+    /**
+     * Counts down, so that newer values go before the older values that
+     * compare equal
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ConcurrentSortedList() {
+        this.entries = new ConcurrentSkipListSet<Entry<K, V>>((Comparator) ENTRY_ORDER);
+    }
+
+    /**
+     * @return a search bound that goes before all the entries of the key
+     */
+    private Entry<K, V> lowerBound(K key) {
+        return new Entry<K, V>(key, null, Long.MIN_VALUE);
+    }
+
+    /**
+     * @return a search bound that goes after all the entries of the key
+     */
+    private Entry<K, V> upperBound(K key) {
+        return new Entry<K, V>(key, null, Long.MAX_VALUE);
+    }
+
+    private NavigableSet<Entry<K, V>> entriesOf(K key) {
+        return entries.subSet(lowerBound(key), true, upperBound(key), true);
+    }
+
+    /**
+     * Removes all entries. Entries added concurrently may or may not be
+     * removed.
+     */
+    public void clear() {
+        while (entries.pollFirst() != null) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if this list contains any value with the given key
+     */
+    public boolean contains(K key) {
+        // Null key not permitted
+        if (key == null)
+            return false;
+        return !entriesOf(key).isEmpty();
+    }
+
+    /**
+     * @return the total amount of values in this list
+     */
+    public int size() {
+        return Math.max(size.get(), 0);
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return the first key, or null if the list is empty
+     */
+    public K getFirstKey() {
+        Pair<K, V> first = firstEntry();
+        return first != null ? first.getFirst() : null;
+    }
+
+    /**
+     * @return the last key, or null if the list is empty
+     */
+    public K getLastKey() {
+        Pair<K, V> last = lastEntry();
+        return last != null ? last.getFirst() : null;
+    }
+
+    /**
+     * @return a snapshot of all the entries in this list
+     */
+    public List<Pair<K, V>> getAll() {
+        List<Pair<K, V>> values = new ArrayList<Pair<K, V>>(size());
+        for (Pair<K, V> entry : this) {
+            values.add(entry);
+        }
+        return values;
+    }
+
+    /**
+     * @return always a non-null list
+     */
+    public List<V> getAll(K key) {
+        List<V> values = new ArrayList<V>();
+        // Null key not permitted
+        if (key == null)
+            return values;
+        for (Entry<K, V> entry : entriesOf(key)) {
+            values.add(entry.value);
+        }
+        return values;
+    }
+
+    /**
+     * @return null if not found
+     */
+    public V getFirst(K key) {
+        // Null key not permitted
+        if (key == null)
+            return null;
+        Entry<K, V> entry = entries.ceiling(lowerBound(key));
+        return entry != null && entry.key.compareTo(key) == 0 ? entry.value : null;
+    }
+
+    /**
+     * @return null if not found
+     */
+    public V getLast(K key) {
+        // Null key not permitted
+        if (key == null)
+            return null;
+        Entry<K, V> entry = entries.floor(upperBound(key));
+        return entry != null && entry.key.compareTo(key) == 0 ? entry.value : null;
+    }
+
+    /**
+     * From the list of values such that the key is the greatest key that is
+     * less than or equal to the given key; returns the last such value.
+     *
+     * @return null if not found
+     * @see SortedList#getLastFloor(Comparable)
+     */
+    public Pair<K, V> getLastFloor(K key) {
+        if (key == null)
+            return null;
+        Entry<K, V> entry = entries.floor(upperBound(key));
+        return entry != null ? entry.toPair() : null;
+    }
+
+    /**
+     * Returns the list of values with the greatest key less than or equal to
+     * the given key. The list may be empty if the values are removed
+     * concurrently.
+     *
+     * @return null if not found
+     */
+    public Pair<K, List<V>> getAllFloor(K key) {
+        if (key == null)
+            return null;
+        Entry<K, V> entry = entries.floor(upperBound(key));
+        return entry != null ? new Pair<K, List<V>>(entry.key, getAll(entry.key)) : null;
+    }
+
+    /**
+     * From the list of values such that the key is the least key that is
+     * greater than or equal to the given key; returns the first such value.
+     *
+     * @return null if not found
+     * @see SortedList#getFirstCeiling(Comparable)
+     */
+    public Pair<K, V> getFirstCeiling(K key) {
+        if (key == null)
+            return null;
+        Entry<K, V> entry = entries.ceiling(lowerBound(key));
+        return entry != null ? entry.toPair() : null;
+    }
+
+    /**
+     * Returns the list of values with the least key greater than or equal to
+     * the given key. The list may be empty if the values are removed
+     * concurrently.
+     *
+     * @return null if not found
+     */
+    public Pair<K, List<V>> getAllCeiling(K key) {
+        if (key == null)
+            return null;
+        Entry<K, V> entry = entries.ceiling(lowerBound(key));
+        return entry != null ? new Pair<K, List<V>>(entry.key, getAll(entry.key)) : null;
+    }
+
+    /**
+     * Adds the value with the given key. If the values are comparable, the
+     * values of a key are kept in their natural order; otherwise new values
+     * are added before the existing values of the key.
+     *
+     * @throw IllegalArgumentException if key or value is null
+     */
+    public void add(K key, V value) {
+        if (key == null || value == null)
+            throw new IllegalArgumentException("Key or value null: " + key + ": " + value);
+        entries.add(new Entry<K, V>(key, value, sequence.decrementAndGet()));
+        size.incrementAndGet();
+    }
+
+    /**
+     * @return the value removed; or null if not found in list
+     */
+    public V removeFirst(K key) {
+        // Null key not permitted
+        if (key == null)
+            return null;
+        Entry<K, V> bound = lowerBound(key);
+        while (true) {
+            Entry<K, V> entry = entries.ceiling(bound);
+            if (entry == null || entry.key.compareTo(key) != 0)
+                return null;
+            if (removeEntry(entry))
+                return entry.value;
+            // Removed by another thread, try the next one
+        }
+    }
+
+    /**
+     * Removes one entry with the given key and value.
+     *
+     * @return true if an entry was removed
+     */
+    public boolean remove(K key, V value) {
+        // Null key not permitted
+        if (key == null || value == null)
+            return false;
+        for (Entry<K, V> entry : entriesOf(key)) {
+            if (entry.value.equals(value) && removeEntry(entry))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean removeEntry(Entry<K, V> entry) {
+        if (!entries.remove(entry))
+            return false;
+        size.decrementAndGet();
+        return true;
+    }
+
+    private Entry<K, V> find(K key, V value) {
+        if (key == null || value == null)
+            return null;
+        for (Entry<K, V> entry : entriesOf(key)) {
+            if (entry.value.equals(value))
+                return entry;
+        }
+        return null;
+    }
+
+    /**
+     * @return the first entry in this sorted list
+     */
+    public Pair<K, V> firstEntry() {
+        Entry<K, V> first = first(entries.iterator());
+        return first != null ? first.toPair() : null;
+    }
+
+    /**
+     * @return the last entry in this sorted list
+     */
+    public Pair<K, V> lastEntry() {
+        Entry<K, V> last = first(entries.descendingIterator());
+        return last != null ? last.toPair() : null;
+    }
+
+    /**
+     * @return the first entry of the iterator, or null if there is none;
+     * unlike {@link ConcurrentSkipListSet#first()}, does not throw if the
+     * list is emptied concurrently
+     */
+    private Entry<K, V> first(Iterator<Entry<K, V>> it) {
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * Returns the next key-value pair from the list given an existing
+     * key-value pair.
+     *
+     * Will fail (and return null) if the given key-value pair is not present.
+     */
+    public Pair<K, V> nextEntry(K key, V value) {
+        Entry<K, V> entry = find(key, value);
+        Entry<K, V> next = entry != null ? entries.higher(entry) : null;
+        return next != null ? next.toPair() : null;
+    }
+
+    /**
+     * Returns the previous key-value pair from the list given an existing
+     * key-value pair.
+     *
+     * Will fail (and return null) if the given key-value pair is not present.
+     */
+    public Pair<K, V> previousEntry(K key, V value) {
+        Entry<K, V> entry = find(key, value);
+        Entry<K, V> previous = entry != null ? entries.lower(entry) : null;
+        return previous != null ? previous.toPair() : null;
+    }
+
+    /**
+     * @return always a non-null iterator over the values with the given key
+     */
+    public Iterator<V> iterator(K key) {
+        if (key == null)
+            return new EmptyIterator<V>();
+        final Iterator<Pair<K, V>> it = new EntryIterator(entriesOf(key).iterator());
+        return new Iterator<V>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public V next() {
+                return it.next().getSecond();
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+            }
+        };
+    }
+
+    /**
+     * @return an iterator over the entries whose keys are at least fromKey
+     * and less than toKey
+     */
+    public Iterator<Pair<K, V>> iterator(K fromKey, K toKey) {
+        if (fromKey == null || toKey == null)
+            return new EmptyIterator<Pair<K, V>>();
+        if (fromKey.compareTo(toKey) >= 0)
+            return new EmptyIterator<Pair<K, V>>();
+        return new EntryIterator(entries.subSet(lowerBound(fromKey), true, lowerBound(toKey),
+            false).iterator());
+    }
+
+    /**
+     * @return an iterator over the unique keys in this list; removing a key
+     * removes all its values
+     */
+    public Iterator<K> keyIterator() {
+        return new Iterator<K>() {
+            private Entry<K, V> next = first(entries.iterator());
+            private K current = null;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public K next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                current = next.key;
+                next = entries.higher(upperBound(current));
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null)
+                    throw new IllegalStateException();
+                while (removeFirst(current) != null) {
+                    // Remove all values of the key
+                }
+                current = null;
+            }
+        };
+    }
+
+    /**
+     * @return an iterator over the contents of this list (K, V -pairs)
+     */
+    @Override
+    public Iterator<Pair<K, V>> iterator() {
+        return new EntryIterator(entries.iterator());
+    }
+
+    /**
+     * @return an iterator over the contents of this list in descending order
+     */
+    public Iterator<Pair<K, V>> descendingIterator() {
+        return new EntryIterator(entries.descendingIterator());
+    }
+
+    private class EntryIterator implements Iterator<Pair<K, V>> {
+        private final Iterator<Entry<K, V>> it;
+        private Entry<K, V> last = null;
+
+        private EntryIterator(Iterator<Entry<K, V>> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            last = it.next();
+            return last.toPair();
+        }
+
+        @Override
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            removeEntry(last);
+            last = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("[");
+        K previous = null;
+        for (Entry<K, V> entry : entries) {
+            if (previous == null || previous.compareTo(entry.key) != 0) {
+                if (previous != null)
+                    b.append("},");
+                b.append(entry.key);
+                b.append(":{");
+            } else {
+                b.append(",");
+            }
+            b.append(entry.value);
+            previous = entry.key;
+        }
+        if (previous != null)
+            b.append("}");
+        b.append("]");
+        return b.toString();
+    }
+
+}
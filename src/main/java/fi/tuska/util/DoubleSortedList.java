@@ -0,0 +1,222 @@
+package fi.tuska.util;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link SortedList} with primitive double keys, stored in pages as
+ * described in {@link PagedSortedList}.
+ *
+ * No key is ever boxed, and the entries are read through a {@link Cursor}
+ * instead of {@link Pair} objects:
+ *
+ * <pre>
+ * for (DoubleSortedList&lt;V&gt;.Cursor c = list.cursor(); c.isValid(); c.next()) {
+ *     double key = c.key();
+ *     V value = c.value();
+ * }
+ * </pre>
+ *
+ * The keys are ordered as by {@link Double#compare(double, double)}, so NaN
+ * is greater than any other key and -0.0 is less than 0.0. The keys are
+ * stored as their bits, with the other bits than the sign bit flipped for
+ * negative keys, so that the sort keys compare as the keys do.
+ *
+ * Note that this class is not thread-safe! A cursor becomes invalid when the
+ * list is modified, except through the cursor itself.
+ *
+ * @author thaapasa
+ *
+ * @param <V> the type or values
+ */
+public class DoubleSortedList<V> extends PagedSortedList<V> {
+
+    public DoubleSortedList() {
+    }
+
+    private static long toSortKey(double key) {
+        long bits = Double.doubleToLongBits(key);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    private static double toKey(long sortKey) {
+        return Double.longBitsToDouble(sortKey ^ ((sortKey >> 63) & Long.MAX_VALUE));
+    }
+
+    @Override
+    protected String keyToString(long sortKey) {
+        return Double.toString(toKey(sortKey));
+    }
+
+    /**
+     * @return true if this list contains any value with the given key
+     */
+    public boolean contains(double key) {
+        return containsSortKey(toSortKey(key));
+    }
+
+    /**
+     * @throws NoSuchElementException if the list is empty
+     */
+    public double getFirstKey() {
+        return toKey(getFirstSortKey());
+    }
+
+    /**
+     * @throws NoSuchElementException if the list is empty
+     */
+    public double getLastKey() {
+        return toKey(getLastSortKey());
+    }
+
+    /**
+     * @return always a non-null list
+     */
+    public List<V> getAll(double key) {
+        return getAllBySortKey(toSortKey(key));
+    }
+
+    /**
+     * @return null if not found
+     */
+    public V getFirst(double key) {
+        return getFirstBySortKey(toSortKey(key));
+    }
+
+    /**
+     * @return null if not found
+     */
+    public V getLast(double key) {
+        return getLastBySortKey(toSortKey(key));
+    }
+
+    /**
+     * Returns the last value with the greatest key that is less than or equal
+     * to the given key. Use {@link #floor(double)} to find out the key as
+     * well.
+     *
+     * @return null if not found
+     */
+    public V getLastFloor(double key) {
+        return getLastFloorBySortKey(toSortKey(key));
+    }
+
+    /**
+     * Returns the values with the greatest key less than or equal to the
+     * given key.
+     *
+     * @return always a non-null list
+     */
+    public List<V> getAllFloor(double key) {
+        return getAllFloorBySortKey(toSortKey(key));
+    }
+
+    /**
+     * Returns the first value with the least key that is greater than or
+     * equal to the given key. Use {@link #ceiling(double)} to find out the
+     * key as well.
+     *
+     * @return null if not found
+     */
+    public V getFirstCeiling(double key) {
+        return getFirstCeilingBySortKey(toSortKey(key));
+    }
+
+    /**
+     * Returns the values with the least key greater than or equal to the
+     * given key.
+     *
+     * @return always a non-null list
+     */
+    public List<V> getAllCeiling(double key) {
+        return getAllCeilingBySortKey(toSortKey(key));
+    }
+
+    /**
+     * Adds the value with the given key.
+     *
+     * @throw IllegalArgumentException if the value is null
+     */
+    public void add(double key, V value) {
+        addBySortKey(toSortKey(key), value);
+    }
+
+    /**
+     * @return the value removed; or null if not found in list
+     */
+    public V removeFirst(double key) {
+        return removeFirstBySortKey(toSortKey(key));
+    }
+
+    /**
+     * Removes one entry with the given key and value.
+     *
+     * @return true if an entry was removed
+     */
+    public boolean remove(double key, V value) {
+        return removeBySortKey(toSortKey(key), value);
+    }
+
+    /**
+     * @return a cursor at the first entry; invalid if the list is empty
+     */
+    public Cursor cursor() {
+        Cursor c = new Cursor();
+        c.seekFirst();
+        return c;
+    }
+
+    /**
+     * @return a cursor at the last entry with the greatest key less than or
+     * equal to the given key; invalid if there is no such entry
+     */
+    public Cursor floor(double key) {
+        Cursor c = new Cursor();
+        c.seekFloor(key);
+        return c;
+    }
+
+    /**
+     * @return a cursor at the first entry with the least key greater than or
+     * equal to the given key; invalid if there is no such entry
+     */
+    public Cursor ceiling(double key) {
+        Cursor c = new Cursor();
+        c.seekCeiling(key);
+        return c;
+    }
+
+    /**
+     * A position in the list; see {@link PagedSortedList.PageCursor}.
+     */
+    public class Cursor extends PageCursor {
+
+        private Cursor() {
+        }
+
+        public double key() {
+            return toKey(sortKey());
+        }
+
+        /**
+         * Moves to the first entry with the least key greater than or equal
+         * to the given key.
+         *
+         * @return true if there is such an entry
+         */
+        public boolean seekCeiling(double key) {
+            return seekCeilingSortKey(toSortKey(key));
+        }
+
+        /**
+         * Moves to the last entry with the greatest key less than or equal to
+         * the given key.
+         *
+         * @return true if there is such an entry
+         */
+        public boolean seekFloor(double key) {
+            return seekFloorSortKey(toSortKey(key));
+        }
+    }
+
+}
@@ -12,6 +12,10 @@ public class DoubleValueList<K extends Comparable<K>, V1, V2> extends SortedList
     public DoubleValueList() {
     }
 
+    public DoubleValueList(Backend backend) {
+        super(backend);
+    }
+
     public void add(K key, V1 value1, V2 value2) {
         if (value1 == null || value2 == null)
             throw new IllegalArgumentException("One of the values is null: " + value1 + ", "
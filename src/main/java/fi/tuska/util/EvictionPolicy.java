@@ -0,0 +1,86 @@
+package fi.tuska.util;
+
+/**
+ * Decides which entry a map evicts when it runs out of space. The map
+ * reports the insertions, uses and removals of its keys to the policy, and
+ * asks the policy for a victim when an entry must be evicted.
+ *
+ * The maps only evict entries through {@link #chooseVictim(Filter)}, so a
+ * policy can keep a history of the evicted keys (as 2Q and ARC do) and use
+ * it when the same key is inserted again. Keys removed for other reasons are
+ * reported with {@link #recordRemove(Object)}.
+ *
+ * Policies are not thread-safe; the maps call them while holding their
+ * lock.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ */
+public interface EvictionPolicy<K> {
+
+    /**
+     * Records that a key that is not in the map is about to be stored with
+     * {@link #recordInsert(Object)}. A policy that adapts to the history of
+     * the evicted keys adapts here, so a map that evicts entries after the
+     * insert can call this first to have the victims reflect the new key.
+     * The adaptation is not undone, so this must only be called once the
+     * insert is certain to happen. By default this does nothing.
+     */
+    default void prepareInsert(K key) {
+    }
+
+    /**
+     * Records that a new key has been stored in the map.
+     */
+    void recordInsert(K key);
+
+    /**
+     * Records that a new key has been stored in the map speculatively (it
+     * was prefetched), so that it should be evicted before the keys in use
+     * unless it is used. The first use of the key counts as its insert, and
+     * an unused key does not affect the history of the policy.
+     * {@link #prepareInsert(Object)} is not called for cold inserts. By
+     * default this is recorded as a normal insert.
+     */
+    default void recordColdInsert(K key) {
+        recordInsert(key);
+    }
+
+    /**
+     * Records that a key in the map has been used.
+     */
+    void recordAccess(K key);
+
+    /**
+     * Records that a key in the map is no longer in use (a map with fixed
+     * entries calls this when the last fix of the entry is released). By
+     * default this does nothing.
+     */
+    default void recordRelease(K key) {
+    }
+
+    /**
+     * Records that a key has been removed from the map for some other reason
+     * than being chosen as a victim (for example, it expired or was
+     * explicitly removed).
+     */
+    void recordRemove(K key);
+
+    /**
+     * Chooses the key to evict, and stops tracking it. The map evicts the
+     * returned key.
+     *
+     * @param evictable accepts the keys that may be evicted; the map uses
+     * this to protect its fixed entries. Null accepts all keys.
+     * @return the key to evict, or null if no tracked key is evictable
+     */
+    K chooseVictim(Filter<? super K> evictable);
+
+    /**
+     * @return the amount of keys that are tracked (not counting the history
+     * of evicted keys)
+     */
+    int size();
+
+}
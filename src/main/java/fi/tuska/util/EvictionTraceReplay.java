@@ -0,0 +1,90 @@
+package fi.tuska.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replays a trace of key accesses against eviction policies, to compare
+ * their hit rates. The replay simulates a cache of the given capacity: a key
+ * that is in the cache is a hit, and a missing key is a miss that is then
+ * inserted, evicting the victim chosen by the policy if the cache is full.
+ *
+ * Can be run from the command line with a trace file that contains one key
+ * per line:
+ *
+ * <pre>
+ * java fi.tuska.util.EvictionTraceReplay trace.txt 1000
+ * </pre>
+ *
+ * @author thaapasa
+ */
+public class EvictionTraceReplay {
+
+    /**
+     * Replays the trace against the policy.
+     *
+     * @return the hit rate (hits / accesses); 1.0 for an empty trace
+     */
+    public static <K> double replay(EvictionPolicy<K> policy, int capacity,
+        Iterable<? extends K> trace) {
+        Set<K> cache = new HashSet<K>();
+        long hits = 0;
+        long accesses = 0;
+        for (K key : trace) {
+            accesses++;
+            if (cache.contains(key)) {
+                hits++;
+                policy.recordAccess(key);
+                continue;
+            }
+            if (cache.size() >= capacity) {
+                K victim = policy.chooseVictim(null);
+                boolean removed = cache.remove(victim);
+                assert removed : "Policy " + policy + " chose " + victim + " not in cache";
+            }
+            cache.add(key);
+            policy.recordInsert(key);
+        }
+        return accesses == 0 ? 1.0 : (double) hits / accesses;
+    }
+
+    /**
+     * @return the standard policies for comparison: LRU, LRU-2, 2Q and ARC
+     */
+    public static <K> List<EvictionPolicy<K>> createPolicies(int capacity) {
+        List<EvictionPolicy<K>> policies = new ArrayList<EvictionPolicy<K>>();
+        policies.add(new LruPolicy<K>());
+        policies.add(new Lru2Policy<K>(capacity));
+        policies.add(new TwoQueuePolicy<K>(capacity));
+        policies.add(new ArcPolicy<K>(capacity));
+        return policies;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: EvictionTraceReplay trace-file capacity");
+            System.exit(1);
+        }
+        int capacity = Integer.parseInt(args[1]);
+        InputStream in = new FileInputStream(args[0]);
+        List<String> trace;
+        try {
+            trace = StreamUtils.readFromStream(in);
+        } finally {
+            in.close();
+        }
+        if (trace == null)
+            throw new IOException("Could not read trace " + args[0]);
+        System.out.println(trace.size() + " accesses, capacity " + capacity);
+        for (EvictionPolicy<String> policy : EvictionTraceReplay.<String> createPolicies(capacity)) {
+            double hitRate = replay(policy, capacity, trace);
+            System.out.println(String.format("%-6s %.4f", policy, hitRate));
+        }
+    }
+
+}
@@ -1,11 +1,25 @@
 package fi.tuska.util;
 
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.log4j.Logger;
 
@@ -13,7 +27,45 @@ import org.apache.log4j.Logger;
  * Implements a map with a maximum size. If the size is exceeded, the oldest
  * value in the map is removed from the map. This map further enables the user
  * to fix items in place so that they cannot be purged. Only unfixed entries
- * will be leaked.
+ * will be leaked. The size is the amount of entries by default, but can be
+ * changed to be the total weight of the entries by setting a {@link Weigher}.
+ * 
+ * The entry to leak is chosen by an {@link EvictionPolicy} (LRU by default).
+ * The policy tracks all the entries, including the fixed ones, so that it
+ * sees their complete usage history, but it is only allowed to choose
+ * unfixed entries as victims. A get that fixes an entry counts as a use.
+ * 
+ * In the {@link Mode#CLOCK} buffer-pool mode, fixing an entry that is
+ * already in the map and unfixing an entry do not take the map lock: the fix
+ * count of the entry is updated atomically, and the entries are looked up
+ * from a concurrent table. Instead of an eviction policy, the entries to
+ * leak are chosen by a clock hand that sweeps over the entries, skipping the
+ * fixed ones and giving a second chance to the ones used since the previous
+ * sweep. Misses, puts and evictions are still synchronized.
+ * 
+ * With dirty tracking enabled, only the entries marked dirty with
+ * {@link #markDirty(Object)} are given to the leak listeners when they are
+ * leaked; clean entries are dropped silently. A background flusher can write
+ * the dirty unfixed entries back in key-sorted batches, so that the leaked
+ * entries are usually clean, and {@link #flushAll()} writes back all dirty
+ * entries as a checkpoint.
+ * 
+ * Entries can be prefetched with {@link #prefetch(Collection)}: they are
+ * loaded in the background and inserted unfixed at the cold end of the
+ * eviction order, so that a later get finds them but unused prefetched
+ * entries are evicted before the entries in use. A prefetched entry never
+ * leaks an earlier prefetched entry that has not been used yet, so that a
+ * read-ahead does not evict its own pages.
+ * 
+ * By default, inserting an entry when all the entries are fixed fails with
+ * an {@link IndexOutOfBoundsException}. With
+ * {@link #setFrameWaitTimeout(long, TimeUnit)}, the insert waits instead
+ * until an entry is unfixed or the timeout passes. The waiting threads are
+ * served in arrival order.
+ * 
+ * The leak listeners are called while the map lock is held, unless a leak
+ * dispatch executor is set; then the leaked entries are written back in
+ * batches on the executor (see {@link #setLeakDispatchExecutor(Executor)}).
  * 
  * @author thaapasa
  */
@@ -21,27 +73,156 @@ public class FixableLeakingMap<K, V> {
 
     private static final Logger log = Logger.getLogger(FixableLeakingMap.class);
 
-    private Map<K, MapEntry> map = new HashMap<K, MapEntry>();
-    private LinkedList<K> fixedList = new LinkedList<K>();
-    private LinkedList<K> freeList = new LinkedList<K>();
+    /** How entries are fixed and chosen for leaking */
+    public enum Mode {
+        /**
+         * All operations are synchronized; the entries to leak are chosen by
+         * an {@link EvictionPolicy}
+         */
+        SYNCHRONIZED,
+        /**
+         * Fixing a resident entry and unfixing are lock-free; the entries to
+         * leak are chosen by a clock sweep. The entries are kept in a
+         * concurrent map, so null keys are not allowed.
+         */
+        CLOCK
+    };
+
+    /** Fix count value of an entry that is being removed */
+    private static final int REMOVED = -1;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<FixableLeakingMap.MapEntry> FIXCOUNT = AtomicIntegerFieldUpdater
+        .newUpdater(FixableLeakingMap.MapEntry.class, "fixcount");
+
+    /** Concurrent for the lock-free fixes of the CLOCK mode */
+    private final Map<K, MapEntry> map;
+    private final Mode mode;
+    /** Chooses the entries to leak (SYNCHRONIZED mode) */
+    private final EvictionPolicy<K> evictionPolicy;
+    /** The entries on the clock ring, and the clock hand (CLOCK mode) */
+    private final List<MapEntry> clockRing = new ArrayList<MapEntry>();
+    private int clockHand = 0;
+    /** Accepts the keys of the unfixed entries */
+    private final Filter<K> unfixed = new Filter<K>() {
+        @Override
+        public boolean isValid(K key) {
+            return map.get(key).fixcount == 0;
+        }
+    };
+    /** Accepts the keys of the unfixed entries that are not unused prefetched entries */
+    private final Filter<K> unfixedUsed = new Filter<K>() {
+        @Override
+        public boolean isValid(K key) {
+            MapEntry entry = map.get(key);
+            return entry.fixcount == 0 && !entry.prefetched;
+        }
+    };
     /** Maximum amount of pages (fixed + unfixed pages <= maxSize) */
     private int maxSize;
-    private int freeSize;
-    private final List<LeakEventListener<K, V>> leakListeners = new ArrayList<LeakEventListener<K, V>>();
+    /** Unused capacity (maxSize - total weight of all entries) */
+    private long freeSize;
+    /** Total weight of the unfixed entries (SYNCHRONIZED mode) */
+    private long freeListWeight;
+    /**
+     * Total weight of the unfixed entries (CLOCK mode); updated when a fix
+     * count changes between zero and one, as fixes do not take the lock
+     */
+    private final LongAdder clockUnfixedWeight = new LongAdder();
+    /** Total weight of the unused prefetched entries (SYNCHRONIZED mode) */
+    private long prefetchedWeight;
+    private Weigher<? super K, ? super V> weigher = null;
+    /** Statistics recorder; null when statistics are not recorded */
+    private volatile StatsCounter stats = null;
+    private final List<LeakEventListener<K, V>> leakListeners = new CopyOnWriteArrayList<LeakEventListener<K, V>>();
+    /** Delivers the leaked entries asynchronously; null for synchronous delivery */
+    private LeakDispatcher<Pair<K, V>> leakDispatcher = null;
+    /** Keys of the leaked entries that have not yet been delivered */
+    private final Map<K, Integer> pendingLeaks = new HashMap<K, Integer>();
+    /** If set, only dirty entries are written back when they are leaked */
+    private volatile boolean dirtyTracking = false;
+    /** Keys of the entries modified since they were last written */
+    private final Set<K> dirtyKeys = ConcurrentHashMap.newKeySet();
+    /** Orders the flushed entries; null for natural order */
+    private Comparator<? super K> keyComparator = null;
+    private ScheduledExecutorService flusher = null;
+    /** Loads the prefetched entries; null if prefetching is not enabled */
+    private Loader<? super K, ? extends V> prefetchLoader = null;
+    private Executor prefetchExecutor = null;
+    /** Keys being prefetched */
+    private final Set<K> prefetching = ConcurrentHashMap.newKeySet();
+    /** Time to wait for an evictable entry; 0 to fail immediately */
+    private long frameWaitNanos = 0;
+    /** Threads waiting for an evictable entry, in arrival order */
+    private final ArrayDeque<Thread> frameWaiters = new ArrayDeque<Thread>();
+    /** Amount of waiting threads; read by unfix without the lock */
+    private volatile int frameWaiterCount = 0;
+    private final LongAdder frameWaits = new LongAdder();
+    private final LongAdder frameWaitTime = new LongAdder();
+    private final LongAdder frameWaitTimeouts = new LongAdder();
 
     public FixableLeakingMap(int size) {
+        this(size, new LruPolicy<K>());
+    }
+
+    /**
+     * Creates a map that chooses the entries to leak with the given policy.
+     */
+    public FixableLeakingMap(int size, EvictionPolicy<K> evictionPolicy) {
         this.maxSize = size;
         this.freeSize = size;
+        this.mode = Mode.SYNCHRONIZED;
+        this.map = new HashMap<K, MapEntry>();
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Creates a map with the given mode. The SYNCHRONIZED mode uses the LRU
+     * policy.
+     */
+    public FixableLeakingMap(int size, Mode mode) {
+        this.maxSize = size;
+        this.freeSize = size;
+        this.mode = mode;
+        this.map = mode == Mode.CLOCK ? new ConcurrentHashMap<K, MapEntry>()
+            : new HashMap<K, MapEntry>();
+        this.evictionPolicy = mode == Mode.SYNCHRONIZED ? new LruPolicy<K>() : null;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Finds the entry without fixing it. Takes the map lock unless the map
+     * is concurrent (CLOCK mode).
+     */
+    private MapEntry lookup(K key) {
+        if (mode == Mode.CLOCK)
+            return map.get(key);
+        synchronized (this) {
+            return map.get(key);
+        }
     }
 
     /**
      * Removes all items from this map.
      */
     public synchronized void clear() {
+        if (mode == Mode.CLOCK) {
+            clockRing.clear();
+            clockHand = 0;
+            clockUnfixedWeight.reset();
+        } else {
+            for (K key : map.keySet()) {
+                evictionPolicy.recordRemove(key);
+            }
+        }
         map.clear();
-        fixedList.clear();
-        freeList.clear();
+        dirtyKeys.clear();
         freeSize = maxSize;
+        freeListWeight = 0;
+        prefetchedWeight = 0;
     }
 
     public synchronized Set<K> keySet() {
@@ -52,9 +233,586 @@ public class FixableLeakingMap<K, V> {
         leakListeners.add(listener);
     }
 
+    /**
+     * Sets the executor that delivers the leaked entries to the listeners.
+     * When set, leaked entries are queued and delivered in batches through
+     * {@link LeakEventListener#itemsLeaked(List)} on the executor, so that
+     * writing the entries back does not block the map. Until an entry has
+     * been delivered, {@link #get(Object)} waits instead of reporting a miss
+     * for its key, so that the caller does not reload a stale copy of the
+     * entry. Setting null restores synchronous delivery; any entries already
+     * queued are still delivered.
+     */
+    public synchronized void setLeakDispatchExecutor(Executor executor) {
+        if (executor == null) {
+            leakDispatcher = null;
+            return;
+        }
+        leakDispatcher = new LeakDispatcher<Pair<K, V>>(executor,
+            new LeakDispatcher.Sink<Pair<K, V>>() {
+                @Override
+                public void dispatch(List<Pair<K, V>> batch) {
+                    dispatchLeaks(batch);
+                }
+            });
+    }
+
+    /**
+     * Waits until all the leaked entries queued for asynchronous delivery
+     * have been written back by the listeners. Returns immediately if the
+     * leaked entries are delivered synchronously.
+     */
+    public void awaitPendingLeaks() throws InterruptedException {
+        LeakDispatcher<Pair<K, V>> dispatcher;
+        synchronized (this) {
+            dispatcher = leakDispatcher;
+        }
+        if (dispatcher != null)
+            dispatcher.awaitPending();
+    }
+
+    /**
+     * @return the amount of leaked entries that have not yet been delivered
+     * to the listeners
+     */
+    public synchronized int getPendingLeakCount() {
+        int count = 0;
+        for (Integer c : pendingLeaks.values()) {
+            count += c;
+        }
+        return count;
+    }
+
+    private void dispatchLeaks(List<Pair<K, V>> batch) {
+        try {
+            for (LeakEventListener<K, V> listener : leakListeners) {
+                listener.itemsLeaked(batch);
+            }
+        } finally {
+            synchronized (this) {
+                for (Pair<K, V> leaked : batch) {
+                    K key = leaked.getFirst();
+                    int count = pendingLeaks.get(key);
+                    if (count > 1)
+                        pendingLeaks.put(key, count - 1);
+                    else
+                        pendingLeaks.remove(key);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the leaked entry with the given key has been delivered to
+     * the listeners. Called with the map lock held.
+     */
+    private void awaitLeak(K key) {
+        boolean interrupted = false;
+        while (pendingLeaks.containsKey(key)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Sets the weigher that is used to calculate the weights of the entries.
+     * After this, the maximum size of the map is the maximum total weight of
+     * the entries. By default each entry weighs 1. The weigher can only be
+     * changed when the map is empty.
+     */
+    public synchronized void setWeigher(Weigher<? super K, ? super V> weigher) {
+        if (!map.isEmpty())
+            throw new IllegalStateException("Cannot change weigher of a non-empty map");
+        this.weigher = weigher;
+    }
+
+    /**
+     * Enables dirty tracking. After this, leaked entries are only given to
+     * the leak listeners if they have been marked dirty; clean entries are
+     * dropped without notification. Entries are clean when they are put to
+     * the map.
+     */
+    public synchronized void enableDirtyTracking() {
+        dirtyTracking = true;
+    }
+
+    /**
+     * Sets the order in which the flushed entries are written back. By
+     * default the keys are written in their natural order.
+     */
+    public synchronized void setKeyComparator(Comparator<? super K> keyComparator) {
+        this.keyComparator = keyComparator;
+    }
+
+    /**
+     * Marks the entry as modified, so that it is written back before it is
+     * leaked. The entry must be fixed, and its key must not be null. In
+     * CLOCK mode this does not take the map lock.
+     */
+    public void markDirty(K key) {
+        MapEntry entry = lookup(key);
+        if (entry == null)
+            throw new IllegalArgumentException("Key " + key + " not found");
+        if (entry.fixcount < 1)
+            throw new IllegalStateException("Entry with key " + key + " is not fixed");
+        dirtyKeys.add(key);
+    }
+
+    public boolean isDirty(K key) {
+        return dirtyKeys.contains(key);
+    }
+
+    /** @return the amount of dirty entries */
+    public int getDirtyCount() {
+        return dirtyKeys.size();
+    }
+
+    /**
+     * Writes back at most the given amount of dirty unfixed entries, in key
+     * order, through {@link LeakEventListener#itemsWritten(List)}. The
+     * entries are fixed while they are written, so they are not leaked
+     * during the write, but the map lock is not held. Modifications made to
+     * an entry during the write must be marked dirty again.
+     * 
+     * @return the amount of entries written
+     */
+    public int flushDirty(int maxEntries) {
+        return flush(maxEntries, false);
+    }
+
+    /**
+     * Writes back all dirty entries (fixed or not), and waits until any
+     * leaked entries queued for asynchronous delivery have been written.
+     * After this, all the modifications made before the call are persisted.
+     */
+    public void flushAll() throws InterruptedException {
+        flush(Integer.MAX_VALUE, true);
+        awaitPendingLeaks();
+    }
+
+    private int flush(int maxEntries, boolean includeFixed) {
+        List<Pair<K, V>> batch = new ArrayList<Pair<K, V>>();
+        List<MapEntry> pinned = new ArrayList<MapEntry>();
+        synchronized (this) {
+            List<K> keys = new ArrayList<K>();
+            for (K key : dirtyKeys) {
+                MapEntry entry = map.get(key);
+                if (entry != null && (includeFixed || entry.fixcount == 0))
+                    keys.add(key);
+            }
+            sortKeys(keys);
+            for (K key : keys) {
+                if (batch.size() >= maxEntries)
+                    break;
+                MapEntry entry = map.get(key);
+                if (!pinForWrite(entry))
+                    continue;
+                pinned.add(entry);
+                // Clear the flag before writing, so that modifications made
+                // during the write mark the entry dirty again
+                dirtyKeys.remove(key);
+                batch.add(new Pair<K, V>(key, entry.value));
+            }
+        }
+        if (batch.isEmpty())
+            return 0;
+        try {
+            for (LeakEventListener<K, V> listener : leakListeners) {
+                listener.itemsWritten(batch);
+            }
+        } catch (RuntimeException e) {
+            for (Pair<K, V> item : batch) {
+                dirtyKeys.add(item.getFirst());
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                for (MapEntry entry : pinned) {
+                    unpinAfterWrite(entry);
+                }
+            }
+        }
+        if (log.isDebugEnabled())
+            log.debug("Flushed " + batch.size() + " dirty entries");
+        return batch.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void sortKeys(List<K> keys) {
+        if (keyComparator != null) {
+            Collections.sort(keys, keyComparator);
+        } else if (!keys.isEmpty() && keys.get(0) instanceof Comparable) {
+            Collections.sort((List<Comparable<Object>>) keys);
+        }
+    }
+
+    /**
+     * Fixes the entry for writing it back, without counting it as a use.
+     * Called with the lock held.
+     * 
+     * @return false if the entry is being removed
+     */
+    private boolean pinForWrite(MapEntry entry) {
+        if (mode == Mode.CLOCK) {
+            while (true) {
+                int count = entry.fixcount;
+                if (count == REMOVED)
+                    return false;
+                if (FIXCOUNT.compareAndSet(entry, count, count + 1)) {
+                    if (count == 0)
+                        clockUnfixedWeight.add(-entry.weight);
+                    return true;
+                }
+            }
+        }
+        if (entry.fixcount == 0)
+            freeListWeight -= entry.weight;
+        entry.fixcount++;
+        return true;
+    }
+
+    /**
+     * Releases the fix taken by {@link #pinForWrite(MapEntry)}. Called with
+     * the lock held.
+     */
+    private void unpinAfterWrite(MapEntry entry) {
+        if (mode == Mode.CLOCK) {
+            if (FIXCOUNT.decrementAndGet(entry) == 0)
+                clockUnfixedWeight.add(entry.weight);
+        } else {
+            entry.fixcount--;
+            if (entry.fixcount == 0)
+                freeListWeight += entry.weight;
+        }
+        signalFrameWaiters();
+    }
+
+    /**
+     * Starts a background thread that writes back dirty unfixed entries
+     * periodically, at most batchSize entries at a time.
+     */
+    public synchronized void startFlusher(long period, TimeUnit unit, final int batchSize) {
+        stopFlusher();
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FixableLeakingMap flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushDirty(batchSize);
+                } catch (RuntimeException e) {
+                    log.error("Could not write back dirty entries", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized void stopFlusher() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+        }
+    }
+
+    /**
+     * Enables prefetching. The prefetched values are loaded with the loader
+     * on the executor (an I/O thread pool, for example), without holding the
+     * map lock.
+     */
+    public synchronized void setPrefetchLoader(Loader<? super K, ? extends V> loader,
+        Executor executor) {
+        this.prefetchLoader = loader;
+        this.prefetchExecutor = executor;
+    }
+
+    /**
+     * Loads the entries with the given keys in the background, in the given
+     * order, so that a later get finds them in the map. The entries are
+     * inserted unfixed, as the least recently used entries. Keys that are
+     * already in the map or being prefetched are skipped, and a prefetched
+     * entry is dropped if it would require leaking fixed entries or unused
+     * prefetched entries, or if the key has been put to the map in the
+     * meantime.
+     * 
+     * @return the amount of keys whose loading was started
+     * @throws RejectedExecutionException if the executor does not accept
+     * the loading task; the keys are then not being prefetched
+     */
+    public int prefetch(Collection<? extends K> keys) {
+        final Loader<? super K, ? extends V> loader;
+        Executor executor;
+        synchronized (this) {
+            if (prefetchLoader == null)
+                throw new IllegalStateException("No prefetch loader set");
+            loader = prefetchLoader;
+            executor = prefetchExecutor;
+        }
+        final List<K> batch = new ArrayList<K>();
+        for (K key : keys) {
+            if (lookup(key) == null && prefetching.add(key))
+                batch.add(key);
+        }
+        if (batch.isEmpty())
+            return 0;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (K key : batch) {
+                        try {
+                            load(loader, key);
+                        } finally {
+                            prefetching.remove(key);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            prefetching.removeAll(batch);
+            throw e;
+        }
+        return batch.size();
+    }
+
+    /**
+     * @return the amount of keys being prefetched
+     */
+    public int getPrefetchingCount() {
+        return prefetching.size();
+    }
+
+    private void load(Loader<? super K, ? extends V> loader, K key) {
+        if (lookup(key) != null)
+            return;
+        long start = System.nanoTime();
+        V value;
+        try {
+            value = loader.load(key);
+        } catch (Exception e) {
+            StatsCounter s = stats;
+            if (s != null)
+                s.recordLoadFailure(System.nanoTime() - start);
+            log.warn("Could not prefetch " + key, e);
+            return;
+        }
+        StatsCounter s = stats;
+        if (s != null)
+            s.recordLoadSuccess(System.nanoTime() - start);
+        if (value != null)
+            insertPrefetched(key, value);
+    }
+
+    /**
+     * Inserts a prefetched entry unfixed at the cold end.
+     * 
+     * @return false if the entry was dropped
+     */
+    private synchronized boolean insertPrefetched(K key, V value) {
+        if (map.containsKey(key))
+            return false;
+        int weight = weigh(key, value);
+        if (mode == Mode.SYNCHRONIZED && getUnfixedSpace() - prefetchedWeight < weight)
+            return false;
+        if (!makeRoomForPrefetch(weight))
+            return false;
+        freeSize -= weight;
+        MapEntry entry = new MapEntry(key, value);
+        entry.weight = weight;
+        entry.prefetched = true;
+        if (mode == Mode.CLOCK) {
+            // The reference bit is clear, so the first sweep leaks the
+            // entry unless it is used
+            entry.slot = clockRing.size();
+            clockRing.add(entry);
+            clockUnfixedWeight.add(weight);
+        } else {
+            evictionPolicy.recordColdInsert(key);
+            freeListWeight += weight;
+            prefetchedWeight += weight;
+        }
+        map.put(key, entry);
+        if (log.isDebugEnabled())
+            log.debug("Prefetched entry " + key + "; free: " + freeSize);
+        return true;
+    }
+
+    /**
+     * Leaks unfixed entries until the weight fits, without waiting and
+     * without leaking the unused prefetched entries.
+     * 
+     * @return false if there is not enough space
+     */
+    private boolean makeRoomForPrefetch(long weight) {
+        if (frameWaitNanos > 0 && !frameWaiters.isEmpty()) {
+            // Do not take space from the threads waiting for it
+            return false;
+        }
+        while (freeSize < weight) {
+            if (mode == Mode.CLOCK) {
+                MapEntry victim = findClockVictim(true);
+                if (victim == null)
+                    return false;
+                if (stats != null)
+                    stats.recordLeak(LeakCause.EVICTED);
+                removeEntry(victim.key, victim);
+            } else if (!evict(unfixedUsed)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes inserts wait for an entry to be unfixed when all the entries are
+     * fixed, instead of failing immediately. If no entry can be leaked
+     * within the timeout, the insert fails with an
+     * {@link IndexOutOfBoundsException}. The waiting threads are served in
+     * arrival order, and a new insert does not take space from the waiting
+     * ones. A zero timeout restores the default behavior.
+     */
+    public synchronized void setFrameWaitTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Invalid timeout " + timeout);
+        this.frameWaitNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @return the amount of inserts that have had to wait for an entry to be
+     * unfixed
+     */
+    public long getFrameWaitCount() {
+        return frameWaits.sum();
+    }
+
+    /**
+     * @return the total time that inserts have waited for an entry to be
+     * unfixed
+     */
+    public long getFrameWaitTime(TimeUnit unit) {
+        return unit.convert(frameWaitTime.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the amount of inserts that failed because no entry was unfixed
+     * within the timeout
+     */
+    public long getFrameWaitTimeoutCount() {
+        return frameWaitTimeouts.sum();
+    }
+
+    /**
+     * @return the amount of threads currently waiting for an entry to be
+     * unfixed
+     */
+    public int getFrameWaiterCount() {
+        return frameWaiterCount;
+    }
+
+    /**
+     * Waits until this thread is the first waiting thread and the weight
+     * fits in the map after leaking unfixed entries. Called with the lock
+     * held.
+     * 
+     * @throws IndexOutOfBoundsException if the timeout passes
+     */
+    private void awaitFrame(long weight) {
+        Thread current = Thread.currentThread();
+        frameWaiters.add(current);
+        frameWaiterCount = frameWaiters.size();
+        frameWaits.increment();
+        long start = System.nanoTime();
+        long deadline = start + frameWaitNanos;
+        boolean interrupted = false;
+        try {
+            while (frameWaiters.peek() != current || getUnfixedSpace() < weight) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    frameWaitTimeouts.increment();
+                    throw new IndexOutOfBoundsException("Buffer is full of fixed entries, "
+                        + "no entry was unfixed within the timeout");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            frameWaitTime.add(System.nanoTime() - start);
+            frameWaiters.remove(current);
+            frameWaiterCount = frameWaiters.size();
+            // Let the next waiter check whether there is space for it
+            notifyAll();
+            if (interrupted)
+                current.interrupt();
+        }
+    }
+
+    /**
+     * Wakes up the threads waiting for an entry to be unfixed, if there are
+     * any. Does not take the lock unless there are waiting threads.
+     */
+    private void signalFrameWaiters() {
+        if (frameWaiterCount > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts recording statistics of the map usage. When statistics are not
+     * recorded, no counters are updated.
+     */
+    public synchronized void recordStats() {
+        if (stats == null)
+            stats = new StatsCounter();
+    }
+
+    /**
+     * @return a snapshot of the recorded statistics; all zero if statistics
+     * are not recorded
+     */
+    public synchronized CacheStats getStats() {
+        return stats != null ? stats.snapshot() : CacheStats.EMPTY;
+    }
+
+    /**
+     * Changes the maximum size of the map, leaking unfixed entries if the map
+     * shrinks below its current size.
+     * 
+     * @throws IndexOutOfBoundsException if the fixed entries do not fit in
+     * the new size; the maximum size is then not changed
+     */
     public synchronized void setMaximumSize(int size) {
+        if (getUnfixedSpace() + size - maxSize < 0)
+            throw new IndexOutOfBoundsException("Cannot shrink to " + size
+                + ", the fixed entries do not fit");
+        int oldSize = maxSize;
+        freeSize += size - maxSize;
         this.maxSize = size;
-        ensureCapacity();
+        try {
+            ensureCapacity(0);
+        } catch (RuntimeException e) {
+            // Entries were fixed concurrently (CLOCK mode); the entries
+            // already leaked are accounted for in the free size
+            freeSize -= size - oldSize;
+            this.maxSize = oldSize;
+            throw e;
+        }
+        signalFrameWaiters();
     }
 
     /** @return the total size of the map (amount of pages) */
@@ -64,13 +822,21 @@ public class FixableLeakingMap<K, V> {
 
     /** @return the current amount of fixed and unfixed pages */
     public int getSize() {
-        assert freeSize <= (maxSize - map.size()) : map.size() + "/" + maxSize + " = " + freeSize
-            + " free";
+        assert weigher != null || freeSize <= (maxSize - map.size()) : map.size() + "/"
+            + maxSize + " = " + freeSize + " free";
         return map.size();
     }
 
+    /**
+     * @return the total weight of the fixed and unfixed entries; equals the
+     * amount of entries, if no weigher has been set
+     */
+    public synchronized long getTotalWeight() {
+        return maxSize - freeSize;
+    }
+
     public int getFreeSlots() {
-        return freeSize;
+        return (int) freeSize;
     }
 
     /**
@@ -79,6 +845,17 @@ public class FixableLeakingMap<K, V> {
     public synchronized void printFixes(PrintStream str) {
         str.println("Fixes:");
         List<K> zeroFixes = new java.util.LinkedList<K>();
+        printFixes(str, zeroFixes);
+        if (!zeroFixes.isEmpty())
+            str.println("Zero fixes: " + zeroFixes);
+        str.println("Total: " + getTotalFixCount());
+    }
+
+    /**
+     * Prints the fixed entries, and collects the keys of the unfixed entries
+     * to the given list.
+     */
+    synchronized void printFixes(PrintStream str, List<K> zeroFixes) {
         for (java.util.Map.Entry<K, MapEntry> e : map.entrySet()) {
             if (e.getValue().fixcount == 0) {
                 zeroFixes.add(e.getKey());
@@ -86,9 +863,6 @@ public class FixableLeakingMap<K, V> {
                 str.println(e.getKey().toString() + ": " + e.getValue().fixcount + " fix(es)");
             }
         }
-        if (!zeroFixes.isEmpty())
-            str.println("Zero fixes: " + zeroFixes);
-        str.println("Total: " + getTotalFixCount());
     }
 
     public synchronized String getEntryFixSummary() {
@@ -125,8 +899,9 @@ public class FixableLeakingMap<K, V> {
      * entries)
      */
     public synchronized int getUnfixedSpace() {
-        int bufferFree = getMaximumSize() - getSize();
-        return bufferFree + (int) freeList.getSize();
+        if (mode == Mode.CLOCK)
+            return (int) (freeSize + clockUnfixedWeight.sum());
+        return (int) (freeSize + freeListWeight);
     }
 
     public synchronized boolean contains(K key) {
@@ -141,12 +916,37 @@ public class FixableLeakingMap<K, V> {
      * @return the value with the given key, or null, if no such value is
      * found.
      */
-    public synchronized V get(K key) {
+    public V get(K key) {
+        if (mode == Mode.CLOCK) {
+            // Fix a resident entry without taking the lock
+            MapEntry entry = map.get(key);
+            if (entry != null && tryFix(entry)) {
+                StatsCounter s = stats;
+                if (s != null) {
+                    s.recordHit();
+                    s.recordFix();
+                }
+                return entry.value;
+            }
+        }
+        return getLocked(key);
+    }
+
+    private synchronized V getLocked(K key) {
         MapEntry entry = map.get(key);
-        if (entry == null)
+        if (entry == null && pendingLeaks.containsKey(key)) {
+            // The entry is being written back; wait for that to finish
+            awaitLeak(key);
+            entry = map.get(key);
+        }
+        if (entry == null || !fixEntry(key, entry)) {
+            if (stats != null)
+                stats.recordMiss();
             return null;
+        }
 
-        fixEntry(entry);
+        if (stats != null)
+            stats.recordHit();
         return entry.value;
     }
 
@@ -172,22 +972,87 @@ public class FixableLeakingMap<K, V> {
      * 
      * @param key the key
      * @param value the object
+     * @throws IllegalArgumentException if the entry weighs more than the
+     * maximum size of the map
      */
     public synchronized void put(K key, V value) {
+        insert(key, value, true);
+    }
+
+    /**
+     * Sets the object with the given key like {@link #put(Object, Object)},
+     * but returns false instead of throwing an IndexOutOfBoundsException if
+     * there is no space for it. A failed put is not recorded in the
+     * statistics, so that a caller that makes room and retries records the
+     * put only once.
+     * 
+     * @return false if there was no space for the value
+     */
+    synchronized boolean tryPut(K key, V value) {
+        try {
+            insert(key, value, false);
+            return true;
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param recordFailure whether to record the put in the statistics if
+     * there is no space for it
+     */
+    private void insert(K key, V value, boolean recordFailure) {
         MapEntry entry = map.get(key);
+        int weight = 0;
         if (entry == null) {
-            ensureCapacity();
-            freeSize--;
-            LinkedListNode<K> node = fixedList.addFirstNode(key);
-            entry = new MapEntry(value, node);
-            entry.fixcount = 1;
-            map.put(key, entry);
-            if (log.isDebugEnabled())
-                log.debug("Added entry " + key + "; free: " + freeSize);
-        } else {
+            weight = weigh(key, value);
+            if (weight > maxSize)
+                throw new IllegalArgumentException("Entry " + key + " weighs " + weight
+                    + ", more than the maximum size " + maxSize);
+            try {
+                ensureCapacity(weight);
+            } catch (IndexOutOfBoundsException e) {
+                if (recordFailure && stats != null) {
+                    stats.recordPut();
+                    stats.recordBufferFull();
+                }
+                throw e;
+            }
+            // Waiting for space releases the lock, so another thread may
+            // have put the key in the meantime
+            entry = map.get(key);
+        }
+        if (entry != null)
             throw new IllegalStateException("Cannot overwrite values, remove old values first: "
                 + key + ", " + value + "; existing: " + entry);
+
+        if (stats != null)
+            stats.recordPut();
+        freeSize -= weight;
+        entry = new MapEntry(key, value);
+        if (mode == Mode.CLOCK) {
+            entry.slot = clockRing.size();
+            clockRing.add(entry);
+        } else {
+            // Only prepare once the insert is certain, as preparing adapts
+            // the policy
+            evictionPolicy.prepareInsert(key);
+            evictionPolicy.recordInsert(key);
         }
+        entry.weight = weight;
+        entry.fixcount = 1;
+        map.put(key, entry);
+        if (log.isDebugEnabled())
+            log.debug("Added entry " + key + "; free: " + freeSize);
+    }
+
+    private int weigh(K key, V value) {
+        if (weigher == null)
+            return 1;
+        int weight = weigher.weigh(key, value);
+        if (weight < 0)
+            throw new IllegalArgumentException("Negative weight " + weight + " for " + key);
+        return weight;
     }
 
     /**
@@ -197,17 +1062,42 @@ public class FixableLeakingMap<K, V> {
      * IndexOutOfBoundsException.
      */
     public synchronized void ensureCapacity() {
+        try {
+            ensureCapacity(1);
+        } catch (IndexOutOfBoundsException e) {
+            if (stats != null)
+                stats.recordBufferFull();
+            throw e;
+        }
+    }
+
+    /**
+     * Ensures that there is space to insert an entry with the given weight,
+     * by purging unfixed entries from the map until the weight fits. If the
+     * weight cannot fit even after purging all unfixed entries, throws an
+     * IndexOutOfBoundsException.
+     */
+    private void ensureCapacity(long weight) {
         if (log.isDebugEnabled())
-            log.debug("Ensuring capacity: " + map.size() + "/" + maxSize + ", free: " + freeSize);
+            log.debug("Ensuring capacity " + weight + ": " + map.size() + "/" + maxSize
+                + ", free: " + freeSize);
+        if (frameWaitNanos > 0 && !frameWaiters.isEmpty()) {
+            // Do not take space from the threads already waiting
+            awaitFrame(weight);
+        }
         while (true) {
-            if (getUnfixedSpace() < 1) {
+            // In CLOCK mode the unfixed space is not tracked; the sweep
+            // fails instead if no entry can be leaked
+            if (mode == Mode.SYNCHRONIZED && getUnfixedSpace() < weight) {
+                if (frameWaitNanos > 0) {
+                    awaitFrame(weight);
+                    continue;
+                }
                 throw new IndexOutOfBoundsException(
                     "Buffer is full of fixed entries, cannot drop old entries from buffer");
             }
-            assert freeSize >= 0;
-            assert freeSize <= (maxSize - map.size());
-            assert map.size() <= maxSize;
-            if (freeSize > 0) {
+            assert weigher != null || freeSize <= (maxSize - map.size());
+            if (freeSize >= weight) {
                 // We're done
                 if (log.isDebugEnabled())
                     log.debug("Capacity ensured: " + map.size() + "/" + maxSize + ", free: "
@@ -215,15 +1105,14 @@ public class FixableLeakingMap<K, V> {
 
                 return;
             }
-            // freeSize == 0, that is, no free slots currently
-
-            if (freeList.getSize() < 1) {
-                assert getSize() == getMaximumSize();
-                log.warn("Freelist is empty");
-                throw new RuntimeException("Freelist is empty, cannot release any pages");
+            // Not enough free space currently
+            try {
+                removeAnItem();
+            } catch (IndexOutOfBoundsException e) {
+                if (mode != Mode.CLOCK || frameWaitNanos == 0)
+                    throw e;
+                awaitFrame(weight);
             }
-
-            removeAnItem();
             // Item leaking might have caused other pages to be loaded so
             // ensure capacity again
         }
@@ -234,68 +1123,234 @@ public class FixableLeakingMap<K, V> {
         if (entry == null)
             return null;
 
-        assert entry.node != null;
-        if (entry.fixcount != 0) {
+        if (mode == Mode.CLOCK) {
+            // Prevent concurrent fixes of the entry
+            if (!FIXCOUNT.compareAndSet(entry, 0, REMOVED))
+                throw new IllegalStateException("Trying to remove item that is fixed");
+            clockUnfixedWeight.add(-entry.weight);
+        } else if (entry.fixcount != 0) {
             throw new IllegalStateException("Trying to remove item that is fixed");
         }
+        return removeEntry(key, entry);
+    }
+
+    /**
+     * Removes the entry and notifies the listeners. The entry must be
+     * unfixed (or marked as removed in CLOCK mode).
+     */
+    private V removeEntry(K key, MapEntry entry) {
         V value = entry.value;
 
-        assert entry.node.isInList();
-        assert entry.node.isInList(freeList);
-        long fSize = freeList.getSize();
-        entry.node.remove();
-        assert !entry.node.isInList();
-        assert freeList.getSize() == fSize - 1 : "freeList size is " + freeList.getSize()
-            + " and not " + (fSize - 1);
+        if (mode == Mode.CLOCK) {
+            removeFromClock(entry);
+        } else {
+            evictionPolicy.recordRemove(key);
+            freeListWeight -= entry.weight;
+            if (entry.prefetched)
+                prefetchedWeight -= entry.weight;
+        }
 
         // Notify listeners that page has been leaked (to store it to
-        // disk, for example)
-        for (LeakEventListener<K, V> listener : leakListeners) {
-            listener.itemLeaked(key, value);
+        // disk, for example); clean pages need not be stored. Null keys
+        // are never dirty, as the concurrent key set does not allow them.
+        boolean dirty = key != null && dirtyKeys.remove(key);
+        if (dirtyTracking && !dirty) {
+            if (log.isDebugEnabled())
+                log.debug("Dropped clean entry " + key);
+        } else if (leakDispatcher != null) {
+            Integer count = pendingLeaks.get(key);
+            pendingLeaks.put(key, count != null ? count + 1 : 1);
+            leakDispatcher.submit(new Pair<K, V>(key, value));
+        } else {
+            for (LeakEventListener<K, V> listener : leakListeners) {
+                listener.itemLeaked(key, value);
+            }
         }
 
         // Delete the entry
         MapEntry e2 = map.remove(key);
         assert e2 != null;
         assert e2 == entry;
-        assert e2.fixcount == 0;
+        assert e2.fixcount == 0 || e2.fixcount == REMOVED;
+        freeSize += e2.weight;
         e2.clear();
-
-        freeSize++;
+        signalFrameWaiters();
         return value;
     }
 
     private void removeAnItem() {
-        // Take the least recently used key from the free item list
-        LinkedListNode<K> last = freeList.getLastNode();
-        remove(last.getValue());
+        if (mode == Mode.CLOCK) {
+            MapEntry victim = findClockVictim(false);
+            if (victim == null) {
+                throw new IndexOutOfBoundsException(
+                    "Buffer is full of fixed entries, cannot drop old entries from buffer");
+            }
+            if (stats != null)
+                stats.recordLeak(LeakCause.EVICTED);
+            removeEntry(victim.key, victim);
+            return;
+        }
+        // Let the policy choose the victim among the unfixed entries
+        if (!evict(unfixed)) {
+            log.warn("No unfixed entries");
+            throw new RuntimeException("No unfixed entries, cannot release any pages");
+        }
+    }
+
+    /**
+     * Leaks the entry that the eviction policy chooses among the entries
+     * accepted by the filter (SYNCHRONIZED mode).
+     * 
+     * @return false if no entry was accepted
+     */
+    private boolean evict(Filter<K> evictable) {
+        K victim = evictionPolicy.chooseVictim(evictable);
+        // A null victim is the null key, if that is in the map and accepted
+        if (victim == null && !(map.containsKey(null) && evictable.isValid(null)))
+            return false;
+        if (stats != null)
+            stats.recordLeak(LeakCause.EVICTED);
+        remove(victim);
+        return true;
+    }
+
+    /**
+     * Sweeps the clock hand until an unfixed entry that has not been used
+     * since the previous sweep is found, and claims it for removal. Fixed
+     * entries are skipped, and used entries get their reference bit cleared.
+     * 
+     * @param skipPrefetched whether to skip the unused prefetched entries
+     * as well
+     * @return the entry, or null if all the entries were skipped
+     */
+    private MapEntry findClockVictim(boolean skipPrefetched) {
+        if (clockRing.isEmpty())
+            return null;
+        // Two full rounds clear all reference bits, so if nothing is found
+        // by then, all entries were fixed at some point of the sweep
+        int steps = 2 * clockRing.size() + 1;
+        for (int i = 0; i < steps; i++) {
+            if (clockHand >= clockRing.size())
+                clockHand = 0;
+            MapEntry entry = clockRing.get(clockHand);
+            if (entry.fixcount == 0 && !(skipPrefetched && entry.prefetched)) {
+                if (entry.referenced) {
+                    // Give the entry a second chance
+                    entry.referenced = false;
+                } else if (FIXCOUNT.compareAndSet(entry, 0, REMOVED)) {
+                    clockUnfixedWeight.add(-entry.weight);
+                    return entry;
+                }
+            }
+            clockHand++;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the entry from the ring by moving the last entry of the ring to
+     * its slot.
+     */
+    private void removeFromClock(MapEntry entry) {
+        int lastSlot = clockRing.size() - 1;
+        MapEntry last = clockRing.remove(lastSlot);
+        if (last != entry) {
+            last.slot = entry.slot;
+            clockRing.set(entry.slot, last);
+        }
+        entry.slot = -1;
     }
 
-    private synchronized void fixEntry(MapEntry entry) {
-        // fixed + free size can be occasionally smaller than map size if we
-        // are in the process of removing entries (which has caused other
-        // entries to be loaded)
-        assert fixedList.getSize() + freeList.getSize() <= map.size() : fixedList.getSize()
-            + " + " + freeList.getSize() + " != " + map.size();
+    /**
+     * Atomically increments the fix count of the entry, unless the entry is
+     * being removed.
+     * 
+     * @return true if the entry was fixed
+     */
+    private boolean tryFix(MapEntry entry) {
+        while (true) {
+            int count = entry.fixcount;
+            if (count == REMOVED)
+                return false;
+            if (FIXCOUNT.compareAndSet(entry, count, count + 1)) {
+                if (count == 0)
+                    clockUnfixedWeight.add(-entry.weight);
+                // Only write the flags if they are not already set, to
+                // avoid needlessly dirtying the cache line of hot entries
+                if (!entry.referenced)
+                    entry.referenced = true;
+                if (entry.prefetched)
+                    entry.prefetched = false;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Fixes the entry.
+     * 
+     * @return false if the entry could not be fixed because it is being
+     * removed (only possible in CLOCK mode, when a leak listener reads the
+     * map)
+     */
+    private synchronized boolean fixEntry(K key, MapEntry entry) {
+        if (mode == Mode.CLOCK) {
+            if (!tryFix(entry))
+                return false;
+            if (stats != null)
+                stats.recordFix();
+            return true;
+        }
         if (entry.fixcount == 0) {
-            // First fix, move entry from freeList to fixedList
-            boolean success = entry.node.remove();
-            assert success;
-            fixedList.addFirst(entry.node);
-        } else {
-            // Move entry to the top of the fixedList
-            boolean res = entry.node.moveToHead();
-            assert res;
+            // First fix, the entry can no longer be leaked
+            freeListWeight -= entry.weight;
+        }
+        if (entry.prefetched) {
+            entry.prefetched = false;
+            prefetchedWeight -= entry.weight;
         }
+        evictionPolicy.recordAccess(key);
         entry.fixcount++;
+        if (stats != null)
+            stats.recordFix();
+        return true;
+    }
+
+    public void unfix(K key) {
+        if (mode == Mode.CLOCK) {
+            unfixClock(key);
+            return;
+        }
+        unfixLocked(key);
+    }
+
+    /**
+     * Unfixes the entry without taking the lock (CLOCK mode).
+     */
+    private void unfixClock(K key) {
+        MapEntry entry = map.get(key);
+        if (entry == null) {
+            throw new IllegalArgumentException("Key " + key + " not found");
+        }
+        while (true) {
+            int count = entry.fixcount;
+            if (count < 1) {
+                throw new IllegalStateException("Entry with key " + key + " is not fixed");
+            }
+            if (FIXCOUNT.compareAndSet(entry, count, count - 1)) {
+                if (count == 1) {
+                    clockUnfixedWeight.add(entry.weight);
+                    signalFrameWaiters();
+                }
+                break;
+            }
+        }
+        StatsCounter s = stats;
+        if (s != null)
+            s.recordUnfix();
     }
 
-    public synchronized void unfix(K key) {
-        // fixed + free size can be occasionally smaller than map size if we
-        // are in the process of removing entries (which has caused other
-        // entries to be loaded)
-        assert fixedList.getSize() + freeList.getSize() <= map.size() : fixedList.getSize()
-            + " + " + freeList.getSize() + " != " + map.size();
+    private synchronized void unfixLocked(K key) {
         MapEntry entry = map.get(key);
         if (entry == null) {
             throw new IllegalArgumentException("Key " + key + " not found");
@@ -304,11 +1359,13 @@ public class FixableLeakingMap<K, V> {
             throw new IllegalStateException("Entry with key " + key + " is not fixed");
         }
         entry.fixcount--;
+        if (stats != null)
+            stats.recordUnfix();
         if (entry.fixcount == 0) {
-            // Move entry from fixedList to the beginning of freeList
-            boolean success = entry.node.remove();
-            assert success;
-            freeList.addFirst(entry.node);
+            // The entry can now be leaked
+            freeListWeight += entry.weight;
+            evictionPolicy.recordRelease(key);
+            signalFrameWaiters();
         }
     }
 
@@ -326,23 +1383,59 @@ public class FixableLeakingMap<K, V> {
          */
         public void itemLeaked(K key, V item);
 
+        /**
+         * Notifies the listener that a batch of items has been leaked from
+         * the map. Only used when the leaked items are delivered
+         * asynchronously; the items have already been removed from the map.
+         * By default this calls {@link #itemLeaked(Object, Object)} for each
+         * item.
+         */
+        public default void itemsLeaked(List<Pair<K, V>> items) {
+            for (Pair<K, V> item : items) {
+                itemLeaked(item.getFirst(), item.getSecond());
+            }
+        }
+
+        /**
+         * Writes back a batch of dirty items that stay in the map. Used when
+         * the dirty entries are flushed; the items are sorted by their keys.
+         * By default this calls {@link #itemLeaked(Object, Object)} for each
+         * item.
+         */
+        public default void itemsWritten(List<Pair<K, V>> items) {
+            for (Pair<K, V> item : items) {
+                itemLeaked(item.getFirst(), item.getSecond());
+            }
+        }
+
     }
 
     private class MapEntry {
-        public V value;
-        public LinkedListNode<K> node;
-        public int fixcount;
+        public final K key;
+        public volatile V value;
+        /** Updated atomically in CLOCK mode; REMOVED when being removed */
+        public volatile int fixcount;
+        public int weight;
+        /** Position on the clock ring (CLOCK mode) */
+        public int slot = -1;
+        /** Set when the entry is fixed (CLOCK mode) */
+        public volatile boolean referenced;
+        /** Set for a prefetched entry until it is fixed */
+        public volatile boolean prefetched;
 
-        public MapEntry(V value, LinkedListNode<K> node) {
+        public MapEntry(K key, V value) {
+            this.key = key;
             this.value = value;
-            this.node = node;
             this.fixcount = 0;
         }
 
+        /**
+         * Releases the value of a removed entry. The fix count is left as it
+         * is: in CLOCK mode it stays REMOVED, so that a lock-free get that
+         * still holds the entry cannot fix it.
+         */
         public void clear() {
             this.value = null;
-            this.node = null;
-            this.fixcount = 0;
         }
 
         public String toString() {
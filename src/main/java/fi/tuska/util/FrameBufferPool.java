@@ -0,0 +1,407 @@
+package fi.tuska.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A buffer manager for fixed-size pages that stores the page contents in
+ * large preallocated slabs instead of separate byte arrays. The slabs are
+ * direct byte buffers by default, so the page data is off-heap and does not
+ * burden the garbage collector; a buffer of gigabytes is a handful of
+ * objects instead of millions.
+ *
+ * The slabs are cut into frames of the page size. Like in
+ * {@link FixableLeakingMap}, a page is fixed when it is requested and must
+ * be unfixed when the caller is done with it; only unfixed frames are
+ * reused. The frames are cut when the pool is created, and the page-id to
+ * frame mapping is kept in primitive arrays, so loading a page allocates
+ * nothing but the view to the frame that is returned to the caller.
+ *
+ * Frames are reused with the CLOCK algorithm. Frames marked dirty with
+ * {@link #markDirty(long)} are given to the frame listeners before they are
+ * reused (to write them to disk, for example); clean frames are reused
+ * silently. The listeners are called while the pool lock is held.
+ *
+ * Each call returns a new view to the frame, covering the whole frame, so a
+ * caller can change the position and limit of its view freely; the contents
+ * of the frame are shared by all the views. All operations are
+ * synchronized.
+ *
+ * @author thaapasa
+ */
+public class FrameBufferPool {
+
+    private static final Logger log = Logger.getLogger(FrameBufferPool.class);
+
+    /** Largest size of a single slab (direct buffers are int-indexed) */
+    private static final int MAX_SLAB_BYTES = 1 << 30;
+    /** Marks an empty frame and the end of the free list */
+    private static final int NONE = -1;
+
+    /**
+     * Loads the contents of a page into a frame.
+     */
+    public interface PageLoader {
+        /**
+         * Reads the page into the frame. The frame view covers the whole
+         * frame; its position and limit need not be restored.
+         */
+        void loadPage(long pageId, ByteBuffer frame) throws Exception;
+    }
+
+    /**
+     * Notified when a dirty frame is written back.
+     */
+    public interface FrameListener {
+        /**
+         * Called before the frame of a dirty page is reused, and when the
+         * dirty pages are flushed. The frame must not be modified or stored.
+         */
+        void frameLeaked(long pageId, ByteBuffer frame);
+    }
+
+    private final int frameSize;
+    private final int frameCount;
+    private final ByteBuffer[] slabs;
+    private final ByteBuffer[] frames;
+
+    /** Page of each frame; meaningful only for used frames */
+    private final long[] pageIds;
+    private final int[] fixCounts;
+    private final boolean[] referenced;
+    private final boolean[] dirty;
+    /** Links the free frames */
+    private final int[] nextFree;
+    private int firstFree;
+    private int size = 0;
+    private int clockHand = 0;
+
+    /** Maps the pages to their frames */
+    private final LongSlotTable table;
+
+    private StatsCounter stats = null;
+    private final List<FrameListener> listeners = new CopyOnWriteArrayList<FrameListener>();
+
+    /**
+     * Creates a pool with direct (off-heap) slabs.
+     */
+    public FrameBufferPool(int frameCount, int frameSize) {
+        this(frameCount, frameSize, true);
+    }
+
+    /**
+     * @param direct true to allocate the slabs off-heap
+     */
+    public FrameBufferPool(int frameCount, int frameSize, boolean direct) {
+        if (frameCount < 1 || frameSize < 1)
+            throw new IllegalArgumentException("Invalid pool size " + frameCount + " x "
+                + frameSize);
+        this.frameCount = frameCount;
+        this.frameSize = frameSize;
+
+        int framesPerSlab = Math.max(1, MAX_SLAB_BYTES / frameSize);
+        int slabCount = (frameCount + framesPerSlab - 1) / framesPerSlab;
+        slabs = new ByteBuffer[slabCount];
+        frames = new ByteBuffer[frameCount];
+        for (int s = 0; s < slabCount; s++) {
+            int count = Math.min(framesPerSlab, frameCount - s * framesPerSlab);
+            int bytes = count * frameSize;
+            slabs[s] = direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+            for (int i = 0; i < count; i++) {
+                ByteBuffer view = slabs[s].duplicate();
+                view.position(i * frameSize);
+                view.limit((i + 1) * frameSize);
+                frames[s * framesPerSlab + i] = view.slice();
+            }
+        }
+
+        pageIds = new long[frameCount];
+        fixCounts = new int[frameCount];
+        referenced = new boolean[frameCount];
+        dirty = new boolean[frameCount];
+        nextFree = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            nextFree[i] = i + 1 < frameCount ? i + 1 : NONE;
+        }
+        firstFree = 0;
+
+        table = new LongSlotTable(pageIds);
+        if (log.isDebugEnabled())
+            log.debug("Allocated " + frameCount + " frames of " + frameSize + " bytes in "
+                + slabCount + " slabs");
+    }
+
+    public void addFrameListener(FrameListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts recording statistics of the pool usage.
+     */
+    public synchronized void recordStats() {
+        if (stats == null)
+            stats = new StatsCounter();
+    }
+
+    /**
+     * @return a snapshot of the recorded statistics; all zero if statistics
+     * are not recorded
+     */
+    public synchronized CacheStats getStats() {
+        return stats != null ? stats.snapshot() : CacheStats.EMPTY;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the amount of frames that contain a page
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized boolean contains(long pageId) {
+        return table.find(pageId) != NONE;
+    }
+
+    /**
+     * Returns the frame of the page and fixes it.
+     *
+     * @return the frame, or null if the page is not in the pool (the page is
+     * not fixed then)
+     */
+    public synchronized ByteBuffer get(long pageId) {
+        int frame = table.find(pageId);
+        if (frame == NONE) {
+            if (stats != null)
+                stats.recordMiss();
+            return null;
+        }
+        if (stats != null)
+            stats.recordHit();
+        fix(frame);
+        return view(frame);
+    }
+
+    /**
+     * Returns the frame of the page and fixes it. If the page is not in the
+     * pool, a frame is reserved for it and the page is read into it with the
+     * loader. The loader is called while the pool lock is held.
+     *
+     * @throws IndexOutOfBoundsException if all frames are fixed
+     */
+    public synchronized ByteBuffer get(long pageId, PageLoader loader) throws Exception {
+        ByteBuffer existing = get(pageId);
+        if (existing != null)
+            return existing;
+        int frame = reserve(pageId);
+        ByteBuffer view = view(frame);
+        long start = System.nanoTime();
+        try {
+            loader.loadPage(pageId, view);
+        } catch (Exception e) {
+            if (stats != null)
+                stats.recordLoadFailure(System.nanoTime() - start);
+            release(frame);
+            throw e;
+        }
+        if (stats != null)
+            stats.recordLoadSuccess(System.nanoTime() - start);
+        return view(frame);
+    }
+
+    /**
+     * Reserves a frame for a new page and fixes it. The caller fills the
+     * returned frame; it contains the data of the previous page of the frame.
+     *
+     * @throws IllegalArgumentException if the page is already in the pool
+     * @throws IndexOutOfBoundsException if all frames are fixed
+     */
+    public synchronized ByteBuffer allocate(long pageId) {
+        if (table.find(pageId) != NONE)
+            throw new IllegalArgumentException("Page " + pageId + " is already in the pool");
+        if (stats != null)
+            stats.recordPut();
+        return view(reserve(pageId));
+    }
+
+    /**
+     * Unfixes the page. Every fix must be matched by one unfix.
+     */
+    public synchronized void unfix(long pageId) {
+        int frame = findExisting(pageId);
+        if (fixCounts[frame] < 1)
+            throw new IllegalStateException("Page " + pageId + " is not fixed");
+        fixCounts[frame]--;
+        if (stats != null)
+            stats.recordUnfix();
+    }
+
+    /**
+     * Marks the page as modified, so that it is written back before its
+     * frame is reused. The page must be fixed.
+     */
+    public synchronized void markDirty(long pageId) {
+        int frame = findExisting(pageId);
+        if (fixCounts[frame] < 1)
+            throw new IllegalStateException("Page " + pageId + " is not fixed");
+        dirty[frame] = true;
+    }
+
+    public synchronized boolean isDirty(long pageId) {
+        int frame = table.find(pageId);
+        return frame != NONE && dirty[frame];
+    }
+
+    public synchronized int getFixCount(long pageId) {
+        int frame = table.find(pageId);
+        return frame != NONE ? fixCounts[frame] : 0;
+    }
+
+    /**
+     * @return the total amount of fixes of all pages
+     */
+    public synchronized int getTotalFixCount() {
+        int total = 0;
+        for (int i = 0; i < frameCount; i++) {
+            total += fixCounts[i];
+        }
+        return total;
+    }
+
+    /**
+     * Removes the page from the pool without writing it back. The page must
+     * not be fixed.
+     *
+     * @return true if the page was in the pool
+     */
+    public synchronized boolean remove(long pageId) {
+        int frame = table.find(pageId);
+        if (frame == NONE)
+            return false;
+        if (fixCounts[frame] > 0)
+            throw new IllegalStateException("Page " + pageId + " is fixed");
+        release(frame);
+        return true;
+    }
+
+    /**
+     * Writes back all dirty pages (fixed or not) to the frame listeners, in
+     * frame order, and marks them clean.
+     *
+     * @return the amount of pages written
+     */
+    public synchronized int flushAll() {
+        int written = 0;
+        for (int i = 0; i < frameCount; i++) {
+            if (dirty[i]) {
+                writeBack(i);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Reserves a frame for the page: a free frame if there is one, otherwise
+     * the frame of an unfixed page chosen with the CLOCK algorithm.
+     */
+    private int reserve(long pageId) {
+        int frame = firstFree;
+        if (frame != NONE) {
+            firstFree = nextFree[frame];
+        } else {
+            frame = findVictim();
+            if (dirty[frame])
+                writeBack(frame);
+            table.delete(pageIds[frame]);
+            size--;
+            if (stats != null)
+                stats.recordLeak(LeakCause.EVICTED);
+        }
+        pageIds[frame] = pageId;
+        fixCounts[frame] = 0;
+        dirty[frame] = false;
+        table.insert(frame);
+        size++;
+        fix(frame);
+        return frame;
+    }
+
+    /**
+     * @return an unfixed frame whose reference bit was not set since the
+     * previous sweep
+     * @throws IndexOutOfBoundsException if all the frames are fixed
+     */
+    private int findVictim() {
+        // Two full sweeps clear all reference bits, so an unfixed frame is
+        // found if there is one
+        for (int steps = 0; steps <= 2 * frameCount; steps++) {
+            int frame = clockHand;
+            clockHand = (clockHand + 1) % frameCount;
+            if (fixCounts[frame] > 0)
+                continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            return frame;
+        }
+        if (stats != null)
+            stats.recordBufferFull();
+        throw new IndexOutOfBoundsException("All " + frameCount + " frames are fixed");
+    }
+
+    private void release(int frame) {
+        table.delete(pageIds[frame]);
+        fixCounts[frame] = 0;
+        referenced[frame] = false;
+        dirty[frame] = false;
+        nextFree[frame] = firstFree;
+        firstFree = frame;
+        size--;
+    }
+
+    private void writeBack(int frame) {
+        for (FrameListener listener : listeners) {
+            listener.frameLeaked(pageIds[frame], view(frame));
+        }
+        dirty[frame] = false;
+    }
+
+    private void fix(int frame) {
+        fixCounts[frame]++;
+        referenced[frame] = true;
+        if (stats != null)
+            stats.recordFix();
+    }
+
+    /**
+     * @return a new view to the frame, covering the whole frame
+     */
+    private ByteBuffer view(int frame) {
+        return frames[frame].duplicate();
+    }
+
+    private int findExisting(long pageId) {
+        int frame = table.find(pageId);
+        if (frame == NONE)
+            throw new IllegalArgumentException("Page " + pageId + " is not in the pool");
+        return frame;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameBufferPool " + size + "/" + frameCount + " x " + frameSize + " bytes";
+    }
+
+}
@@ -0,0 +1,119 @@
+package fi.tuska.util;
+
+/**
+ * A probabilistic estimate of the access frequencies of items, used as the
+ * admission filter of the W-TinyLFU policy of {@link LeakingMap}. This is a
+ * count-min sketch with 4-bit counters; sixteen counters are packed in each
+ * long of the table. Each item is counted in four counters that are chosen
+ * with independent hash functions, and the frequency estimate is the minimum
+ * of them.
+ *
+ * To keep the estimates fresh, all counters are halved after a sample of
+ * increments (ten times the maximum size of the map) has been recorded.
+ *
+ * This class is not thread-safe.
+ *
+ * @author thaapasa
+ *
+ * @param <E> the type of the counted items
+ */
+class FrequencySketch<E> {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    /** Clears the highest bit of each counter when shifting right by one */
+    private static final long RESET_MASK = 0x7777777777777777L;
+    /** The lowest bit of each counter */
+    private static final long ONE_MASK = 0x1111111111111111L;
+    /** Maximum amount of longs in the table */
+    private static final int MAX_TABLE_SIZE = 1 << 22;
+
+    private long[] table = new long[1];
+    private int tableMask = 0;
+    private int sampleSize = 10;
+    private int size = 0;
+
+    FrequencySketch(long maximumSize) {
+        ensureCapacity(maximumSize);
+    }
+
+    /**
+     * Grows the table so that it can hold the given amount of items with a
+     * reasonable error rate. The existing frequencies are lost when the table
+     * is grown.
+     */
+    void ensureCapacity(long maximumSize) {
+        int maximum = (int) Math.min(Math.max(maximumSize, 1), MAX_TABLE_SIZE);
+        if (table.length >= maximum)
+            return;
+        int length = maximum > 1 ? Integer.highestOneBit(maximum - 1) << 1 : 1;
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * maximum;
+        size = 0;
+    }
+
+    /**
+     * @return the estimated amount of times the item has been counted, at
+     * most 15
+     */
+    int frequency(E item) {
+        int hash = spread(item.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments the counters of the item, unless they are already at the
+     * maximum.
+     */
+    void increment(E item) {
+        int hash = spread(item.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size >= sampleSize)
+            reset();
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /** Halves all the counters */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return ((int) hash) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+}
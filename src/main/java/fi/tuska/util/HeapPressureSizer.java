@@ -0,0 +1,262 @@
+package fi.tuska.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Adapts the maximum size of a cache to the heap usage. The sizer sets a
+ * collection usage threshold on the heap memory pools, and shrinks the cache
+ * when the JVM reports that the usage after a garbage collection has crossed
+ * a threshold. The usage after collection only changes when the garbage is
+ * collected, so the cache is shrunk at most once per collection. The
+ * usage before collection is not followed, as it includes garbage. The
+ * entries evicted because
+ * of this are reported with the cause {@link LeakCause#MEMORY_PRESSURE}, so
+ * they are counted separately in the cache statistics. While the heap usage
+ * measured after garbage collection stays clearly below the threshold, the
+ * cache is grown back step by step towards its ceiling size.
+ *
+ * The threshold notifications are received from the memory pool MXBeans of
+ * {@link java.lang.management}; the recovery is checked periodically by a
+ * daemon thread.
+ *
+ * @author thaapasa
+ */
+public class HeapPressureSizer {
+
+    private static final Logger log = Logger.getLogger(HeapPressureSizer.class);
+
+    private final ResizableCache cache;
+    private final int minSize;
+    private final int maxSize;
+
+    /** Fraction of the pool maximum that triggers shrinking */
+    private double usageThreshold = 0.85;
+    /** Fraction of the usage threshold below which the cache is grown */
+    private double recoveryRatio = 0.75;
+    /** Fraction by which the cache is shrunk on a threshold crossing */
+    private double shrinkFactor = 0.5;
+    /** Fraction of the ceiling size added on each growth step */
+    private double growthStep = 0.1;
+
+    private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    private ScheduledExecutorService checker = null;
+    /** Collection count when the cache was last shrunk; -1 if never */
+    private long shrunkAtCollection = -1;
+
+    private final NotificationListener listener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification
+                .getType())) {
+                collectionThresholdExceeded(getCollectionCount());
+            }
+        }
+    };
+
+    /**
+     * @param cache the cache to resize
+     * @param minSize the size below which the cache is never shrunk
+     * @param maxSize the ceiling size that the cache is grown back to
+     */
+    public HeapPressureSizer(ResizableCache cache, int minSize, int maxSize) {
+        if (minSize < 1 || maxSize < minSize)
+            throw new IllegalArgumentException("Invalid size range " + minSize + "-" + maxSize);
+        this.cache = cache;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets the fraction of the heap pool maximum that triggers shrinking.
+     * Must be set before the sizer is started.
+     */
+    public synchronized void setUsageThreshold(double usageThreshold) {
+        if (usageThreshold <= 0 || usageThreshold >= 1)
+            throw new IllegalArgumentException("Invalid threshold " + usageThreshold);
+        this.usageThreshold = usageThreshold;
+    }
+
+    /**
+     * Sets the fraction of the usage threshold below which the heap usage
+     * must stay for the cache to grow.
+     */
+    public synchronized void setRecoveryRatio(double recoveryRatio) {
+        this.recoveryRatio = recoveryRatio;
+    }
+
+    /**
+     * Sets the fraction by which the cache is shrunk when the threshold is
+     * crossed (0.5 halves the cache).
+     */
+    public synchronized void setShrinkFactor(double shrinkFactor) {
+        this.shrinkFactor = shrinkFactor;
+    }
+
+    /**
+     * Sets the fraction of the ceiling size that is added to the cache size
+     * on each growth step.
+     */
+    public synchronized void setGrowthStep(double growthStep) {
+        this.growthStep = growthStep;
+    }
+
+    /**
+     * Starts following the heap usage. The collection usage thresholds are
+     * set on all heap pools that support them, and the usage is checked with
+     * the given period.
+     */
+    public synchronized void start(long checkPeriod, TimeUnit unit) {
+        stop();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP)
+                continue;
+            long max = pool.getUsage().getMax();
+            if (max <= 0)
+                continue;
+            if (!pool.isCollectionUsageThresholdSupported())
+                continue;
+            pool.setCollectionUsageThreshold((long) (max * usageThreshold));
+            pools.add(pool);
+        }
+        if (pools.isEmpty())
+            log.warn("No heap memory pool supports collection usage thresholds");
+        NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        emitter.addNotificationListener(listener, null, null);
+
+        checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HeapPressureSizer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        checker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkUsage(getUsageRatio(), getCollectionCount());
+                } catch (RuntimeException e) {
+                    log.error("Could not adjust the cache size", e);
+                }
+            }
+        }, checkPeriod, checkPeriod, unit);
+    }
+
+    /**
+     * Stops following the heap usage and clears the thresholds set by this
+     * sizer. The cache keeps its current size.
+     */
+    public synchronized void stop() {
+        if (checker == null)
+            return;
+        checker.shutdown();
+        checker = null;
+        NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        try {
+            emitter.removeNotificationListener(listener);
+        } catch (ListenerNotFoundException e) {
+            // Not registered, ignore
+        }
+        for (MemoryPoolMXBean pool : pools) {
+            pool.setCollectionUsageThreshold(0);
+        }
+        pools.clear();
+    }
+
+    /**
+     * @return the highest usage ratio (used / max) of the followed pools
+     * after the latest collection
+     */
+    private synchronized double getUsageRatio() {
+        double ratio = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null || usage.getMax() <= 0)
+                continue;
+            ratio = Math.max(ratio, (double) usage.getUsed() / usage.getMax());
+        }
+        return ratio;
+    }
+
+    /**
+     * @return the total amount of garbage collections so far
+     */
+    private static long getCollectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Shrinks the cache, unless it has already been shrunk after the given
+     * collection.
+     * 
+     * @param collectionCount the amount of garbage collections so far
+     */
+    synchronized void collectionThresholdExceeded(long collectionCount) {
+        if (collectionCount == shrunkAtCollection)
+            return;
+        shrunkAtCollection = collectionCount;
+        thresholdExceeded();
+    }
+
+    /**
+     * Shrinks the cache, unless it is already at its minimum size.
+     */
+    synchronized void thresholdExceeded() {
+        int current = cache.getMaximumSize();
+        int size = Math.max(minSize, (int) (current * shrinkFactor));
+        if (size >= current)
+            return;
+        log.info("Heap usage threshold exceeded, shrinking cache from " + current + " to "
+            + size);
+        cache.setMaximumSize(size, LeakCause.MEMORY_PRESSURE);
+    }
+
+    /**
+     * Adjusts the cache size to the given heap usage ratio: shrinks the
+     * cache if the usage is over the threshold and it has not yet been
+     * shrunk after the given collection, and grows it by one step if the
+     * usage is well below the threshold.
+     * 
+     * @param usageRatio the usage ratio after the latest collection
+     * @param collectionCount the amount of garbage collections so far
+     */
+    synchronized void checkUsage(double usageRatio, long collectionCount) {
+        if (usageRatio >= usageThreshold) {
+            collectionThresholdExceeded(collectionCount);
+            return;
+        }
+        int current = cache.getMaximumSize();
+        if (usageRatio >= usageThreshold * recoveryRatio || current >= maxSize)
+            return;
+        int step = Math.max(1, (int) (maxSize * growthStep));
+        int size = (int) Math.min(maxSize, (long) current + step);
+        if (log.isDebugEnabled())
+            log.debug("Heap usage " + usageRatio + ", growing cache from " + current + " to "
+                + size);
+        cache.setMaximumSize(size, LeakCause.EVICTED);
+    }
+
+}
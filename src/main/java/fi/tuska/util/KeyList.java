@@ -0,0 +1,94 @@
+package fi.tuska.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A linked list of keys with constant-time lookup of the list node of a key.
+ * Used by the eviction policies for their LRU and FIFO queues. The head of
+ * the list is the most recently added key.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ */
+class KeyList<K> {
+
+    private final LinkedList<K> list = new LinkedList<K>();
+    private final Map<K, LinkedListNode<K>> nodes = new HashMap<K, LinkedListNode<K>>();
+
+    int size() {
+        return nodes.size();
+    }
+
+    boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    boolean contains(K key) {
+        return nodes.containsKey(key);
+    }
+
+    /** Adds the key to the head of the list */
+    void addFirst(K key) {
+        assert !nodes.containsKey(key) : key + " already in list";
+        nodes.put(key, list.addFirstNode(key));
+    }
+
+    /** Adds the key to the tail of the list */
+    void addLast(K key) {
+        assert !nodes.containsKey(key) : key + " already in list";
+        nodes.put(key, list.addLastNode(key));
+    }
+
+    /**
+     * Moves the key to the head of the list.
+     * 
+     * @return false if the key is not in the list
+     */
+    boolean moveToHead(K key) {
+        LinkedListNode<K> node = nodes.get(key);
+        if (node == null)
+            return false;
+        node.moveToHead();
+        return true;
+    }
+
+    /**
+     * @return true if the key was in the list
+     */
+    boolean remove(K key) {
+        LinkedListNode<K> node = nodes.remove(key);
+        if (node == null)
+            return false;
+        node.remove();
+        return true;
+    }
+
+    /**
+     * Removes the tail of the list.
+     * 
+     * @return the removed key, or null if the list is empty
+     */
+    K removeLast() {
+        if (nodes.isEmpty())
+            return null;
+        K key = list.removeLast();
+        nodes.remove(key);
+        return key;
+    }
+
+    /**
+     * @return the key closest to the tail of the list that is accepted by
+     * the filter (null accepts all), or null if there is no such key
+     */
+    K findLast(Filter<? super K> filter) {
+        for (LinkedListNode<K> node = list.getLastNode(); node != null; node = node
+            .getPrevious()) {
+            if (filter == null || filter.isValid(node.getValue()))
+                return node.getValue();
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,22 @@
+package fi.tuska.util;
+
+/**
+ * The reason why an item was leaked from a leaking map.
+ *
+ * @author thaapasa
+ */
+public enum LeakCause {
+
+    /** The item was evicted to keep the map within its maximum size */
+    EVICTED,
+
+    /** The item expired (its time-to-live or time-to-idle passed) */
+    EXPIRED,
+
+    /**
+     * The item was evicted because the map was shrunk to relieve memory
+     * pressure
+     */
+    MEMORY_PRESSURE;
+
+}
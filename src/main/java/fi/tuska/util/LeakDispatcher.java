@@ -0,0 +1,128 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Queues leak events and hands them to a sink in batches on an executor, so
+ * that the leaking maps can notify their listeners without holding the map
+ * lock. The events are delivered in the order they were submitted; at most
+ * one batch is being delivered at a time. If the executor rejects a drain
+ * task, the events are delivered in the submitting thread.
+ *
+ * @author thaapasa
+ *
+ * @param <E> the type of the queued events
+ */
+class LeakDispatcher<E> {
+
+    private static final Logger log = Logger.getLogger(LeakDispatcher.class);
+
+    /** The maximum amount of events delivered in one batch */
+    public static final int MAX_BATCH_SIZE = 256;
+
+    /** Receives the batches of events */
+    interface Sink<E> {
+        void dispatch(List<E> batch);
+    }
+
+    private final Executor executor;
+    private final Sink<E> sink;
+    private final Queue<E> queue = new ConcurrentLinkedQueue<E>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    /** Events submitted but not yet delivered; guarded by this */
+    private int pending = 0;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    LeakDispatcher(Executor executor, Sink<E> sink) {
+        this.executor = executor;
+        this.sink = sink;
+    }
+
+    /**
+     * Queues the event for delivery.
+     */
+    void submit(E event) {
+        synchronized (this) {
+            pending++;
+        }
+        queue.add(event);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RuntimeException e) {
+                // Deliver the events in this thread instead (this also
+                // clears the draining flag), so that they do not stay
+                // pending forever
+                log.warn("Leak dispatch executor rejected the drain task, draining in caller", e);
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                List<E> batch = new ArrayList<E>();
+                E event;
+                while (batch.size() < MAX_BATCH_SIZE && (event = queue.poll()) != null) {
+                    batch.add(event);
+                }
+                if (batch.isEmpty())
+                    break;
+                try {
+                    sink.dispatch(batch);
+                } catch (RuntimeException e) {
+                    log.error("Leak listener failed for a batch of " + batch.size() + " items", e);
+                } finally {
+                    delivered(batch.size());
+                }
+            }
+        } finally {
+            draining.set(false);
+        }
+        // Events may have been queued after the last poll but before the
+        // draining flag was cleared
+        if (!queue.isEmpty())
+            scheduleDrain();
+    }
+
+    private synchronized void delivered(int amount) {
+        pending -= amount;
+        if (pending == 0)
+            notifyAll();
+    }
+
+    /**
+     * @return the amount of events that have not yet been delivered
+     */
+    synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Waits until there are no undelivered events.
+     */
+    synchronized void awaitPending() throws InterruptedException {
+        while (pending > 0) {
+            wait();
+        }
+    }
+
+}
@@ -1,43 +1,416 @@
 package fi.tuska.util;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implements a map with a maximum size. If the size is exceeded, the oldest
- * value in the map is removed from the map.
+ * value in the map is removed from the map. The size is the amount of
+ * entries by default, but can be changed to be the total weight of the entries
+ * by setting a {@link Weigher}.
+ * 
+ * The map can either track the exact usage order of the entries (LRU), or
+ * approximate it with the CLOCK (second-chance) algorithm. In CLOCK mode a
+ * read only sets the reference bit of the entry, so reads do not modify any
+ * shared structure and are not synchronized. The eviction hand sweeps over
+ * the entries on insert, clearing reference bits, and evicts the first entry
+ * that has not been referenced since the previous sweep.
+ * 
+ * Other eviction policies (such as {@link ArcPolicy}) can be plugged in
+ * through the {@link EvictionPolicy} interface.
+ * 
+ * The W-TinyLFU policy protects the frequently used entries from being
+ * flushed out by scans. New entries enter a small LRU window; when they
+ * leave the window, they are only admitted to the main region if their
+ * estimated access frequency is higher than that of the entry that would be
+ * evicted from the main region to make room for them. The main region is a
+ * segmented LRU with probation and protected segments.
+ * 
+ * Entries can also expire after a given time since they were written
+ * (time-to-live) or last accessed (time-to-idle). Expiration is tracked with
+ * a hierarchical timer wheel that is advanced lazily when the map is
+ * accessed, or periodically by an optional maintenance thread. Expired
+ * entries are never returned, and they are reported to the leak listeners
+ * with the cause {@link LeakCause#EXPIRED} when they are purged.
+ * 
+ * By default the leak listeners are called by the thread that caused the
+ * leak, while it holds the map lock. Alternatively the leaked items can be
+ * queued and handed to the listeners in batches on a separate executor, see
+ * {@link #setLeakDispatchExecutor(Executor)}.
+ * 
+ * The bulk operations {@link #getAll(Object[], Object[])},
+ * {@link #putAll(Map)} and {@link #invalidateAll(Collection)} take the map
+ * lock once for the whole batch, and a bulk put evicts entries only once,
+ * after all the entries have been stored.
+ * 
+ * Missing values can be loaded through the map with
+ * {@link #get(Object, Loader)}. Concurrent misses for the same key share a
+ * single load, and the map lock is not held while the value is loaded.
  * 
  * @author thaapasa
  * 
  * @param <T>
  */
-public class LeakingMap<K, V> {
+public class LeakingMap<K, V> implements ResizableCache {
+
+    /** The eviction policies supported by the map */
+    public enum Policy {
+        /** Exact least recently used order; all operations are synchronized */
+        LRU,
+        /**
+         * Second-chance approximation of LRU; reads are not synchronized, so
+         * the entries are kept in a concurrent map that does not allow null
+         * keys
+         */
+        CLOCK,
+        /** Frequency-based admission to an LRU main region; scan resistant */
+        TINY_LFU,
+        /**
+         * An {@link EvictionPolicy} given to the constructor; {@link LruPolicy}
+         * if the map is created with this constant
+         */
+        CUSTOM
+    };
+
+    /** Regions of the W-TinyLFU policy */
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
 
-    private Map<K, MapEntry> map = new HashMap<K, MapEntry>();
+    /** Concurrent for the lock-free reads of the CLOCK policy */
+    private final Map<K, MapEntry> map;
+    private final Policy policy;
+    /** Usage order of the keys, most recently used first (LRU policy) */
     private LinkedList<K> usageList = new LinkedList<K>();
+    /** The entries on the clock ring (CLOCK policy) */
+    private final List<MapEntry> clockRing = new ArrayList<MapEntry>();
+    private int clockHand = 0;
+    /** Lists and frequency sketch of the W-TinyLFU policy */
+    private LinkedList<K> windowList;
+    private LinkedList<K> probationList;
+    private LinkedList<K> protectedList;
+    private long windowWeight = 0;
+    private long protectedWeight = 0;
+    private FrequencySketch<K> sketch;
+    /** The pluggable policy (CUSTOM policy) */
+    private EvictionPolicy<K> evictionPolicy;
+    /** Maximum total weight of the entries (amount of entries by default) */
     private int maxSize;
-    private final List<LeakEventListener<V>> leakListeners = new ArrayList<LeakEventListener<V>>();
+    private Weigher<? super K, ? super V> weigher = null;
+    private long totalWeight = 0;
+    private final List<LeakEventListener<V>> leakListeners = new CopyOnWriteArrayList<LeakEventListener<V>>();
+    /** Delivers the leak events asynchronously; null for synchronous delivery */
+    private LeakDispatcher<Pair<V, LeakCause>> leakDispatcher = null;
+    /** Default time-to-live of the entries in nanoseconds; 0 = no expiry */
+    private long expireAfterWrite = 0;
+    /** Default time-to-idle of the entries in nanoseconds; 0 = no expiry */
+    private long expireAfterAccess = 0;
+    /** Created when the first expiring entry is added */
+    private TimerWheel<MapEntry> timerWheel = null;
+    /**
+     * Set when the timer wheel is created. Volatile, as the lock-free get of
+     * the CLOCK policy reads it without the lock.
+     */
+    private volatile boolean expiring = false;
+    private ScheduledExecutorService maintenance = null;
+    /** Statistics recorder; null when statistics are not recorded */
+    private volatile StatsCounter stats = null;
+    /** The loads that are currently in progress */
+    private final ConcurrentMap<K, CompletableFuture<V>> loads = new ConcurrentHashMap<K, CompletableFuture<V>>();
 
     public LeakingMap(int size) {
+        this(size, Policy.LRU);
+    }
+
+    public LeakingMap(int size, Policy policy) {
+        this.maxSize = size;
+        this.policy = policy;
+        this.map = policy == Policy.CLOCK ? new ConcurrentHashMap<K, MapEntry>()
+            : new HashMap<K, MapEntry>();
+        if (policy == Policy.CUSTOM)
+            evictionPolicy = new LruPolicy<K>();
+        if (policy == Policy.TINY_LFU) {
+            windowList = new LinkedList<K>();
+            probationList = new LinkedList<K>();
+            protectedList = new LinkedList<K>();
+            sketch = new FrequencySketch<K>(size);
+        }
+    }
+
+    /**
+     * Creates a map that uses the given eviction policy. All operations are
+     * synchronized.
+     */
+    public LeakingMap(int size, EvictionPolicy<K> evictionPolicy) {
         this.maxSize = size;
+        this.policy = Policy.CUSTOM;
+        this.map = new HashMap<K, MapEntry>();
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    public Policy getPolicy() {
+        return policy;
     }
 
     public synchronized Set<K> keySet() {
         return map.keySet();
     }
 
+    /**
+     * Checks whether the map contains the key, without recording an access
+     * or checking the expiry of the entry.
+     */
+    public synchronized boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Returns the entries of the map in recency order, most recently used
+     * first; expired entries are skipped. The order is exact for the LRU
+     * policy. For W-TinyLFU the window comes first, then the protected and
+     * probation segments. For CLOCK the order is approximate: referenced
+     * entries come first, and the entry the hand would evict next comes last.
+     * Custom policies do not expose their order, so the entries are returned
+     * in no particular order.
+     */
+    public synchronized List<Pair<K, V>> getEntriesByRecency() {
+        List<MapEntry> entries = new ArrayList<MapEntry>(map.size());
+        switch (policy) {
+        case CLOCK:
+            int size = clockRing.size();
+            for (int pass = 0; pass < 2; pass++) {
+                boolean referenced = pass == 0;
+                // The entries just behind the hand were passed over most
+                // recently
+                for (int i = 1; i <= size; i++) {
+                    MapEntry entry = clockRing.get(((clockHand - i) % size + size) % size);
+                    if (entry.referenced == referenced)
+                        entries.add(entry);
+                }
+            }
+            break;
+        case TINY_LFU:
+            addEntries(windowList, entries);
+            addEntries(protectedList, entries);
+            addEntries(probationList, entries);
+            break;
+        case CUSTOM:
+            entries.addAll(map.values());
+            break;
+        default:
+            addEntries(usageList, entries);
+        }
+        long now = currentTime();
+        List<Pair<K, V>> result = new ArrayList<Pair<K, V>>(entries.size());
+        for (MapEntry entry : entries) {
+            if (!entry.isExpired(now))
+                result.add(new Pair<K, V>(entry.key, entry.value));
+        }
+        return result;
+    }
+
+    private void addEntries(LinkedList<K> keys, List<MapEntry> entries) {
+        for (K key : keys) {
+            entries.add(map.get(key));
+        }
+    }
+
     public void addLeakEventListener(LeakEventListener<V> listener) {
         leakListeners.add(listener);
     }
 
+    /**
+     * Sets the executor that delivers the leak events to the listeners. When
+     * set, leaked items are queued and delivered in batches through
+     * {@link LeakEventListener#itemsLeaked(List, LeakCause)} on the
+     * executor, so the listeners are not called while the map lock is held.
+     * Use {@link #awaitPendingLeaks()} to wait until the queued items have
+     * been delivered. Setting null restores synchronous delivery; any items
+     * already queued are still delivered.
+     */
+    public synchronized void setLeakDispatchExecutor(Executor executor) {
+        if (executor == null) {
+            leakDispatcher = null;
+            return;
+        }
+        leakDispatcher = new LeakDispatcher<Pair<V, LeakCause>>(executor,
+            new LeakDispatcher.Sink<Pair<V, LeakCause>>() {
+                @Override
+                public void dispatch(List<Pair<V, LeakCause>> batch) {
+                    dispatchLeaks(batch);
+                }
+            });
+    }
+
+    /**
+     * Waits until all the leaked items queued for asynchronous delivery have
+     * been handed to the listeners. Returns immediately if the leak events
+     * are delivered synchronously.
+     */
+    public void awaitPendingLeaks() throws InterruptedException {
+        LeakDispatcher<Pair<V, LeakCause>> dispatcher;
+        synchronized (this) {
+            dispatcher = leakDispatcher;
+        }
+        if (dispatcher != null)
+            dispatcher.awaitPending();
+    }
+
+    /**
+     * Hands a batch of leaked items to the listeners, split into runs of
+     * items with the same leak cause.
+     */
+    private void dispatchLeaks(List<Pair<V, LeakCause>> batch) {
+        int start = 0;
+        while (start < batch.size()) {
+            LeakCause cause = batch.get(start).getSecond();
+            List<V> items = new ArrayList<V>();
+            int i = start;
+            while (i < batch.size() && batch.get(i).getSecond() == cause) {
+                items.add(batch.get(i).getFirst());
+                i++;
+            }
+            for (LeakEventListener<V> listener : leakListeners) {
+                listener.itemsLeaked(items, cause);
+            }
+            start = i;
+        }
+    }
+
+    /**
+     * Sets the weigher that is used to calculate the weights of the entries.
+     * After this, the maximum size of the map is the maximum total weight of
+     * the entries. By default each entry weighs 1, so that the maximum size
+     * is the maximum amount of entries. The weigher can only be changed when
+     * the map is empty.
+     */
+    public synchronized void setWeigher(Weigher<? super K, ? super V> weigher) {
+        if (!map.isEmpty())
+            throw new IllegalStateException("Cannot change weigher of a non-empty map");
+        this.weigher = weigher;
+    }
+
+    /**
+     * Sets the default time-to-live of the entries; entries expire once the
+     * given time has passed since the value was last set. This affects the
+     * entries that are added after this call. Use 0 to disable.
+     */
+    public synchronized void setExpireAfterWrite(long duration, TimeUnit unit) {
+        this.expireAfterWrite = toNanos(duration, unit);
+    }
+
+    /**
+     * Sets the default time-to-idle of the entries; entries expire once the
+     * given time has passed since the entry was last read or written. This
+     * affects the entries that are added after this call. Use 0 to disable.
+     */
+    public synchronized void setExpireAfterAccess(long duration, TimeUnit unit) {
+        this.expireAfterAccess = toNanos(duration, unit);
+    }
+
+    private static long toNanos(long duration, TimeUnit unit) {
+        if (duration < 0)
+            throw new IllegalArgumentException("Negative duration: " + duration);
+        return unit.toNanos(duration);
+    }
+
+    /**
+     * Starts a daemon thread that purges the expired entries periodically.
+     * Without the maintenance thread, expired entries are purged lazily when
+     * the map is modified or read under the map lock.
+     */
+    public synchronized void startMaintenance(long period, TimeUnit unit) {
+        stopMaintenance();
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LeakingMap maintenance");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                cleanUp();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops the maintenance thread, if it is running.
+     */
+    public synchronized void stopMaintenance() {
+        if (maintenance != null) {
+            maintenance.shutdown();
+            maintenance = null;
+        }
+    }
+
+    /**
+     * Purges the expired entries from the map.
+     */
+    public synchronized void cleanUp() {
+        if (timerWheel != null)
+            expireEntries(currentTime());
+    }
+
+    /**
+     * @return the current time in nanoseconds; used for the expiry
+     * calculations
+     */
+    protected long currentTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Starts recording statistics of the map usage. When statistics are not
+     * recorded, no counters are updated.
+     */
+    public synchronized void recordStats() {
+        if (stats == null)
+            stats = new StatsCounter();
+    }
+
+    /**
+     * @return a snapshot of the recorded statistics; all zero if statistics
+     * are not recorded
+     */
+    public CacheStats getStats() {
+        StatsCounter s = stats;
+        return s != null ? s.snapshot() : CacheStats.EMPTY;
+    }
+
     public synchronized void setMaximumSize(int size) {
+        setMaximumSize(size, LeakCause.EVICTED);
+    }
+
+    @Override
+    public synchronized void setMaximumSize(int size, LeakCause cause) {
         this.maxSize = size;
-        ensureCapacity();
+        if (sketch != null && weigher == null)
+            sketch.ensureCapacity(size);
+        ensureCapacity(cause);
     }
 
+    @Override
     public int getMaximumSize() {
         return maxSize;
     }
@@ -46,71 +419,859 @@ public class LeakingMap<K, V> {
         return map.size();
     }
 
-    private synchronized void ensureCapacity() {
-        while (map.size() > maxSize) {
-            // Take the least recently used key from the usage list
-            LinkedListNode<K> last = usageList.removeLastNode();
-            K removeKey = last.getValue();
-            // Remove the key from the backing map
-            MapEntry entry = map.remove(removeKey);
+    /**
+     * @return the total weight of the entries in the map; equals the amount
+     * of entries, if no weigher has been set
+     */
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    private int weigh(K key, V value) {
+        if (weigher == null)
+            return 1;
+        int weight = weigher.weigh(key, value);
+        if (weight < 0)
+            throw new IllegalArgumentException("Negative weight " + weight + " for " + key);
+        return weight;
+    }
+
+    private void ensureCapacity() {
+        ensureCapacity(LeakCause.EVICTED);
+    }
+
+    /**
+     * Evicts entries until the map is within its maximum size.
+     * 
+     * @param cause the cause reported for the evicted entries
+     */
+    private synchronized void ensureCapacity(LeakCause cause) {
+        if (policy == Policy.TINY_LFU)
+            evictFromWindow(cause);
+        while (totalWeight > maxSize && !map.isEmpty()) {
+            MapEntry victim;
+            switch (policy) {
+            case CLOCK:
+                victim = findClockVictim();
+                break;
+            case TINY_LFU:
+                victim = findTinyLfuVictim();
+                break;
+            case CUSTOM:
+                K key = evictionPolicy.chooseVictim(null);
+                if (key == null)
+                    throw new IllegalStateException("Eviction policy chose no victim");
+                victim = map.get(key);
+                break;
+            default:
+                // Take the least recently used key from the usage list
+                victim = map.get(usageList.getLast());
+            }
+            removeEntry(victim, cause);
+        }
+    }
+
+    /**
+     * Records the insertion of a new entry in the usage tracking structures.
+     */
+    private void recordInsert(MapEntry entry) {
+        switch (policy) {
+        case CLOCK:
+            addToClock(entry);
+            break;
+        case TINY_LFU:
+            if (weigher != null)
+                sketch.ensureCapacity(map.size());
+            sketch.increment(entry.key);
+            entry.node = windowList.addFirstNode(entry.key);
+            entry.region = WINDOW;
+            windowWeight += entry.weight;
+            break;
+        case CUSTOM:
+            evictionPolicy.recordInsert(entry.key);
+            break;
+        default:
+            entry.node = usageList.addFirstNode(entry.key);
+        }
+    }
+
+    /**
+     * Records the insertion of a new entry at the cold end of the usage
+     * tracking structures, so that it is the next entry to be evicted.
+     */
+    private void recordColdInsert(MapEntry entry) {
+        switch (policy) {
+        case CLOCK:
+            entry.referenced = false;
+            addToClock(entry);
+            break;
+        case TINY_LFU:
+            if (weigher != null)
+                sketch.ensureCapacity(map.size());
+            entry.node = probationList.addLastNode(entry.key);
+            entry.region = PROBATION;
+            break;
+        case CUSTOM:
+            evictionPolicy.recordColdInsert(entry.key);
+            break;
+        default:
+            entry.node = usageList.addLastNode(entry.key);
+        }
+    }
+
+    /**
+     * Records an access to the entry in the usage tracking structures.
+     */
+    private void recordAccess(MapEntry entry) {
+        switch (policy) {
+        case CLOCK:
+            entry.referenced = true;
+            break;
+        case TINY_LFU:
+            sketch.increment(entry.key);
+            if (entry.region == PROBATION) {
+                promote(entry);
+            } else {
+                entry.node.moveToHead();
+            }
+            break;
+        case CUSTOM:
+            evictionPolicy.recordAccess(entry.key);
+            break;
+        default:
+            // Move the entry to the front of the queue
+            entry.node.moveToHead();
+        }
+    }
+
+    /**
+     * Removes the entry from the usage tracking structures.
+     */
+    private void recordRemove(MapEntry entry) {
+        switch (policy) {
+        case CLOCK:
+            removeFromClock(entry);
+            break;
+        case TINY_LFU:
+            addRegionWeight(entry, -entry.weight);
+            entry.node.remove();
+            break;
+        case CUSTOM:
+            evictionPolicy.recordRemove(entry.key);
+            break;
+        default:
+            entry.node.remove();
+        }
+    }
+
+    /**
+     * Removes the entry from the map and from the usage tracking structures,
+     * and notifies the leak listeners.
+     */
+    private void removeEntry(MapEntry entry, LeakCause cause) {
+        V value = entry.value;
+        discardEntry(entry);
+        if (stats != null)
+            stats.recordLeak(cause);
+        if (leakDispatcher != null) {
+            leakDispatcher.submit(new Pair<V, LeakCause>(value, cause));
+        } else {
             for (LeakEventListener<V> listener : leakListeners) {
-                listener.itemLeaked(entry.value);
+                listener.itemLeaked(value, cause);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry from the map without notifying the leak listeners.
+     */
+    private void discardEntry(MapEntry entry) {
+        recordRemove(entry);
+        if (timerWheel != null)
+            timerWheel.cancel(entry);
+        // Remove the key from the backing map
+        map.remove(entry.key);
+        totalWeight -= entry.weight;
+        entry.clear();
+    }
+
+    /**
+     * Advances the timer wheel and purges the entries that have expired. The
+     * wheel is scheduled by the deadline that was current when the entry was
+     * last written; entries whose idle deadline has moved since are
+     * rescheduled instead of purged.
+     */
+    private void expireEntries(final long now) {
+        timerWheel.advance(now, new Callback<MapEntry>() {
+            @Override
+            public boolean callback(MapEntry entry) {
+                if (entry.isExpired(now)) {
+                    removeEntry(entry, LeakCause.EXPIRED);
+                } else {
+                    timerWheel.schedule(entry, entry.getDeadline());
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Sets the expiry durations of the entry and (re)schedules it on the
+     * timer wheel.
+     */
+    private void scheduleExpiry(MapEntry entry, long now, long afterWrite, long afterAccess) {
+        entry.writeTime = now;
+        entry.accessTime = now;
+        entry.expireAfterWrite = afterWrite;
+        entry.expireAfterAccess = afterAccess;
+        if (!entry.isExpiring()) {
+            if (timerWheel != null)
+                timerWheel.cancel(entry);
+            return;
+        }
+        if (timerWheel == null) {
+            timerWheel = new TimerWheel<MapEntry>(now);
+            expiring = true;
+        }
+        timerWheel.schedule(entry, entry.getDeadline());
+    }
+
+    /**
+     * Advances the clock hand until an entry that has not been referenced
+     * since the last sweep is found. Referenced entries passed by the hand
+     * get their reference bit cleared.
+     */
+    private MapEntry findClockVictim() {
+        assert !clockRing.isEmpty();
+        while (true) {
+            if (clockHand >= clockRing.size())
+                clockHand = 0;
+            MapEntry entry = clockRing.get(clockHand);
+            if (entry.referenced) {
+                // Give the entry a second chance
+                entry.referenced = false;
+                clockHand++;
+            } else {
+                return entry;
             }
-            entry.clear();
         }
     }
 
+    private void addToClock(MapEntry entry) {
+        entry.slot = clockRing.size();
+        clockRing.add(entry);
+    }
+
+    /**
+     * Removes the entry from the ring by moving the last entry of the ring to
+     * its slot.
+     */
+    private void removeFromClock(MapEntry entry) {
+        int lastSlot = clockRing.size() - 1;
+        MapEntry last = clockRing.remove(lastSlot);
+        if (last != entry) {
+            last.slot = entry.slot;
+            clockRing.set(entry.slot, last);
+        }
+        entry.slot = -1;
+    }
+
+    private int getWindowMax() {
+        return Math.max(1, maxSize / 100);
+    }
+
+    private long getProtectedMax() {
+        return (maxSize - getWindowMax()) * 4L / 5;
+    }
+
+    private void addRegionWeight(MapEntry entry, long amount) {
+        if (entry.region == WINDOW)
+            windowWeight += amount;
+        else if (entry.region == PROTECTED)
+            protectedWeight += amount;
+    }
+
+    private MapEntry entryOf(LinkedList<K> list) {
+        return map.get(list.getLast());
+    }
+
+    /**
+     * Moves an accessed entry from the probation segment to the protected
+     * segment. If the protected segment overflows, its least recently used
+     * entries are demoted back to probation.
+     */
+    private void promote(MapEntry entry) {
+        entry.node.remove();
+        protectedList.addFirst(entry.node);
+        entry.region = PROTECTED;
+        protectedWeight += entry.weight;
+        long protectedMax = getProtectedMax();
+        while (protectedWeight > protectedMax && protectedList.getSize() > 1) {
+            MapEntry demoted = entryOf(protectedList);
+            demoted.node.remove();
+            probationList.addFirst(demoted.node);
+            demoted.region = PROBATION;
+            protectedWeight -= demoted.weight;
+        }
+    }
+
+    /**
+     * Moves the entries that overflow the window to the main region. If the
+     * main region is full, the candidate from the window is only admitted if
+     * it has been used more frequently than the victim chosen from the main
+     * region; otherwise the candidate itself is evicted.
+     */
+    private void evictFromWindow(LeakCause cause) {
+        int windowMax = getWindowMax();
+        long mainMax = maxSize - windowMax;
+        while (windowWeight > windowMax) {
+            MapEntry candidate = entryOf(windowList);
+            candidate.node.remove();
+            windowWeight -= candidate.weight;
+            probationList.addFirst(candidate.node);
+            candidate.region = PROBATION;
+            if (totalWeight - windowWeight <= mainMax)
+                continue;
+
+            MapEntry victim = null;
+            if (probationList.getSize() > 1)
+                victim = entryOf(probationList);
+            else if (!protectedList.isEmpty())
+                victim = entryOf(protectedList);
+            if (victim == null)
+                continue;
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                removeEntry(victim, cause);
+            } else {
+                removeEntry(candidate, cause);
+            }
+        }
+    }
+
+    /**
+     * @return the entry to evict when the map is over its size after the
+     * window has been processed; probation entries go first
+     */
+    private MapEntry findTinyLfuVictim() {
+        if (!probationList.isEmpty())
+            return entryOf(probationList);
+        if (!protectedList.isEmpty())
+            return entryOf(protectedList);
+        return entryOf(windowList);
+    }
+
     /**
      * Sets the object with the given key. Any existing value with same key
-     * will be overridden. This method will remove the oldest value if the
-     * size of the backing map exceeds the capacity. The value is marked as
+     * will be overridden. This method will remove the oldest values while the
+     * total weight of the map exceeds the capacity. The value is marked as
      * being the newest value.
      * 
      * @param key the key
      * @param value the object
      */
     public synchronized void put(K key, V value) {
+        put(key, value, expireAfterWrite, expireAfterAccess, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the object with the given key, with expiry times specific to this
+     * entry. These override the default expiry times of the map.
+     * 
+     * @param key the key
+     * @param value the object
+     * @param afterWrite the time-to-live of the entry; 0 = no expiry
+     * @param afterAccess the time-to-idle of the entry; 0 = no expiry
+     * @param unit the unit of the expiry times
+     */
+    public synchronized void put(K key, V value, long afterWrite, long afterAccess,
+        TimeUnit unit) {
+        long now = 0;
+        long writeNanos = toNanos(afterWrite, unit);
+        long accessNanos = toNanos(afterAccess, unit);
+        if (expiring || writeNanos > 0 || accessNanos > 0) {
+            now = currentTime();
+            if (timerWheel != null)
+                expireEntries(now);
+        }
+        if (storeEntry(key, value, now, writeNanos, accessNanos))
+            ensureCapacity();
+    }
+
+    /**
+     * Stores the entries in the map. The lock is taken once for the whole
+     * batch, and entries are evicted only after all the entries have been
+     * stored. If the batch does not fit in the map, some of its own entries
+     * are evicted.
+     * 
+     * @param entries the entries to store
+     */
+    public synchronized void putAll(Map<? extends K, ? extends V> entries) {
+        long now = preparePutBatch();
+        boolean overflow = false;
+        for (Map.Entry<? extends K, ? extends V> e : entries.entrySet()) {
+            overflow |= storeEntry(e.getKey(), e.getValue(), now, expireAfterWrite,
+                expireAfterAccess);
+        }
+        if (overflow)
+            ensureCapacity();
+    }
+
+    /**
+     * Stores the values with the corresponding keys, in the order given. The
+     * lock is taken once for the whole batch, and entries are evicted only
+     * after all the entries have been stored.
+     * 
+     * @param keys the keys
+     * @param values the values, at the same positions as their keys
+     */
+    public synchronized void putAll(K[] keys, V[] values) {
+        if (keys.length != values.length)
+            throw new IllegalArgumentException("Got " + keys.length + " keys but "
+                + values.length + " values");
+        long now = preparePutBatch();
+        boolean overflow = false;
+        for (int i = 0; i < keys.length; i++) {
+            overflow |= storeEntry(keys[i], values[i], now, expireAfterWrite, expireAfterAccess);
+        }
+        if (overflow)
+            ensureCapacity();
+    }
+
+    /**
+     * Purges the expired entries before a batch operation.
+     * 
+     * @return the current time, if entries can expire; otherwise 0
+     */
+    private long prepareBatch() {
+        if (!expiring)
+            return 0;
+        long now = currentTime();
+        if (timerWheel != null)
+            expireEntries(now);
+        return now;
+    }
+
+    /**
+     * Purges the expired entries before storing a batch of entries with the
+     * default expiry times.
+     * 
+     * @return the current time, if entries can expire or the stored entries
+     * will expire; otherwise 0
+     */
+    private long preparePutBatch() {
+        if (!expiring && (expireAfterWrite > 0 || expireAfterAccess > 0))
+            return currentTime();
+        return prepareBatch();
+    }
+
+    /**
+     * Stores the value without evicting any entries.
+     * 
+     * @return true if entries may need to be evicted after this
+     */
+    private boolean storeEntry(K key, V value, long now, long writeNanos, long accessNanos) {
+        if (stats != null)
+            stats.recordPut();
         MapEntry entry = map.get(key);
+        int weight = weigh(key, value);
         if (entry == null) {
-            LinkedListNode<K> node = usageList.addFirstNode(key);
-            entry = new MapEntry(value, node);
+            entry = new MapEntry(key, value);
+            entry.weight = weight;
+            totalWeight += weight;
             map.put(key, entry);
-            ensureCapacity();
+            recordInsert(entry);
+            scheduleExpiry(entry, now, writeNanos, accessNanos);
+            return true;
         } else {
-            entry.node.moveToHead();
+            recordAccess(entry);
             entry.value = value;
+            totalWeight += weight - entry.weight;
+            if (policy == Policy.TINY_LFU)
+                addRegionWeight(entry, weight - entry.weight);
+            entry.weight = weight;
+            scheduleExpiry(entry, now, writeNanos, accessNanos);
+            return totalWeight > maxSize;
+        }
+    }
+
+    /**
+     * Stores a new entry as the first entry to be evicted, if it fits in the
+     * map without evicting other entries. The entry is stored with the
+     * default expiry times. Used to restore entries while the map is in use,
+     * so that the restored entries do not push out the entries that are used.
+     * 
+     * @return true if the entry was stored; false if the key is already in
+     * the map or the entry does not fit
+     */
+    synchronized boolean putCold(K key, V value) {
+        if (map.containsKey(key))
+            return false;
+        int weight = weigh(key, value);
+        if (totalWeight + weight > maxSize)
+            return false;
+        long now = preparePutBatch();
+        if (stats != null)
+            stats.recordPut();
+        MapEntry entry = new MapEntry(key, value);
+        entry.weight = weight;
+        totalWeight += weight;
+        map.put(key, entry);
+        recordColdInsert(entry);
+        scheduleExpiry(entry, now, expireAfterWrite, expireAfterAccess);
+        return true;
+    }
+
+    /**
+     * Removes the entries with the given keys from the map. The removed
+     * values are discarded: the leak listeners are not notified, so this
+     * should be used for values that are known to be stale. The lock is taken
+     * once for the whole batch.
+     * 
+     * @return the amount of entries removed
+     */
+    public synchronized int invalidateAll(Collection<? extends K> keys) {
+        int removed = 0;
+        for (K key : keys) {
+            MapEntry entry = map.get(key);
+            if (entry != null) {
+                discardEntry(entry);
+                removed++;
+            }
         }
+        return removed;
     }
 
     /**
      * Returns the value with the given key. The returned value is marked as
-     * being the newest value.
+     * being the newest value. With the CLOCK policy, this method does not
+     * acquire the lock of the map, and expired entries are left for the next
+     * locked operation to purge.
      * 
      * @param key the key
      * @return the value with the given key, or null, if no such value is
      * found.
      */
-    public synchronized V get(K key) {
+    public V get(K key) {
+        V value = getQuietly(key);
+        StatsCounter s = stats;
+        if (s != null) {
+            if (value != null)
+                s.recordHit();
+            else
+                s.recordMiss();
+        }
+        return value;
+    }
+
+    private V getClock(K key) {
+        MapEntry entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (expiring && entry.isExpiring()) {
+            long now = currentTime();
+            if (entry.isExpired(now))
+                return null;
+            entry.accessTime = now;
+        }
+        // Only write the flag if it is not already set, to avoid
+        // needlessly dirtying the cache line of hot entries
+        if (!entry.referenced)
+            entry.referenced = true;
+        return entry.value;
+    }
+
+    private synchronized V getLocked(K key) {
+        return lookup(key, prepareBatch());
+    }
+
+    /**
+     * Finds the value and records the access. Called with the lock held.
+     * 
+     * @param now the current time, if entries can expire
+     */
+    private V lookup(K key, long now) {
         MapEntry entry = map.get(key);
         if (entry == null) {
             return null;
         }
-        // Move the entry to the front of the queue
-        entry.node.moveToHead();
+        if (expiring) {
+            if (entry.isExpired(now)) {
+                removeEntry(entry, LeakCause.EXPIRED);
+                return null;
+            }
+            entry.accessTime = now;
+        }
+        recordAccess(entry);
         return entry.value;
     }
 
+    /**
+     * Looks up the values of the given keys. The lock is taken once for the
+     * whole batch (with the CLOCK policy, no lock is taken). Each found value
+     * is marked as being used, in the order of the keys.
+     * 
+     * @param keys the keys to look up
+     * @param values receives the found values at the same positions as
+     * their keys; null for the keys that were not found
+     * @return the amount of values found
+     */
+    public int getAll(K[] keys, V[] values) {
+        if (values.length < keys.length)
+            throw new IllegalArgumentException("Result array is too short: " + values.length
+                + " < " + keys.length);
+        int found = 0;
+        if (policy == Policy.CLOCK) {
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = getClock(keys[i]);
+                if (values[i] != null)
+                    found++;
+            }
+        } else {
+            synchronized (this) {
+                long now = prepareBatch();
+                for (int i = 0; i < keys.length; i++) {
+                    values[i] = lookup(keys[i], now);
+                    if (values[i] != null)
+                        found++;
+                }
+            }
+        }
+        recordBatch(found, keys.length - found);
+        return found;
+    }
+
+    /**
+     * Looks up the values of the given keys, taking the lock once for the
+     * whole batch.
+     * 
+     * @return the found values by their keys; the keys that were not found
+     * are not included
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> result = new HashMap<K, V>();
+        if (policy == Policy.CLOCK) {
+            for (K key : keys) {
+                V value = getClock(key);
+                if (value != null)
+                    result.put(key, value);
+            }
+        } else {
+            synchronized (this) {
+                long now = prepareBatch();
+                for (K key : keys) {
+                    V value = lookup(key, now);
+                    if (value != null)
+                        result.put(key, value);
+                }
+            }
+        }
+        recordBatch(result.size(), keys.size() - result.size());
+        return result;
+    }
+
+    private void recordBatch(int hits, int misses) {
+        StatsCounter s = stats;
+        if (s != null) {
+            s.recordHits(hits);
+            s.recordMisses(misses);
+        }
+    }
+
+    /**
+     * Returns the value with the given key, loading it with the loader if it
+     * is not in the map. The loaded value is stored in the map. If other
+     * threads are already loading the same key, this waits for their load to
+     * finish instead of starting a new one.
+     * 
+     * @return the value, or null if the loader returned null
+     * @throws ExecutionException if the loader threw an exception
+     */
+    public V get(K key, Loader<? super K, ? extends V> loader) throws ExecutionException {
+        V value = get(key);
+        if (value != null)
+            return value;
+        CompletableFuture<V> future = new CompletableFuture<V>();
+        CompletableFuture<V> existing = loads.putIfAbsent(key, future);
+        if (existing == null) {
+            // This thread is responsible for the load
+            load(key, loader, future);
+        } else {
+            future = existing;
+        }
+        return getLoaded(future);
+    }
+
+    /**
+     * Returns the value with the given key, loading it asynchronously if it
+     * is not in the map. Loads are run in the common fork-join pool.
+     * 
+     * @see #getAsync(Object, Loader, Executor)
+     */
+    public Future<V> getAsync(K key, Loader<? super K, ? extends V> loader) {
+        return getAsync(key, loader, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the value with the given key, loading it with the loader in
+     * the given executor if it is not in the map. Concurrent misses for the
+     * same key share the same future.
+     * 
+     * @return a future for the value; already completed if the value was
+     * found in the map
+     * @throws RejectedExecutionException if the executor does not accept
+     * the load; the future shared with concurrent misses then fails with
+     * the same exception
+     */
+    public Future<V> getAsync(final K key, final Loader<? super K, ? extends V> loader,
+        Executor executor) {
+        V value = get(key);
+        if (value != null)
+            return CompletableFuture.completedFuture(value);
+        final CompletableFuture<V> future = new CompletableFuture<V>();
+        CompletableFuture<V> existing = loads.putIfAbsent(key, future);
+        if (existing != null)
+            return existing;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load(key, loader, future);
+                }
+            });
+        } catch (RuntimeException e) {
+            // The load never runs, so later misses must start a new one
+            loads.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Loads the value and stores it in the map, and then completes the
+     * future. Called without holding the map lock, by the thread that
+     * registered the future.
+     */
+    private void load(K key, Loader<? super K, ? extends V> loader, CompletableFuture<V> future) {
+        try {
+            // Another thread may have stored the value between our miss and
+            // the registration of the load
+            V value = getQuietly(key);
+            if (value == null) {
+                long start = System.nanoTime();
+                try {
+                    value = loader.load(key);
+                } catch (Exception e) {
+                    if (stats != null)
+                        stats.recordLoadFailure(System.nanoTime() - start);
+                    throw e;
+                }
+                if (stats != null)
+                    stats.recordLoadSuccess(System.nanoTime() - start);
+                if (value != null)
+                    put(key, value);
+            }
+            // Remove the load only after the value is in the map, so that
+            // subsequent misses cannot start a new load
+            loads.remove(key, future);
+            future.complete(value);
+        } catch (Throwable e) {
+            loads.remove(key, future);
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Returns the value without recording a hit or a miss.
+     */
+    private V getQuietly(K key) {
+        return policy == Policy.CLOCK ? getClock(key) : getLocked(key);
+    }
+
+    private V getLoaded(CompletableFuture<V> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // The load is shared with other threads, so keep waiting
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
     public interface LeakEventListener<V> {
         public void itemLeaked(V item);
+
+        /**
+         * Notifies the listener that an item has left the map for the given
+         * reason. By default this calls {@link #itemLeaked(Object)}.
+         */
+        public default void itemLeaked(V item, LeakCause cause) {
+            itemLeaked(item);
+        }
+
+        /**
+         * Notifies the listener that a batch of items has left the map for
+         * the given reason. Only used when the leak events are delivered
+         * asynchronously. By default this calls
+         * {@link #itemLeaked(Object, LeakCause)} for each item.
+         */
+        public default void itemsLeaked(List<V> items, LeakCause cause) {
+            for (V item : items) {
+                itemLeaked(item, cause);
+            }
+        }
     }
 
-    private class MapEntry {
-        public V value;
+    private class MapEntry extends TimerWheel.Node {
+        public final K key;
+        public volatile V value;
         public LinkedListNode<K> node;
+        public int weight;
+        /** The region of the entry (W-TinyLFU policy) */
+        public int region;
+        /** Position on the clock ring (CLOCK policy) */
+        public int slot = -1;
+        /** Reference bit, set on access (CLOCK policy) */
+        public volatile boolean referenced = true;
+        /** Expiry durations in nanoseconds; 0 = no expiry */
+        public long expireAfterWrite;
+        public long expireAfterAccess;
+        public long writeTime;
+        public volatile long accessTime;
 
-        public MapEntry(V value, LinkedListNode<K> node) {
+        public MapEntry(K key, V value) {
+            this.key = key;
             this.value = value;
-            this.node = node;
+        }
+
+        public boolean isExpiring() {
+            return expireAfterWrite > 0 || expireAfterAccess > 0;
+        }
+
+        public boolean isExpired(long now) {
+            return (expireAfterWrite > 0 && now - writeTime >= expireAfterWrite)
+                || (expireAfterAccess > 0 && now - accessTime >= expireAfterAccess);
+        }
+
+        /**
+         * @return the time when this entry expires, if it is not accessed
+         * before that
+         */
+        public long getDeadline() {
+            if (expireAfterWrite == 0)
+                return accessTime + expireAfterAccess;
+            long deadline = writeTime + expireAfterWrite;
+            if (expireAfterAccess > 0 && accessTime + expireAfterAccess - deadline < 0)
+                deadline = accessTime + expireAfterAccess;
+            return deadline;
         }
 
         public void clear() {
@@ -0,0 +1,225 @@
+package fi.tuska.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the contents of a {@link LeakingMap} to a snapshot file and loads
+ * them back, so that a restarted service can start with a warm map. The keys
+ * are written in recency order, most recently used first. The values are
+ * written as well if a value codec is given; otherwise they are loaded with
+ * a {@link Loader} when the snapshot is read back.
+ *
+ * Loading inserts the entries most recently used first, each at the cold end
+ * of the map (the end that is evicted first), so the restored entries keep
+ * their order from the snapshot but are evicted before any entry that was
+ * added or used since the start. Loading stops when the map is full, so
+ * restoring never evicts anything. The entries are inserted in batches under
+ * the map lock. Keys that are already in the map are skipped, so a snapshot
+ * can be loaded in the background (see
+ * {@link #loadAsync(LeakingMap, File, Executor)}) while the map is already
+ * serving, without overwriting fresher values.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public class LeakingMapSnapshot<K, V> {
+
+    private static final Logger log = Logger.getLogger(LeakingMapSnapshot.class);
+
+    /** Identifies the snapshot files ("LMS1") */
+    private static final int MAGIC = 0x4C4D5331;
+    /** Amount of entries inserted while holding the map lock */
+    private static final int BATCH_SIZE = 1000;
+
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private Loader<? super K, ? extends V> loader = null;
+
+    /**
+     * Creates a snapshot handler that only stores the keys. A loader must be
+     * set before snapshots can be loaded.
+     */
+    public LeakingMapSnapshot(Codec<K> keyCodec) {
+        this(keyCodec, null);
+    }
+
+    /**
+     * Creates a snapshot handler that stores both the keys and the values.
+     */
+    public LeakingMapSnapshot(Codec<K> keyCodec, Codec<V> valueCodec) {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * Sets the loader used for the values of snapshots that only contain
+     * keys.
+     */
+    public void setLoader(Loader<? super K, ? extends V> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Writes the entries of the map to the file. The file is written under a
+     * temporary name and then renamed, so a crash during writing does not
+     * destroy the previous snapshot.
+     *
+     * @return the amount of entries written
+     */
+    public int write(LeakingMap<K, V> map, File file) throws IOException {
+        List<Pair<K, V>> entries = map.getEntriesByRecency();
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeBoolean(valueCodec != null);
+            out.writeInt(entries.size());
+            for (Pair<K, V> entry : entries) {
+                keyCodec.write(entry.getFirst(), out);
+                if (valueCodec != null)
+                    valueCodec.write(entry.getSecond(), out);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (log.isDebugEnabled())
+            log.debug("Wrote " + entries.size() + " entries to " + file);
+        return entries.size();
+    }
+
+    /**
+     * Loads the snapshot into the map. At most as many entries as the
+     * maximum size of the map are loaded (the most recently used ones), so
+     * that loading does not leak entries when the entries weigh one or more.
+     *
+     * @return the amount of entries inserted into the map
+     */
+    public int load(LeakingMap<K, V> map, File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file)));
+        List<K> keys;
+        List<V> values;
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a snapshot file: " + file);
+            boolean hasValues = in.readBoolean();
+            if (hasValues && valueCodec == null)
+                throw new IOException("Snapshot " + file + " contains values but no codec is set");
+            if (!hasValues && loader == null)
+                throw new IllegalStateException("Snapshot " + file
+                    + " contains no values and no loader is set");
+            int count = Math.min(in.readInt(), map.getMaximumSize());
+            keys = new ArrayList<K>(count);
+            values = hasValues ? new ArrayList<V>(count) : null;
+            for (int i = 0; i < count; i++) {
+                keys.add(keyCodec.read(in));
+                if (hasValues)
+                    values.add(valueCodec.read(in));
+            }
+        } finally {
+            in.close();
+        }
+
+        int loaded = values != null ? insertValues(map, keys, values) : loadValues(map, keys);
+        if (log.isDebugEnabled())
+            log.debug("Loaded " + loaded + " entries from " + file);
+        return loaded;
+    }
+
+    /**
+     * Loads the snapshot into the map in the background. The map can be used
+     * normally while the snapshot is being loaded.
+     *
+     * @return a future for the amount of entries inserted into the map
+     */
+    public Future<Integer> loadAsync(final LeakingMap<K, V> map, final File file,
+        Executor executor) {
+        final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(load(map, file));
+                } catch (Throwable e) {
+                    log.warn("Could not load snapshot " + file, e);
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Inserts the entries, most recently used first, until the map is full.
+     */
+    private int insertValues(LeakingMap<K, V> map, List<K> keys, List<V> values) {
+        int inserted = 0;
+        int i = 0;
+        while (i < keys.size()) {
+            synchronized (map) {
+                for (int n = 0; n < BATCH_SIZE && i < keys.size(); n++, i++) {
+                    K key = keys.get(i);
+                    if (map.containsKey(key))
+                        continue;
+                    if (!map.putCold(key, values.get(i)))
+                        return inserted;
+                    inserted++;
+                }
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Loads the values with the loader and inserts them, most recently used
+     * first, until the map is full. The values are loaded without holding
+     * the map lock; failed loads are skipped.
+     */
+    private int loadValues(LeakingMap<K, V> map, List<K> keys) {
+        int inserted = 0;
+        for (K key : keys) {
+            if (map.containsKey(key))
+                continue;
+            if (map.getTotalWeight() >= map.getMaximumSize())
+                break;
+            V value;
+            try {
+                value = loader.load(key);
+            } catch (Exception e) {
+                log.warn("Could not load " + key + " from snapshot", e);
+                continue;
+            }
+            if (value != null) {
+                synchronized (map) {
+                    if (map.containsKey(key))
+                        continue;
+                    if (!map.putCold(key, value))
+                        break;
+                    inserted++;
+                }
+            }
+        }
+        return inserted;
+    }
+
+}
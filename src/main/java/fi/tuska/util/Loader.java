@@ -0,0 +1,23 @@
+package fi.tuska.util;
+
+/**
+ * Loads values for keys that are missing from a cache, from disk for
+ * example.
+ * 
+ * @author thaapasa
+ * 
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public interface Loader<K, V> {
+
+    /**
+     * Loads the value for the given key.
+     * 
+     * @param key the key
+     * @return the loaded value, or null if there is no value for the key
+     * @throws Exception if the loading fails
+     */
+    V load(K key) throws Exception;
+
+}
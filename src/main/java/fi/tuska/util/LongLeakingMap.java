@@ -0,0 +1,376 @@
+package fi.tuska.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import fi.tuska.util.LeakingMap.LeakEventListener;
+
+/**
+ * A leaking map with primitive long keys (such as page numbers). Like
+ * {@link LeakingMap} with the LRU policy, the least recently used entry is
+ * leaked when the maximum size is exceeded, and the leak listeners are
+ * notified of it.
+ *
+ * The entries are stored in parallel arrays that are allocated when the map
+ * is created, so the keys are not boxed and no objects are allocated per
+ * entry or per operation. The keys are mapped to the entry slots with a
+ * {@link LongSlotTable}. The usage order is a doubly linked list whose
+ * previous and next links are slot indices.
+ *
+ * All operations are synchronized.
+ *
+ * @author thaapasa
+ *
+ * @param <V> the type of values
+ */
+public class LongLeakingMap<V> {
+
+    /** Marks the end of a slot list */
+    private static final int NONE = -1;
+
+    private int maxSize;
+    private int size = 0;
+
+    /** Entry slots */
+    private long[] keys;
+    private Object[] values;
+    /** Usage order links; next is also used to link the free slots */
+    private int[] prev;
+    private int[] next;
+    /** Most recently used slot */
+    private int head = NONE;
+    /** Least recently used slot */
+    private int tail = NONE;
+    /** First free slot */
+    private int free;
+
+    /** Maps the keys to their slots */
+    private LongSlotTable table;
+
+    /** Statistics recorder; null when statistics are not recorded */
+    private StatsCounter stats = null;
+    private final List<LeakEventListener<V>> leakListeners = new CopyOnWriteArrayList<LeakEventListener<V>>();
+
+    public LongLeakingMap(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("Invalid size " + size);
+        allocate(size);
+    }
+
+    private void allocate(int size) {
+        this.maxSize = size;
+        keys = new long[size];
+        values = new Object[size];
+        prev = new int[size];
+        next = new int[size];
+        for (int i = 0; i < size; i++) {
+            next[i] = i + 1 < size ? i + 1 : NONE;
+        }
+        free = 0;
+        head = NONE;
+        tail = NONE;
+        this.size = 0;
+        table = new LongSlotTable(keys);
+    }
+
+    public void addLeakEventListener(LeakEventListener<V> listener) {
+        leakListeners.add(listener);
+    }
+
+    /**
+     * Starts recording statistics of the map usage.
+     */
+    public synchronized void recordStats() {
+        if (stats == null)
+            stats = new StatsCounter();
+    }
+
+    /**
+     * @return a snapshot of the recorded statistics; all zero if statistics
+     * are not recorded
+     */
+    public synchronized CacheStats getStats() {
+        return stats != null ? stats.snapshot() : CacheStats.EMPTY;
+    }
+
+    /**
+     * Changes the maximum size of the map. If the map shrinks, the least
+     * recently used entries are leaked. The entry arrays are reallocated, so
+     * this should not be called often.
+     */
+    public synchronized void setMaximumSize(int newSize) {
+        if (newSize < 1)
+            throw new IllegalArgumentException("Invalid size " + newSize);
+        while (size > newSize) {
+            evict();
+        }
+        // Reinsert the remaining entries, least recently used first
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldPrev = prev;
+        int slot = tail;
+        allocate(newSize);
+        while (slot != NONE) {
+            insert(oldKeys[slot], oldValues[slot]);
+            slot = oldPrev[slot];
+        }
+    }
+
+    public synchronized int getMaximumSize() {
+        return maxSize;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the keys of the map, most recently used first
+     */
+    public synchronized long[] keys() {
+        long[] result = new long[size];
+        int i = 0;
+        for (int slot = head; slot != NONE; slot = next[slot]) {
+            result[i++] = keys[slot];
+        }
+        return result;
+    }
+
+    public synchronized boolean containsKey(long key) {
+        return table.find(key) != NONE;
+    }
+
+    /**
+     * Returns the value with the given key, and marks it as the most recently
+     * used value.
+     *
+     * @return the value, or null if no such value is found
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V get(long key) {
+        int slot = table.find(key);
+        if (slot == NONE) {
+            if (stats != null)
+                stats.recordMiss();
+            return null;
+        }
+        if (stats != null)
+            stats.recordHit();
+        moveToHead(slot);
+        return (V) values[slot];
+    }
+
+    /**
+     * Looks up the values of the given keys while holding the lock once.
+     * Each found value is marked as used, in the order of the keys.
+     *
+     * @param result receives the found values at the same positions as
+     * their keys; null for the keys that were not found
+     * @return the amount of values found
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized int getAll(long[] keys, V[] result) {
+        if (result.length < keys.length)
+            throw new IllegalArgumentException("Result array is too short: " + result.length
+                + " < " + keys.length);
+        int found = 0;
+        for (int i = 0; i < keys.length; i++) {
+            int slot = table.find(keys[i]);
+            if (slot == NONE) {
+                result[i] = null;
+            } else {
+                moveToHead(slot);
+                result[i] = (V) values[slot];
+                found++;
+            }
+        }
+        if (stats != null) {
+            stats.recordHits(found);
+            stats.recordMisses(keys.length - found);
+        }
+        return found;
+    }
+
+    /**
+     * Stores the values with the corresponding keys, in the order given,
+     * while holding the lock once. The space for the new keys is made by
+     * leaking the least recently used entries outside the batch at once,
+     * before the values are stored. If the batch does not fit in the map,
+     * some of its own entries are leaked as well.
+     */
+    public synchronized void putAll(long[] keys, V[] newValues) {
+        if (keys.length != newValues.length)
+            throw new IllegalArgumentException("Got " + keys.length + " keys but "
+                + newValues.length + " values");
+        long[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        int missing = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if ((i == 0 || sorted[i] != sorted[i - 1]) && table.find(sorted[i]) == NONE)
+                missing++;
+        }
+        // Mark the keys of the batch that are already in the map as used,
+        // so that only entries outside the batch are leaked
+        for (long key : keys) {
+            int slot = table.find(key);
+            if (slot != NONE)
+                moveToHead(slot);
+        }
+        while (size + missing > maxSize && tail != NONE
+            && Arrays.binarySearch(sorted, this.keys[tail]) < 0) {
+            evict();
+        }
+        for (int i = 0; i < keys.length; i++) {
+            store(keys[i], newValues[i]);
+        }
+    }
+
+    /**
+     * Removes the values with the given keys while holding the lock once.
+     * The leak listeners are not notified.
+     *
+     * @return the amount of values removed
+     */
+    public synchronized int invalidateAll(long[] keys) {
+        int removed = 0;
+        for (long key : keys) {
+            int slot = table.find(key);
+            if (slot != NONE) {
+                removeSlot(slot);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Sets the value with the given key. Any existing value with the same key
+     * is replaced. If the map is full, the least recently used value is
+     * leaked. The value is marked as the most recently used value.
+     */
+    public synchronized void put(long key, V value) {
+        store(key, value);
+    }
+
+    private void store(long key, V value) {
+        if (stats != null)
+            stats.recordPut();
+        int slot = table.find(key);
+        if (slot != NONE) {
+            values[slot] = value;
+            moveToHead(slot);
+            return;
+        }
+        // A leak listener might have added entries, so check again after
+        // each eviction
+        while (size >= maxSize) {
+            evict();
+        }
+        insert(key, value);
+    }
+
+    /**
+     * Removes the value with the given key. The leak listeners are not
+     * notified.
+     *
+     * @return the removed value, or null if no such value was found
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(long key) {
+        int slot = table.find(key);
+        if (slot == NONE)
+            return null;
+        V value = (V) values[slot];
+        removeSlot(slot);
+        return value;
+    }
+
+    /**
+     * Removes all values from the map. The leak listeners are not notified.
+     */
+    public synchronized void clear() {
+        while (head != NONE) {
+            removeSlot(head);
+        }
+    }
+
+    private void insert(long key, Object value) {
+        int slot = free;
+        assert slot != NONE;
+        free = next[slot];
+        keys[slot] = key;
+        values[slot] = value;
+        prev[slot] = NONE;
+        next[slot] = head;
+        if (head != NONE)
+            prev[head] = slot;
+        head = slot;
+        if (tail == NONE)
+            tail = slot;
+        table.insert(slot);
+        size++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void evict() {
+        int slot = tail;
+        assert slot != NONE;
+        V value = (V) values[slot];
+        removeSlot(slot);
+        if (stats != null)
+            stats.recordLeak(LeakCause.EVICTED);
+        for (LeakEventListener<V> listener : leakListeners) {
+            listener.itemLeaked(value, LeakCause.EVICTED);
+        }
+    }
+
+    private void removeSlot(int slot) {
+        table.delete(keys[slot]);
+        unlink(slot);
+        values[slot] = null;
+        next[slot] = free;
+        free = slot;
+        size--;
+    }
+
+    private void moveToHead(int slot) {
+        if (slot == head)
+            return;
+        unlink(slot);
+        prev[slot] = NONE;
+        next[slot] = head;
+        if (head != NONE)
+            prev[head] = slot;
+        head = slot;
+        if (tail == NONE)
+            tail = slot;
+    }
+
+    private void unlink(int slot) {
+        int p = prev[slot];
+        int n = next[slot];
+        if (p != NONE)
+            next[p] = n;
+        else
+            head = n;
+        if (n != NONE)
+            prev[n] = p;
+        else
+            tail = p;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("[");
+        for (int slot = head; slot != NONE; slot = next[slot]) {
+            if (slot != head)
+                b.append(", ");
+            b.append(keys[slot]).append(":").append(values[slot]);
+        }
+        b.append("]");
+        return b.toString();
+    }
+
+}
@@ -0,0 +1,93 @@
+package fi.tuska.util;
+
+/**
+ * A hash table from primitive long keys to slot indices, for the structures
+ * that store their entries in parallel arrays ({@link LongLeakingMap} and
+ * {@link FrameBufferPool}). The keys are read from the key array of the
+ * owner, so the table only stores the slot indices. The table uses open
+ * addressing with linear probing, and its load factor is at most 0.5.
+ *
+ * Note that this class is not thread-safe!
+ *
+ * @author thaapasa
+ */
+class LongSlotTable {
+
+    /** Returned by {@link #find(long)} when the key is not in the table */
+    static final int NONE = -1;
+
+    /** Keys of the slots, owned by the caller */
+    private final long[] keys;
+    /** Slot index + 1; 0 marks an empty bucket */
+    private final int[] table;
+    private final int mask;
+
+    /**
+     * @param keys the keys of the slots; the length of the array is the
+     * amount of slots
+     */
+    LongSlotTable(long[] keys) {
+        this.keys = keys;
+        int tableSize = Integer.highestOneBit(Math.max(keys.length, 2) - 1) << 2;
+        this.table = new int[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    /**
+     * @return the slot of the key, or NONE if the key is not in the table
+     */
+    int find(long key) {
+        int bucket = bucketOf(key);
+        while (true) {
+            int slot = table[bucket] - 1;
+            if (slot == NONE)
+                return NONE;
+            if (keys[slot] == key)
+                return slot;
+            bucket = (bucket + 1) & mask;
+        }
+    }
+
+    /**
+     * Adds the slot to the table. The key of the slot must already be set,
+     * and must not be in the table.
+     */
+    void insert(int slot) {
+        int bucket = bucketOf(keys[slot]);
+        while (table[bucket] != 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        table[bucket] = slot + 1;
+    }
+
+    /**
+     * Deletes the key from the table, shifting the following entries of the
+     * probe sequence back so that no tombstones are needed. The key must be
+     * in the table, and its slot must still have the key.
+     */
+    void delete(long key) {
+        int bucket = bucketOf(key);
+        while (keys[table[bucket] - 1] != key) {
+            bucket = (bucket + 1) & mask;
+        }
+        int hole = bucket;
+        int current = (hole + 1) & mask;
+        while (table[current] != 0) {
+            int home = bucketOf(keys[table[current] - 1]);
+            // Move the entry to the hole, unless its home bucket is
+            // (cyclically) after the hole
+            if (((current - home) & mask) >= ((current - hole) & mask)) {
+                table[hole] = table[current];
+                hole = current;
+            }
+            current = (current + 1) & mask;
+        }
+        table[hole] = 0;
+    }
+
+    private int bucketOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+}
@@ -0,0 +1,207 @@
+package fi.tuska.util;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link SortedList} with primitive long keys, stored in pages as
+ * described in {@link PagedSortedList}.
+ *
+ * No key is ever boxed, and the entries are read through a {@link Cursor}
+ * instead of {@link Pair} objects:
+ *
+ * <pre>
+ * for (LongSortedList&lt;V&gt;.Cursor c = list.cursor(); c.isValid(); c.next()) {
+ *     long key = c.key();
+ *     V value = c.value();
+ * }
+ * </pre>
+ *
+ * Note that this class is not thread-safe! A cursor becomes invalid when the
+ * list is modified, except through the cursor itself.
+ *
+ * @author thaapasa
+ *
+ * @param <V> the type or values
+ */
+public class LongSortedList<V> extends PagedSortedList<V> {
+
+    public LongSortedList() {
+    }
+
+    @Override
+    protected String keyToString(long sortKey) {
+        return Long.toString(sortKey);
+    }
+
+    /**
+     * @return true if this list contains any value with the given key
+     */
+    public boolean contains(long key) {
+        return containsSortKey(key);
+    }
+
+    /**
+     * @throws NoSuchElementException if the list is empty
+     */
+    public long getFirstKey() {
+        return getFirstSortKey();
+    }
+
+    /**
+     * @throws NoSuchElementException if the list is empty
+     */
+    public long getLastKey() {
+        return getLastSortKey();
+    }
+
+    /**
+     * @return always a non-null list
+     */
+    public List<V> getAll(long key) {
+        return getAllBySortKey(key);
+    }
+
+    /**
+     * @return null if not found
+     */
+    public V getFirst(long key) {
+        return getFirstBySortKey(key);
+    }
+
+    /**
+     * @return null if not found
+     */
+    public V getLast(long key) {
+        return getLastBySortKey(key);
+    }
+
+    /**
+     * Returns the last value with the greatest key that is less than or equal
+     * to the given key. Use {@link #floor(long)} to find out the key as well.
+     *
+     * @return null if not found
+     */
+    public V getLastFloor(long key) {
+        return getLastFloorBySortKey(key);
+    }
+
+    /**
+     * Returns the values with the greatest key less than or equal to the
+     * given key.
+     *
+     * @return always a non-null list
+     */
+    public List<V> getAllFloor(long key) {
+        return getAllFloorBySortKey(key);
+    }
+
+    /**
+     * Returns the first value with the least key that is greater than or
+     * equal to the given key. Use {@link #ceiling(long)} to find out the key
+     * as well.
+     *
+     * @return null if not found
+     */
+    public V getFirstCeiling(long key) {
+        return getFirstCeilingBySortKey(key);
+    }
+
+    /**
+     * Returns the values with the least key greater than or equal to the
+     * given key.
+     *
+     * @return always a non-null list
+     */
+    public List<V> getAllCeiling(long key) {
+        return getAllCeilingBySortKey(key);
+    }
+
+    /**
+     * Adds the value with the given key.
+     *
+     * @throw IllegalArgumentException if the value is null
+     */
+    public void add(long key, V value) {
+        addBySortKey(key, value);
+    }
+
+    /**
+     * @return the value removed; or null if not found in list
+     */
+    public V removeFirst(long key) {
+        return removeFirstBySortKey(key);
+    }
+
+    /**
+     * Removes one entry with the given key and value.
+     *
+     * @return true if an entry was removed
+     */
+    public boolean remove(long key, V value) {
+        return removeBySortKey(key, value);
+    }
+
+    /**
+     * @return a cursor at the first entry; invalid if the list is empty
+     */
+    public Cursor cursor() {
+        Cursor c = new Cursor();
+        c.seekFirst();
+        return c;
+    }
+
+    /**
+     * @return a cursor at the last entry with the greatest key less than or
+     * equal to the given key; invalid if there is no such entry
+     */
+    public Cursor floor(long key) {
+        Cursor c = new Cursor();
+        c.seekFloor(key);
+        return c;
+    }
+
+    /**
+     * @return a cursor at the first entry with the least key greater than or
+     * equal to the given key; invalid if there is no such entry
+     */
+    public Cursor ceiling(long key) {
+        Cursor c = new Cursor();
+        c.seekCeiling(key);
+        return c;
+    }
+
+    /**
+     * A position in the list; see {@link PagedSortedList.PageCursor}.
+     */
+    public class Cursor extends PageCursor {
+
+        private Cursor() {
+        }
+
+        public long key() {
+            return sortKey();
+        }
+
+        /**
+         * Moves to the first entry with the least key greater than or equal
+         * to the given key.
+         *
+         * @return true if there is such an entry
+         */
+        public boolean seekCeiling(long key) {
+            return seekCeilingSortKey(key);
+        }
+
+        /**
+         * Moves to the last entry with the greatest key less than or equal to
+         * the given key.
+         *
+         * @return true if there is such an entry
+         */
+        public boolean seekFloor(long key) {
+            return seekFloorSortKey(key);
+        }
+    }
+
+}
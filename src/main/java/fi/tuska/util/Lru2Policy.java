@@ -0,0 +1,144 @@
+package fi.tuska.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The LRU-2 eviction policy (LRU-K with K = 2). The victim is the key whose
+ * second most recent use is the oldest. Keys that have been used only once
+ * are evicted before the others, in LRU order, so a single scan cannot flush
+ * out the keys that are used repeatedly.
+ *
+ * The use times of evicted keys are remembered for a limited amount of keys
+ * (the retained information), so a key that is loaded again soon after its
+ * eviction keeps its history.
+ *
+ * Keys inserted cold are kept apart until they are used, and they are
+ * evicted first, the oldest first, without being added to the retained
+ * information. The first use of a cold key is handled as its insert.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ */
+public class Lru2Policy<K> implements EvictionPolicy<K> {
+
+    private static class Entry<K> implements Comparable<Entry<K>> {
+        private final K key;
+        /** Time of the second most recent use; 0 if used only once */
+        private long penultimate;
+        private long last;
+
+        private Entry(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Entry<K> o) {
+            if (penultimate != o.penultimate)
+                return penultimate < o.penultimate ? -1 : 1;
+            // The use times are unique, so this orders all entries
+            return last < o.last ? -1 : (last == o.last ? 0 : 1);
+        }
+    }
+
+    private final Map<K, Entry<K>> entries = new HashMap<K, Entry<K>>();
+    /** Entries in eviction order */
+    private final TreeSet<Entry<K>> order = new TreeSet<Entry<K>>();
+    /** Use times of evicted keys */
+    private final Map<K, Entry<K>> history;
+    /** The cold keys that have not been used, the oldest at the tail */
+    private final KeyList<K> cold = new KeyList<K>();
+    private long time = 0;
+
+    /**
+     * @param historySize the amount of evicted keys whose history is
+     * remembered
+     */
+    public Lru2Policy(final int historySize) {
+        history = new LinkedHashMap<K, Entry<K>>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<K>> eldest) {
+                return size() > historySize;
+            }
+        };
+    }
+
+    @Override
+    public void recordInsert(K key) {
+        Entry<K> entry = history.remove(key);
+        if (entry == null)
+            entry = new Entry<K>(key);
+        use(entry);
+        entries.put(key, entry);
+        order.add(entry);
+    }
+
+    @Override
+    public void recordColdInsert(K key) {
+        cold.addFirst(key);
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        if (cold.remove(key)) {
+            recordInsert(key);
+            return;
+        }
+        Entry<K> entry = entries.get(key);
+        if (entry == null)
+            return;
+        order.remove(entry);
+        use(entry);
+        order.add(entry);
+    }
+
+    private void use(Entry<K> entry) {
+        entry.penultimate = entry.last;
+        entry.last = ++time;
+    }
+
+    @Override
+    public void recordRemove(K key) {
+        if (cold.remove(key))
+            return;
+        Entry<K> entry = entries.remove(key);
+        if (entry != null)
+            order.remove(entry);
+    }
+
+    @Override
+    public K chooseVictim(Filter<? super K> evictable) {
+        K victim = cold.findLast(evictable);
+        if (victim != null) {
+            cold.remove(victim);
+            return victim;
+        }
+        for (Iterator<Entry<K>> it = order.iterator(); it.hasNext();) {
+            Entry<K> entry = it.next();
+            if (evictable == null || evictable.isValid(entry.key)) {
+                it.remove();
+                entries.remove(entry.key);
+                history.put(entry.key, entry);
+                return entry.key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return entries.size() + cold.size();
+    }
+
+    @Override
+    public String toString() {
+        return "LRU-2";
+    }
+
+}
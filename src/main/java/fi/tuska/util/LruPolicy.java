@@ -0,0 +1,78 @@
+package fi.tuska.util;
+
+/**
+ * The least recently used eviction policy: the victim is the key that has
+ * gone unused for the longest time. Keys inserted cold are kept apart until
+ * they are used, and they are evicted first, the oldest first.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ */
+public class LruPolicy<K> implements EvictionPolicy<K> {
+
+    private final KeyList<K> usage = new KeyList<K>();
+    /** The cold keys that have not been used, the oldest at the tail */
+    private final KeyList<K> cold = new KeyList<K>();
+
+    @Override
+    public void recordInsert(K key) {
+        usage.addFirst(key);
+    }
+
+    /**
+     * Adds the key as the least recently used key, but ahead of the earlier
+     * cold keys that have not been used.
+     */
+    @Override
+    public void recordColdInsert(K key) {
+        cold.addFirst(key);
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        if (cold.remove(key))
+            usage.addFirst(key);
+        else
+            usage.moveToHead(key);
+    }
+
+    /**
+     * Moves the key to the head, so that the recency of a fixed entry is the
+     * time it was released.
+     */
+    @Override
+    public void recordRelease(K key) {
+        usage.moveToHead(key);
+    }
+
+    @Override
+    public void recordRemove(K key) {
+        if (!cold.remove(key))
+            usage.remove(key);
+    }
+
+    @Override
+    public K chooseVictim(Filter<? super K> evictable) {
+        K victim = cold.findLast(evictable);
+        if (victim != null) {
+            cold.remove(victim);
+            return victim;
+        }
+        victim = usage.findLast(evictable);
+        if (victim != null)
+            usage.remove(victim);
+        return victim;
+    }
+
+    @Override
+    public int size() {
+        return usage.size() + cold.size();
+    }
+
+    @Override
+    public String toString() {
+        return "LRU";
+    }
+
+}
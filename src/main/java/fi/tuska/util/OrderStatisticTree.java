@@ -0,0 +1,411 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+
+/**
+ * A balanced (AVL) search tree that maps each key to a list of values, and
+ * keeps in each node the total amount of values in its subtree. The counts
+ * include the duplicate values of the keys, so the tree can find the value
+ * at a given position of the sorted order, and the position of a key, in
+ * logarithmic time. Used as the backing structure of {@link SortedList}.
+ *
+ * The value lists are maintained by the caller: after adding values to or
+ * removing values from the list of a node, the caller must report the
+ * change with {@link #adjustCount(Node, int)}, and delete nodes whose lists
+ * have become empty. Deleting a node does not affect the other nodes, so
+ * references to them (held by iterators, for example) stay valid.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+class OrderStatisticTree<K extends Comparable<K>, V> {
+
+    static final class Node<K, V> {
+        final K key;
+        final ArrayList<V> values = new ArrayList<V>(1);
+        Node<K, V> left;
+        Node<K, V> right;
+        Node<K, V> parent;
+        int height = 1;
+        /** Amount of values in this subtree */
+        int count = 0;
+
+        Node(K key, Node<K, V> parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+
+        @Override
+        public String toString() {
+            return key + ":" + values;
+        }
+    }
+
+    private Node<K, V> root = null;
+    private int keyCount = 0;
+
+    /**
+     * @return the total amount of values
+     */
+    int size() {
+        return root != null ? root.count : 0;
+    }
+
+    /**
+     * @return the amount of distinct keys
+     */
+    int keyCount() {
+        return keyCount;
+    }
+
+    boolean isEmpty() {
+        return root == null;
+    }
+
+    void clear() {
+        root = null;
+        keyCount = 0;
+    }
+
+    /**
+     * Replaces the contents of the tree with the given entries, building a
+     * balanced tree directly without any rotations. The keys must be in
+     * ascending order, with the duplicate keys next to each other; the
+     * values of each key are stored in the given order.
+     */
+    void build(K[] keys, V[] values, int size) {
+        // The start positions of the distinct keys, and the end position
+        int[] starts = new int[size + 1];
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || keys[i].compareTo(keys[i - 1]) != 0)
+                starts[distinct++] = i;
+        }
+        starts[distinct] = size;
+        root = build(keys, values, starts, 0, distinct, null);
+        keyCount = distinct;
+    }
+
+    /**
+     * @return the root of a balanced subtree containing the distinct keys
+     * from (inclusive) to (exclusive)
+     */
+    private Node<K, V> build(K[] keys, V[] values, int[] starts, int from, int to,
+        Node<K, V> parent) {
+        if (from >= to)
+            return null;
+        int mid = (from + to) >>> 1;
+        Node<K, V> node = new Node<K, V>(keys[starts[mid]], parent);
+        for (int i = starts[mid]; i < starts[mid + 1]; i++) {
+            node.values.add(values[i]);
+        }
+        node.left = build(keys, values, starts, from, mid, node);
+        node.right = build(keys, values, starts, mid + 1, to, node);
+        update(node);
+        return node;
+    }
+
+    Node<K, V> getNode(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int c = key.compareTo(node.key);
+            if (c == 0)
+                return node;
+            node = c < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * @return the node with the given key; a new node with an empty value
+     * list is created if there is none
+     */
+    Node<K, V> getOrCreateNode(K key) {
+        if (root == null) {
+            root = new Node<K, V>(key, null);
+            keyCount++;
+            return root;
+        }
+        Node<K, V> node = root;
+        while (true) {
+            int c = key.compareTo(node.key);
+            if (c == 0)
+                return node;
+            Node<K, V> child = c < 0 ? node.left : node.right;
+            if (child == null) {
+                child = new Node<K, V>(key, node);
+                if (c < 0)
+                    node.left = child;
+                else
+                    node.right = child;
+                keyCount++;
+                rebalanceUp(node);
+                return child;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Adds the delta to the value counts of the node and its ancestors.
+     */
+    void adjustCount(Node<K, V> node, int delta) {
+        for (Node<K, V> n = node; n != null; n = n.parent) {
+            n.count += delta;
+        }
+    }
+
+    /**
+     * Deletes the node from the tree. The values of the node no longer count
+     * in the sizes.
+     */
+    void delete(Node<K, V> node) {
+        Node<K, V> rebalanceFrom;
+        if (node.left != null && node.right != null) {
+            // Move the successor to the place of the node
+            Node<K, V> successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            if (successor.parent == node) {
+                rebalanceFrom = successor;
+            } else {
+                rebalanceFrom = successor.parent;
+                replace(successor, successor.right);
+                successor.right = node.right;
+                successor.right.parent = successor;
+            }
+            replace(node, successor);
+            successor.left = node.left;
+            successor.left.parent = successor;
+        } else {
+            rebalanceFrom = node.parent;
+            replace(node, node.left != null ? node.left : node.right);
+        }
+        node.left = node.right = node.parent = null;
+        keyCount--;
+        rebalanceUp(rebalanceFrom);
+    }
+
+    /**
+     * Puts the replacement to the place of the node in the parent.
+     */
+    private void replace(Node<K, V> node, Node<K, V> replacement) {
+        Node<K, V> parent = node.parent;
+        if (parent == null)
+            root = replacement;
+        else if (parent.left == node)
+            parent.left = replacement;
+        else
+            parent.right = replacement;
+        if (replacement != null)
+            replacement.parent = parent;
+    }
+
+    Node<K, V> firstNode() {
+        return root != null ? min(root) : null;
+    }
+
+    Node<K, V> lastNode() {
+        return root != null ? max(root) : null;
+    }
+
+    /**
+     * @return the node with the greatest key less than or equal to the given
+     * key (strictly less if inclusive is false)
+     */
+    Node<K, V> floorNode(K key, boolean inclusive) {
+        Node<K, V> node = root;
+        Node<K, V> result = null;
+        while (node != null) {
+            int c = key.compareTo(node.key);
+            if (c > 0 || (c == 0 && inclusive)) {
+                result = node;
+                if (c == 0)
+                    break;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the node with the least key greater than or equal to the given
+     * key (strictly greater if inclusive is false)
+     */
+    Node<K, V> ceilingNode(K key, boolean inclusive) {
+        Node<K, V> node = root;
+        Node<K, V> result = null;
+        while (node != null) {
+            int c = key.compareTo(node.key);
+            if (c < 0 || (c == 0 && inclusive)) {
+                result = node;
+                if (c == 0)
+                    break;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return result;
+    }
+
+    Node<K, V> successor(Node<K, V> node) {
+        if (node.right != null)
+            return min(node.right);
+        Node<K, V> n = node;
+        while (n.parent != null && n.parent.right == n) {
+            n = n.parent;
+        }
+        return n.parent;
+    }
+
+    Node<K, V> predecessor(Node<K, V> node) {
+        if (node.left != null)
+            return max(node.left);
+        Node<K, V> n = node;
+        while (n.parent != null && n.parent.left == n) {
+            n = n.parent;
+        }
+        return n.parent;
+    }
+
+    /**
+     * @return the node that contains the value at the given position of the
+     * sorted order
+     */
+    Node<K, V> select(int index) {
+        Node<K, V> node = root;
+        int i = index;
+        while (node != null) {
+            int left = count(node.left);
+            if (i < left) {
+                node = node.left;
+            } else if (i < left + node.values.size()) {
+                return node;
+            } else {
+                i -= left + node.values.size();
+                node = node.right;
+            }
+        }
+        throw new IndexOutOfBoundsException("Index " + index + " out of bounds");
+    }
+
+    /**
+     * @return the amount of values whose keys are less than the key of the
+     * node (the position of the first value of the node)
+     */
+    int rank(Node<K, V> node) {
+        int rank = count(node.left);
+        for (Node<K, V> n = node; n.parent != null; n = n.parent) {
+            if (n.parent.right == n)
+                rank += count(n.parent.left) + n.parent.values.size();
+        }
+        return rank;
+    }
+
+    /**
+     * @return the amount of values whose keys are less than the given key
+     */
+    int rank(K key) {
+        Node<K, V> node = root;
+        int rank = 0;
+        while (node != null) {
+            int c = key.compareTo(node.key);
+            if (c <= 0) {
+                if (c == 0)
+                    return rank + count(node.left);
+                node = node.left;
+            } else {
+                rank += count(node.left) + node.values.size();
+                node = node.right;
+            }
+        }
+        return rank;
+    }
+
+    private static <K, V> Node<K, V> min(Node<K, V> node) {
+        Node<K, V> n = node;
+        while (n.left != null) {
+            n = n.left;
+        }
+        return n;
+    }
+
+    private static <K, V> Node<K, V> max(Node<K, V> node) {
+        Node<K, V> n = node;
+        while (n.right != null) {
+            n = n.right;
+        }
+        return n;
+    }
+
+    private static int count(Node<?, ?> node) {
+        return node != null ? node.count : 0;
+    }
+
+    private static int height(Node<?, ?> node) {
+        return node != null ? node.height : 0;
+    }
+
+    private static void update(Node<?, ?> node) {
+        node.height = Math.max(height(node.left), height(node.right)) + 1;
+        node.count = count(node.left) + count(node.right) + node.values.size();
+    }
+
+    /**
+     * Recalculates the heights and counts from the node up to the root,
+     * rotating the unbalanced nodes on the way.
+     */
+    private void rebalanceUp(Node<K, V> node) {
+        Node<K, V> n = node;
+        while (n != null) {
+            update(n);
+            int balance = height(n.left) - height(n.right);
+            if (balance > 1) {
+                if (height(n.left.left) < height(n.left.right))
+                    rotateLeft(n.left);
+                n = rotateRight(n);
+            } else if (balance < -1) {
+                if (height(n.right.right) < height(n.right.left))
+                    rotateRight(n.right);
+                n = rotateLeft(n);
+            }
+            n = n.parent;
+        }
+    }
+
+    /**
+     * @return the node that took the place of the rotated node
+     */
+    private Node<K, V> rotateLeft(Node<K, V> node) {
+        Node<K, V> pivot = node.right;
+        replace(node, pivot);
+        node.right = pivot.left;
+        if (node.right != null)
+            node.right.parent = node;
+        pivot.left = node;
+        node.parent = pivot;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    private Node<K, V> rotateRight(Node<K, V> node) {
+        Node<K, V> pivot = node.left;
+        replace(node, pivot);
+        node.left = pivot.right;
+        if (node.left != null)
+            node.left.parent = node;
+        pivot.right = node;
+        node.parent = pivot;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+}
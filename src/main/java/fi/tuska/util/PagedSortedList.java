@@ -0,0 +1,451 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The common implementation of the sorted lists with primitive keys
+ * ({@link LongSortedList} and {@link DoubleSortedList}). Allows duplicate
+ * entries but does not allow null values. The keys are stored as long sort
+ * keys, so that the order of the sort keys (as signed longs) is the order of
+ * the keys; the subclasses convert the keys to and from the sort keys. The
+ * sort keys are stored in long arrays and the values in object arrays, in
+ * pages of {@link #PAGE_SIZE} entries that are kept in key order and split
+ * when they become full; a page is removed when it becomes empty. Searches
+ * first find the page by its first key and then the entry within the page,
+ * both by binary search.
+ *
+ * If the values are comparable, the values of a key are kept in their
+ * natural order; otherwise new values are added before the existing values
+ * of the key, as in {@link SortedList}.
+ *
+ * Note that this class is not thread-safe! A cursor becomes invalid when the
+ * list is modified, except through the cursor itself.
+ *
+ * @author thaapasa
+ *
+ * @param <V> the type or values
+ */
+public abstract class PagedSortedList<V> {
+
+    /** Maximum amount of entries in a page */
+    public static final int PAGE_SIZE = 128;
+
+    private static final class Page {
+        final long[] keys = new long[PAGE_SIZE];
+        final Object[] values = new Object[PAGE_SIZE];
+        int size = 0;
+    }
+
+    private final List<Page> pages = new ArrayList<Page>();
+    private int size = 0;
+
+    protected PagedSortedList() {
+    }
+
+    /**
+     * @return the key of the sort key as a string
+     */
+    protected abstract String keyToString(long sortKey);
+
+    public void clear() {
+        pages.clear();
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    protected boolean containsSortKey(long sortKey) {
+        PageCursor c = new PageCursor();
+        return c.seekCeilingSortKey(sortKey) && c.sortKey() == sortKey;
+    }
+
+    /**
+     * @throws NoSuchElementException if the list is empty
+     */
+    protected long getFirstSortKey() {
+        if (size == 0)
+            throw new NoSuchElementException("List is empty");
+        return pages.get(0).keys[0];
+    }
+
+    /**
+     * @throws NoSuchElementException if the list is empty
+     */
+    protected long getLastSortKey() {
+        if (size == 0)
+            throw new NoSuchElementException("List is empty");
+        Page last = pages.get(pages.size() - 1);
+        return last.keys[last.size - 1];
+    }
+
+    /**
+     * @return always a non-null list
+     */
+    protected List<V> getAllBySortKey(long sortKey) {
+        List<V> values = new ArrayList<V>();
+        PageCursor c = new PageCursor();
+        for (c.seekCeilingSortKey(sortKey); c.isValid() && c.sortKey() == sortKey; c.next()) {
+            values.add(c.value());
+        }
+        return values;
+    }
+
+    /**
+     * @return the first value with the sort key; null if not found
+     */
+    protected V getFirstBySortKey(long sortKey) {
+        PageCursor c = new PageCursor();
+        return c.seekCeilingSortKey(sortKey) && c.sortKey() == sortKey ? c.value() : null;
+    }
+
+    /**
+     * @return the last value with the sort key; null if not found
+     */
+    protected V getLastBySortKey(long sortKey) {
+        PageCursor c = new PageCursor();
+        return c.seekFloorSortKey(sortKey) && c.sortKey() == sortKey ? c.value() : null;
+    }
+
+    /**
+     * @return the last value with the greatest sort key less than or equal
+     * to the given one; null if not found
+     */
+    protected V getLastFloorBySortKey(long sortKey) {
+        PageCursor c = new PageCursor();
+        return c.seekFloorSortKey(sortKey) ? c.value() : null;
+    }
+
+    /**
+     * @return the values with the greatest sort key less than or equal to
+     * the given one; always a non-null list
+     */
+    protected List<V> getAllFloorBySortKey(long sortKey) {
+        PageCursor c = new PageCursor();
+        return c.seekFloorSortKey(sortKey) ? getAllBySortKey(c.sortKey()) : new ArrayList<V>();
+    }
+
+    /**
+     * @return the first value with the least sort key greater than or equal
+     * to the given one; null if not found
+     */
+    protected V getFirstCeilingBySortKey(long sortKey) {
+        PageCursor c = new PageCursor();
+        return c.seekCeilingSortKey(sortKey) ? c.value() : null;
+    }
+
+    /**
+     * @return the values with the least sort key greater than or equal to
+     * the given one; always a non-null list
+     */
+    protected List<V> getAllCeilingBySortKey(long sortKey) {
+        PageCursor c = new PageCursor();
+        return c.seekCeilingSortKey(sortKey) ? getAllBySortKey(c.sortKey()) : new ArrayList<V>();
+    }
+
+    /**
+     * Adds the value with the given sort key.
+     *
+     * @throw IllegalArgumentException if the value is null
+     */
+    protected void addBySortKey(long sortKey, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("Value null for key " + keyToString(sortKey));
+        if (pages.isEmpty())
+            pages.add(new Page());
+        boolean byValue = value instanceof Comparable;
+        // Find the last page whose first entry goes before the new entry
+        int lo = 0;
+        int hi = pages.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            Page p = pages.get(mid);
+            if (precedes(p.keys[0], p.values[0], sortKey, value, byValue))
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        int pageIndex = lo;
+        Page page = pages.get(pageIndex);
+        lo = 0;
+        hi = page.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (precedes(page.keys[mid], page.values[mid], sortKey, value, byValue))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        int index = lo;
+        if (page.size == PAGE_SIZE) {
+            Page right = new Page();
+            int half = PAGE_SIZE / 2;
+            right.size = PAGE_SIZE - half;
+            System.arraycopy(page.keys, half, right.keys, 0, right.size);
+            System.arraycopy(page.values, half, right.values, 0, right.size);
+            for (int i = half; i < PAGE_SIZE; i++) {
+                page.values[i] = null;
+            }
+            page.size = half;
+            pages.add(pageIndex + 1, right);
+            if (index > half) {
+                index -= half;
+                page = right;
+            }
+        }
+        System.arraycopy(page.keys, index, page.keys, index + 1, page.size - index);
+        System.arraycopy(page.values, index, page.values, index + 1, page.size - index);
+        page.keys[index] = sortKey;
+        page.values[index] = value;
+        page.size++;
+        size++;
+    }
+
+    /**
+     * @return true if the stored entry goes before the new entry: its key is
+     * smaller, or (when ordering by value) its key is equal and its value is
+     * not greater
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> boolean precedes(long storedKey, Object storedValue, long key, V value,
+        boolean byValue) {
+        int c = Long.compare(storedKey, key);
+        if (c != 0 || !byValue)
+            return c < 0;
+        return ((Comparable<V>) storedValue).compareTo(value) <= 0;
+    }
+
+    /**
+     * @return the value removed; or null if not found in list
+     */
+    protected V removeFirstBySortKey(long sortKey) {
+        PageCursor c = new PageCursor();
+        if (!c.seekCeilingSortKey(sortKey) || c.sortKey() != sortKey)
+            return null;
+        V value = c.value();
+        c.remove();
+        return value;
+    }
+
+    /**
+     * Removes one entry with the given sort key and value.
+     *
+     * @return true if an entry was removed
+     */
+    protected boolean removeBySortKey(long sortKey, V value) {
+        if (value == null)
+            return false;
+        PageCursor c = new PageCursor();
+        for (c.seekCeilingSortKey(sortKey); c.isValid() && c.sortKey() == sortKey; c.next()) {
+            if (value.equals(c.value())) {
+                c.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A position in the list. A cursor is either at an entry (valid) or
+     * outside the list (invalid). Moving a cursor past either end of the
+     * list invalidates it; the seek methods can be used to reposition the
+     * cursor, so that a single cursor can be reused for any number of
+     * searches. The subclasses add the methods that take or return keys.
+     */
+    public class PageCursor {
+        private int page = -1;
+        private int index = 0;
+
+        protected PageCursor() {
+        }
+
+        public boolean isValid() {
+            return page >= 0 && page < pages.size();
+        }
+
+        private Page current() {
+            if (!isValid())
+                throw new NoSuchElementException("Cursor is not at an entry");
+            return pages.get(page);
+        }
+
+        protected long sortKey() {
+            return current().keys[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        public V value() {
+            return (V) current().values[index];
+        }
+
+        /**
+         * Moves to the next entry.
+         *
+         * @return true if the cursor is still valid
+         */
+        public boolean next() {
+            if (!isValid())
+                return false;
+            index++;
+            if (index >= pages.get(page).size) {
+                page++;
+                index = 0;
+            }
+            return isValid();
+        }
+
+        /**
+         * Moves to the previous entry.
+         *
+         * @return true if the cursor is still valid
+         */
+        public boolean previous() {
+            if (!isValid())
+                return false;
+            index--;
+            if (index < 0) {
+                page--;
+                index = page >= 0 ? pages.get(page).size - 1 : 0;
+            }
+            return isValid();
+        }
+
+        /**
+         * Removes the entry at the cursor and moves to the next entry.
+         *
+         * @return true if the cursor is still valid
+         */
+        public boolean remove() {
+            Page p = current();
+            System.arraycopy(p.keys, index + 1, p.keys, index, p.size - index - 1);
+            System.arraycopy(p.values, index + 1, p.values, index, p.size - index - 1);
+            p.size--;
+            p.values[p.size] = null;
+            size--;
+            if (p.size == 0) {
+                pages.remove(page);
+                index = 0;
+            } else if (index >= p.size) {
+                page++;
+                index = 0;
+            }
+            return isValid();
+        }
+
+        public boolean seekFirst() {
+            page = 0;
+            index = 0;
+            return isValid();
+        }
+
+        public boolean seekLast() {
+            page = pages.size() - 1;
+            index = page >= 0 ? pages.get(page).size - 1 : 0;
+            return isValid();
+        }
+
+        /**
+         * Moves to the first entry with the least sort key greater than or
+         * equal to the given one.
+         *
+         * @return true if there is such an entry
+         */
+        protected boolean seekCeilingSortKey(long sortKey) {
+            seek(sortKey, false);
+            return isValid();
+        }
+
+        /**
+         * Moves to the last entry with the greatest sort key less than or
+         * equal to the given one.
+         *
+         * @return true if there is such an entry
+         */
+        protected boolean seekFloorSortKey(long sortKey) {
+            seek(sortKey, true);
+            if (isValid())
+                return previous();
+            // All keys are less than or equal to the given key
+            return seekLast();
+        }
+
+        /**
+         * Moves to the first entry whose sort key is greater than or equal to
+         * the given one (greater if upper is true); the cursor is invalid if
+         * there is none.
+         */
+        private void seek(long sortKey, boolean upper) {
+            // Find the last page whose first key is less than the key (less
+            // than or equal if upper)
+            int lo = 0;
+            int hi = pages.size() - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                long first = pages.get(mid).keys[0];
+                if (first < sortKey || (upper && first == sortKey))
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            if (pages.isEmpty()) {
+                page = -1;
+                return;
+            }
+            Page p = pages.get(lo);
+            int from = 0;
+            int to = p.size;
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (p.keys[mid] < sortKey || (upper && p.keys[mid] == sortKey))
+                    from = mid + 1;
+                else
+                    to = mid;
+            }
+            page = lo;
+            index = from;
+            if (index >= p.size) {
+                page++;
+                index = 0;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return isValid() ? keyToString(sortKey()) + ":" + value() : "invalid";
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("[");
+        boolean first = true;
+        long previous = 0;
+        PageCursor c = new PageCursor();
+        for (c.seekFirst(); c.isValid(); c.next()) {
+            if (first || previous != c.sortKey()) {
+                if (!first)
+                    b.append("},");
+                b.append(keyToString(c.sortKey()));
+                b.append(":{");
+            } else {
+                b.append(",");
+            }
+            b.append(c.value());
+            previous = c.sortKey();
+            first = false;
+        }
+        if (!first)
+            b.append("}");
+        b.append("]");
+        return b.toString();
+    }
+
+}
@@ -0,0 +1,364 @@
+package fi.tuska.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+
+import fi.tuska.util.FixableLeakingMap.LeakEventListener;
+
+/**
+ * A partitioned variant of {@link FixableLeakingMap}. The keys are divided by
+ * their hash codes into independent partitions, each of which is a fixable
+ * leaking map of its own with its own share of the capacity and its own
+ * eviction order. Threads that access keys in different partitions never
+ * contend for the same monitor.
+ *
+ * When a partition is so full of fixed entries that a new entry does not
+ * fit, it borrows capacity from the neighbouring partitions: a neighbour
+ * with unfixed entries gives up part of its capacity (leaking some of its
+ * unfixed entries if it has no free space), and the full partition grows by
+ * the same amount. The total capacity thus stays the same. The borrowed
+ * capacity stays with the borrowing partition until {@link #rebalance()} is
+ * called.
+ *
+ * The diagnostics ({@link #getTotalFixCount()}, {@link #printFixes(PrintStream)}
+ * and so on) combine the results of all partitions.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public class PartitionedFixableLeakingMap<K, V> {
+
+    private static final Logger log = Logger.getLogger(PartitionedFixableLeakingMap.class);
+
+    private final FixableLeakingMap<K, V>[] partitions;
+    private final int maxSize;
+    /** Held while capacity is moved between the partitions */
+    private final Object transferLock = new Object();
+
+    /**
+     * @param size the total capacity of the map
+     * @param partitionCount the amount of partitions
+     */
+    public PartitionedFixableLeakingMap(int size, int partitionCount) {
+        this(size, partitionCount, FixableLeakingMap.Mode.SYNCHRONIZED);
+    }
+
+    /**
+     * @param size the total capacity of the map
+     * @param partitionCount the amount of partitions
+     * @param mode the pinning mode of the partitions
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public PartitionedFixableLeakingMap(int size, int partitionCount,
+        FixableLeakingMap.Mode mode) {
+        if (partitionCount < 1 || size < partitionCount)
+            throw new IllegalArgumentException("Invalid partitioning: " + size + " / "
+                + partitionCount);
+        this.maxSize = size;
+        this.partitions = new FixableLeakingMap[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new FixableLeakingMap<K, V>(getPartitionShare(i), mode);
+        }
+    }
+
+    /**
+     * @return the capacity share of the partition; the remainder of the
+     * division is spread to the first partitions
+     */
+    private int getPartitionShare(int partition) {
+        int share = maxSize / partitions.length;
+        return partition < maxSize % partitions.length ? share + 1 : share;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * @return the partition with the given index, for diagnostics
+     */
+    public FixableLeakingMap<K, V> getPartition(int index) {
+        return partitions[index];
+    }
+
+    protected FixableLeakingMap<K, V> partitionFor(Object key) {
+        return partitions[partitionIndex(key)];
+    }
+
+    private int partitionIndex(Object key) {
+        if (partitions.length == 1)
+            return 0;
+        int h = key != null ? key.hashCode() : 0;
+        // Spread the hash bits so that similar hash codes end up in
+        // different partitions
+        h ^= h >>> 16;
+        h *= 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % partitions.length;
+    }
+
+    /**
+     * Adds the listener to all partitions.
+     */
+    public void addLeakEventListener(LeakEventListener<K, V> listener) {
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            partition.addLeakEventListener(listener);
+        }
+    }
+
+    /**
+     * @see FixableLeakingMap#setLeakDispatchExecutor(Executor)
+     */
+    public void setLeakDispatchExecutor(Executor executor) {
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            partition.setLeakDispatchExecutor(executor);
+        }
+    }
+
+    /**
+     * Waits until the queued leak events of all partitions have been
+     * delivered.
+     */
+    public void awaitPendingLeaks() throws InterruptedException {
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            partition.awaitPendingLeaks();
+        }
+    }
+
+    /**
+     * Starts recording statistics in all partitions.
+     */
+    public void recordStats() {
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            partition.recordStats();
+        }
+    }
+
+    /**
+     * @return the sum of the statistics of all partitions
+     */
+    public CacheStats getStats() {
+        CacheStats stats = CacheStats.EMPTY;
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            stats = stats.plus(partition.getStats());
+        }
+        return stats;
+    }
+
+    public int getMaximumSize() {
+        return maxSize;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            size += partition.getSize();
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            partition.clear();
+        }
+    }
+
+    public boolean contains(K key) {
+        return partitionFor(key).contains(key);
+    }
+
+    /**
+     * Returns the value with the given key and fixes it.
+     *
+     * @see FixableLeakingMap#get(Object)
+     */
+    public V get(K key) {
+        return partitionFor(key).get(key);
+    }
+
+    /**
+     * Sets the value with the given key and fixes it. If the partition of
+     * the key is full of fixed entries, capacity is borrowed from the other
+     * partitions.
+     *
+     * @throws IndexOutOfBoundsException if no partition has unfixed entries
+     * to give up
+     * @see FixableLeakingMap#put(Object, Object)
+     */
+    public void put(K key, V value) {
+        int index = partitionIndex(key);
+        FixableLeakingMap<K, V> partition = partitions[index];
+        // The failed attempts are not recorded, so the statistics count the
+        // put once
+        while (!partition.tryPut(key, value)) {
+            if (!borrow(index)) {
+                // Fails (unless an entry was unfixed meanwhile), and records
+                // the failure
+                partition.put(key, value);
+                return;
+            }
+        }
+    }
+
+    public void unfix(K key) {
+        partitionFor(key).unfix(key);
+    }
+
+    public V remove(K key) {
+        return partitionFor(key).remove(key);
+    }
+
+    public boolean isFixed(K key) {
+        return partitionFor(key).isFixed(key);
+    }
+
+    public int getFixCount(K key) {
+        return partitionFor(key).getFixCount(key);
+    }
+
+    /**
+     * @see FixableLeakingMap#markDirty(Object)
+     */
+    public void markDirty(K key) {
+        partitionFor(key).markDirty(key);
+    }
+
+    /**
+     * Moves one unit of capacity to the partition from the nearest following
+     * partition that has unfixed entries.
+     *
+     * @return false if no partition could give up capacity
+     */
+    private boolean borrow(int index) {
+        synchronized (transferLock) {
+            for (int i = 1; i < partitions.length; i++) {
+                int lender = (index + i) % partitions.length;
+                if (transfer(lender, index, 1)) {
+                    if (log.isDebugEnabled())
+                        log.debug("Partition " + index + " borrowed capacity from " + lender);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Moves capacity between the partitions, if the source partition can
+     * give it up without leaking fixed entries. Called while holding the
+     * transfer lock.
+     *
+     * @return true if the capacity was moved
+     */
+    private boolean transfer(int from, int to, int amount) {
+        FixableLeakingMap<K, V> source = partitions[from];
+        synchronized (source) {
+            int size = source.getMaximumSize();
+            if (size <= amount || source.getUnfixedSpace() < amount)
+                return false;
+            try {
+                source.setMaximumSize(size - amount);
+            } catch (IndexOutOfBoundsException e) {
+                // An entry was fixed concurrently (CLOCK mode)
+                source.setMaximumSize(size);
+                return false;
+            }
+        }
+        FixableLeakingMap<K, V> target = partitions[to];
+        synchronized (target) {
+            target.setMaximumSize(target.getMaximumSize() + amount);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the borrowed capacity to the partitions that have lent it, as
+     * far as the borrowing partitions have unfixed entries to give up.
+     */
+    public void rebalance() {
+        synchronized (transferLock) {
+            for (int from = 0; from < partitions.length; from++) {
+                for (int to = 0; to < partitions.length; to++) {
+                    int excess = partitions[from].getMaximumSize() - getPartitionShare(from);
+                    if (excess <= 0)
+                        break;
+                    int missing = getPartitionShare(to) - partitions[to].getMaximumSize();
+                    if (missing <= 0)
+                        continue;
+                    int amount = Math.min(Math.min(excess, missing), partitions[from]
+                        .getUnfixedSpace());
+                    if (amount > 0)
+                        transfer(from, to, amount);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the total amount of fixes in all partitions
+     */
+    public int getTotalFixCount() {
+        int fixes = 0;
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            fixes += partition.getTotalFixCount();
+        }
+        return fixes;
+    }
+
+    /**
+     * @return the space that can be used in all partitions (possibly by
+     * purging unfixed entries)
+     */
+    public int getUnfixedSpace() {
+        int space = 0;
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            space += partition.getUnfixedSpace();
+        }
+        return space;
+    }
+
+    /**
+     * Prints the fixed entries of all partitions.
+     */
+    public void printFixes(PrintStream str) {
+        str.println("Fixes:");
+        List<K> zeroFixes = new ArrayList<K>();
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            partition.printFixes(str, zeroFixes);
+        }
+        if (!zeroFixes.isEmpty())
+            str.println("Zero fixes: " + zeroFixes);
+        str.println("Total: " + getTotalFixCount());
+    }
+
+    public String getEntryFixSummary() {
+        StringBuilder b = new StringBuilder();
+        for (FixableLeakingMap<K, V> partition : partitions) {
+            String summary = partition.getEntryFixSummary();
+            if (summary.length() == 0)
+                continue;
+            if (b.length() > 0)
+                b.append(", ");
+            b.append(summary);
+        }
+        return b.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < partitions.length; i++) {
+            if (i > 0)
+                b.append(", ");
+            b.append(partitions[i].toString());
+        }
+        return b.toString();
+    }
+
+}
@@ -0,0 +1,25 @@
+package fi.tuska.util;
+
+/**
+ * A cache whose maximum size can be changed at runtime, such as the leaking
+ * maps. Used by {@link HeapPressureSizer} to adapt the cache size to the
+ * available memory.
+ *
+ * @author thaapasa
+ */
+public interface ResizableCache {
+
+    /** @return the current maximum size of the cache */
+    int getMaximumSize();
+
+    /**
+     * Changes the maximum size of the cache. If the cache shrinks below its
+     * current size, entries are leaked until it fits.
+     *
+     * @param size the new maximum size
+     * @param cause the cause reported for the entries leaked because of the
+     * change
+     */
+    void setMaximumSize(int size, LeakCause cause);
+
+}
@@ -1,12 +1,10 @@
 package fi.tuska.util;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.TreeMap;
-import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import fi.tuska.util.iterator.EmptyIterator;
 
@@ -14,6 +12,15 @@ import fi.tuska.util.iterator.EmptyIterator;
  * Like a sorted map but allows duplicate entries. Does not allow null
  * keys/values.
  * 
+ * The entries can be stored in two ways (see {@link Backend}). By default
+ * they are stored in an order-statistic tree whose nodes know the amount of
+ * entries (including duplicates) in their subtrees, so the entry at a given
+ * index ({@link #getAt(int)}), the index of a key
+ * ({@link #indexOf(Comparable)}) and the entries within a range of indices
+ * ({@link #getRange(int, int)}) are found in logarithmic time. The B+-tree
+ * backend stores the entries in wide array nodes instead, which takes less
+ * memory per entry and makes iteration faster.
+ * 
  * Note that this class is not thread-safe!
  * 
  * @author thaapasa
@@ -23,15 +30,37 @@ import fi.tuska.util.iterator.EmptyIterator;
  */
 public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K, V>> {
 
-    private int entryCount = 0;
-    private TreeMap<K, LinkedList<V>> map = new TreeMap<K, LinkedList<V>>();
+    /**
+     * The structures that can store the entries of the list.
+     */
+    public enum Backend {
+        /**
+         * A balanced binary tree with a linked list of values for each key.
+         * The lists returned by {@link SortedList#getAll(Comparable)} and the
+         * other methods that return value lists are the stored lists.
+         */
+        TREE,
+        /**
+         * A B+-tree that keeps the keys and the values (including the
+         * duplicates) in arrays in its leaves, and links the leaves for
+         * iteration. The value lists returned by the list are copies.
+         */
+        BTREE
+    }
+
+    private final SortedListStore<K, V> store;
 
     public SortedList() {
+        this(Backend.TREE);
+    }
+
+    public SortedList(Backend backend) {
+        this.store = backend == Backend.BTREE ? new BPlusTreeListStore<K, V>()
+            : new TreeListStore<K, V>();
     }
 
     public void clear() {
-        map.clear();
-        entryCount = 0;
+        store.clear();
     }
 
     /**
@@ -41,7 +70,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
         // Null key not permitted
         if (key == null)
             return false;
-        return map.containsKey(key);
+        return store.contains(key);
     }
 
     /**
@@ -49,54 +78,74 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
      * entries
      */
     public int size() {
-        return entryCount;
+        return store.size();
     }
 
     public boolean isEmpty() {
-        return map.isEmpty();
+        return store.isEmpty();
     }
 
     /**
      * @return the first key in the list
      */
     public K getFirstKey() {
-        if (map.isEmpty())
-            return null;
-        return map.firstKey();
+        return store.getFirstKey();
     }
 
     /**
      * @return the last key in the list
      */
     public K getLastKey() {
-        if (map.isEmpty())
-            return null;
-        return map.lastKey();
+        return store.getLastKey();
     }
 
     /**
      * @return the value at the given index
      */
     public Pair<K, V> getAt(int index) {
-        if (index < 0 || index >= entryCount)
+        if (index < 0 || index >= size())
             throw new IndexOutOfBoundsException("Index " + index + " out of bounds");
+        return store.getAt(index);
+    }
 
-        int c = index;
-        for (Entry<K, LinkedList<V>> e : map.entrySet()) {
-            List<V> list = e.getValue();
-            if (c < list.size())
-                return new Pair<K, V>(e.getKey(), list.get(c));
-            c -= list.size();
-        }
-        assert false : "Entry at " + index + " not found, this is a bug";
-        throw new IllegalStateException();
+    /**
+     * @return the index of the first value with the given key, or -1 if
+     * there is no such value
+     */
+    public int indexOf(K key) {
+        // Null key not permitted
+        if (key == null)
+            return -1;
+        return store.indexOf(key);
+    }
+
+    /**
+     * @return the amount of values whose keys are less than the given key;
+     * this is the index at which a value with the key would be inserted
+     */
+    public int rank(K key) {
+        if (key == null)
+            throw new IllegalArgumentException("Key is null");
+        return store.rank(key);
+    }
+
+    /**
+     * Returns the entries whose indices are between from (inclusive) and to
+     * (exclusive).
+     * 
+     * @return always a non-null list
+     */
+    public List<Pair<K, V>> getRange(int from, int to) {
+        if (from < 0 || to > size() || from > to)
+            throw new IndexOutOfBoundsException("Range " + from + "-" + to + " out of bounds");
+        return store.getRange(from, to);
     }
 
     /**
      * @return always a non-null list
      */
     public List<Pair<K, V>> getAll() {
-        List<Pair<K, V>> values = new ArrayList<Pair<K, V>>(entryCount);
+        List<Pair<K, V>> values = new ArrayList<Pair<K, V>>(size());
         for (Pair<K, V> entry : this) {
             values.add(entry);
         }
@@ -110,8 +159,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
         // Null key not permitted
         if (key == null)
             return new ArrayList<V>();
-        List<V> values = map.get(key);
-        return values != null ? values : new LinkedList<V>();
+        return store.getAll(key);
     }
 
     /**
@@ -121,7 +169,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
         // Null key not permitted
         if (key == null)
             return null;
-        return CollectionUtils.getFirst(getAll(key));
+        return store.getFirst(key);
     }
 
     /**
@@ -131,8 +179,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
         // Null key not permitted
         if (key == null)
             return null;
-        LinkedList<V> list = (LinkedList<V>) getAll(key);
-        return list != null ? list.getLast() : null;
+        return store.getLast(key);
     }
 
     /**
@@ -145,12 +192,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
      * @return null if not found
      */
     public Pair<K, V> getLastFloor(K key) {
-        Entry<K, LinkedList<V>> entry = map.floorEntry(key);
-        if (entry == null)
-            return null;
-        List<V> list = entry.getValue();
-        assert list != null && !list.isEmpty();
-        return new Pair<K, V>(entry.getKey(), CollectionUtils.getLast(list));
+        return store.getLastFloor(key);
     }
 
     /**
@@ -160,12 +202,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
      * @return null if not found
      */
     public Pair<K, List<V>> getAllFloor(K key) {
-        Entry<K, LinkedList<V>> entry = map.floorEntry(key);
-        if (entry == null)
-            return null;
-        List<V> list = entry.getValue();
-        assert list != null && !list.isEmpty();
-        return new Pair<K, List<V>>(entry.getKey(), list);
+        return store.getAllFloor(key);
     }
 
     /**
@@ -178,12 +215,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
      * @return null if not found
      */
     public Pair<K, V> getFirstCeiling(K key) {
-        Entry<K, LinkedList<V>> entry = map.ceilingEntry(key);
-        if (entry == null)
-            return null;
-        List<V> list = entry.getValue();
-        assert list != null && !list.isEmpty();
-        return new Pair<K, V>(entry.getKey(), CollectionUtils.getFirst(list));
+        return store.getFirstCeiling(key);
     }
 
     /**
@@ -193,50 +225,178 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
      * @return null if not found
      */
     public Pair<K, List<V>> getAllCeiling(K key) {
-        Entry<K, LinkedList<V>> entry = map.ceilingEntry(key);
-        if (entry == null)
-            return null;
-        List<V> list = entry.getValue();
-        assert list != null && !list.isEmpty();
-        return new Pair<K, List<V>>(entry.getKey(), list);
+        return store.getAllCeiling(key);
     }
 
     /**
+     * Adds the value with the given key. If the values are comparable, the
+     * values of a key are kept in their natural order; otherwise new values
+     * are added before the existing values of the key.
+     * 
      * @throw IllegalArgumentException if key or value is null
      */
     public void add(K key, V value) {
         if (key == null || value == null)
             throw new IllegalArgumentException("Key or value null: " + key + ": " + value);
-        LinkedList<V> list = map.get(key);
-        if (list == null) {
-            list = new LinkedList<V>();
-            map.put(key, list);
+        store.add(key, value);
+    }
+
+    /**
+     * Replaces the contents of this list with the given entries, which must
+     * already be in the order of the list: the keys in ascending order, and
+     * the values of each key in ascending order if they are comparable. The
+     * structure is built directly in linear time, without the searches and
+     * rebalancing of adding the entries one by one. Values that are not
+     * comparable are stored in the given order.
+     * 
+     * @throw IllegalArgumentException if the arrays are of different
+     * lengths, contain nulls or are not sorted
+     */
+    public void buildFromSorted(K[] keys, V[] values) {
+        checkEntries(keys, values);
+        for (int i = 1; i < keys.length; i++) {
+            if (compareEntries(keys[i - 1], values[i - 1], keys[i], values[i]) > 0)
+                throw new IllegalArgumentException("Entries not sorted at index " + i + ": "
+                    + keys[i - 1] + ": " + values[i - 1] + " > " + keys[i] + ": " + values[i]);
+        }
+        store.build(keys, values, keys.length);
+    }
+
+    /**
+     * Replaces the contents of this list with the given entries, which may
+     * be in any order. The key and value arrays are first sorted together
+     * with a merge sort whose large ranges are sorted in parallel, and then
+     * built as in {@link #buildFromSorted(Comparable[], Object[])}. The sort
+     * is stable, so values that are not comparable are stored in the given
+     * order. The given arrays are not modified.
+     * 
+     * @throw IllegalArgumentException if the arrays are of different
+     * lengths or contain nulls
+     */
+    public void buildFrom(K[] keys, V[] values) {
+        checkEntries(keys, values);
+        K[] sortedKeys = keys.clone();
+        V[] sortedValues = values.clone();
+        ForkJoinPool.commonPool().invoke(
+            new EntrySort(sortedKeys, sortedValues, keys.clone(), values.clone(), 0, keys.length));
+        store.build(sortedKeys, sortedValues, keys.length);
+    }
+
+    /** Ranges at most this long are sorted with an insertion sort */
+    private static final int INSERTION_SORT_SIZE = 16;
+    /** Ranges longer than this are split into parallel tasks */
+    private static final int PARALLEL_SORT_SIZE = 8192;
+
+    /**
+     * Sorts a range of the entries from the source arrays into the target
+     * arrays with a stable merge sort. The source and target arrays must
+     * contain the same entries in the range; the source arrays are used as
+     * scratch space.
+     */
+    private class EntrySort extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final K[] keys;
+        private final V[] values;
+        private final K[] sourceKeys;
+        private final V[] sourceValues;
+        private final int from;
+        private final int to;
+
+        private EntrySort(K[] keys, V[] values, K[] sourceKeys, V[] sourceValues, int from,
+            int to) {
+            this.keys = keys;
+            this.values = values;
+            this.sourceKeys = sourceKeys;
+            this.sourceValues = sourceValues;
+            this.from = from;
+            this.to = to;
         }
 
-        // Will add to the beginning of the list if the items are not
-        // comparable
-        int pos = 0;
-        // Try to get the comparable list and search for the insertion
-        // position
-        List<? extends Comparable<V>> cList = getComparableList(list);
-        if (cList != null) {
-            pos = Collections.binarySearch(cList, value);
-            if (pos < 0) {
-                pos = -pos - 1;
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_SORT_SIZE) {
+                sort(keys, values, sourceKeys, sourceValues, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            // Sort the halves into the source arrays, and merge them back
+            invokeAll(new EntrySort(sourceKeys, sourceValues, keys, values, from, mid),
+                new EntrySort(sourceKeys, sourceValues, keys, values, mid, to));
+            merge(keys, values, sourceKeys, sourceValues, from, mid, to);
+        }
+    }
+
+    /**
+     * Sorts the range from the source arrays into the target arrays, as in
+     * {@link EntrySort}.
+     */
+    private void sort(K[] keys, V[] values, K[] sourceKeys, V[] sourceValues, int from, int to) {
+        if (to - from <= INSERTION_SORT_SIZE) {
+            for (int i = from + 1; i < to; i++) {
+                K key = keys[i];
+                V value = values[i];
+                int j = i;
+                while (j > from && compareEntries(keys[j - 1], values[j - 1], key, value) > 0) {
+                    keys[j] = keys[j - 1];
+                    values[j] = values[j - 1];
+                    j--;
+                }
+                keys[j] = key;
+                values[j] = value;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sort(sourceKeys, sourceValues, keys, values, from, mid);
+        sort(sourceKeys, sourceValues, keys, values, mid, to);
+        merge(keys, values, sourceKeys, sourceValues, from, mid, to);
+    }
+
+    /**
+     * Merges the sorted ranges [from, mid) and [mid, to) of the source
+     * arrays into the target arrays. Equal entries are taken from the first
+     * range first.
+     */
+    private void merge(K[] keys, V[] values, K[] sourceKeys, V[] sourceValues, int from,
+        int mid, int to) {
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to
+                || (i < mid && compareEntries(sourceKeys[i], sourceValues[i], sourceKeys[j],
+                    sourceValues[j]) <= 0)) {
+                keys[k] = sourceKeys[i];
+                values[k] = sourceValues[i++];
+            } else {
+                keys[k] = sourceKeys[j];
+                values[k] = sourceValues[j++];
             }
         }
-        list.add(pos, value);
-        entryCount++;
     }
 
+    private void checkEntries(K[] keys, V[] values) {
+        if (keys.length != values.length)
+            throw new IllegalArgumentException("Got " + keys.length + " keys but "
+                + values.length + " values");
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null || values[i] == null)
+                throw new IllegalArgumentException("Key or value null at index " + i + ": "
+                    + keys[i] + ": " + values[i]);
+        }
+    }
+
+    /**
+     * Compares the entries by key, and then by value if the values are
+     * comparable.
+     */
     @SuppressWarnings("unchecked")
-    private List<? extends Comparable<V>> getComparableList(List<V> list) {
-        if (list == null || list.isEmpty())
-            return null;
-        if (list.get(0) instanceof Comparable)
-            return (List<? extends Comparable<V>>) list;
-        else
-            return null;
+    private int compareEntries(K key1, V value1, K key2, V value2) {
+        int c = key1.compareTo(key2);
+        if (c != 0)
+            return c;
+        if (value1 instanceof Comparable && value2 instanceof Comparable)
+            return ((Comparable<V>) value1).compareTo(value2);
+        return 0;
     }
 
     /**
@@ -246,66 +406,19 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
         // Null key not permitted
         if (key == null)
             return null;
-        LinkedList<V> list = map.get(key);
-        if (list == null)
-            return null;
-        assert !list.isEmpty();
-        // Remove the first entry from the list
-        V removed = list.removeFirst();
-        // Decrease entry count
-        entryCount--;
-        // Check if list became empty
-        if (list.isEmpty())
-            map.remove(key);
-        return removed;
+        return store.removeFirst(key);
     }
 
     public boolean remove(K key, V value) {
         // Null key not permitted
         if (key == null)
             return false;
-
-        LinkedList<V> list = map.get(key);
-        if (list == null)
-            return false;
-        assert !list.isEmpty();
-        // Try to find and remove the value (returns false if value not found)
-        if (!list.remove(value))
-            return false;
-        // Value found and removed
-        // Decrease entry count
-        entryCount--;
-        // Check if list became empty
-        if (list.isEmpty())
-            map.remove(key);
-
-        return true;
+        return store.remove(key, value);
     }
 
     @Override
     public String toString() {
-        StringBuilder b = new StringBuilder();
-        b.append("[");
-        boolean first = true;
-        for (Entry<K, LinkedList<V>> entry : map.entrySet()) {
-            if (!first) {
-                b.append(",");
-            }
-            b.append(entry.getKey());
-            b.append(":{");
-            boolean firstVal = true;
-            for (V val : entry.getValue()) {
-                if (!firstVal) {
-                    b.append(",");
-                }
-                b.append(val);
-                firstVal = false;
-            }
-            b.append("}");
-            first = false;
-        }
-        b.append("]");
-        return b.toString();
+        return store.toString();
     }
 
     /**
@@ -314,66 +427,21 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
     public Iterator<V> iterator(final K key) {
         if (key == null)
             return new EmptyIterator<V>();
-        final List<V> list = map.get(key);
-        if (list == null)
-            return new EmptyIterator<V>();
-        // Return the list iterator, note that the remove() method must be
-        // overridden to also decrease the entry count
-        return new Iterator<V>() {
-            private Iterator<V> it = list.iterator();
-
-            @Override
-            public boolean hasNext() {
-                return it.hasNext();
-            }
-
-            @Override
-            public V next() {
-                return it.next();
-            }
-
-            @Override
-            public void remove() {
-                it.remove();
-                entryCount--;
-                // Need to check if this list has been totally emptied
-                if (list.isEmpty()) {
-                    map.remove(key);
-                }
-            }
-        };
+        return store.iterator(key);
     }
 
     /**
      * @return the first entry in this sorted list
      */
     public Pair<K, V> firstEntry() {
-        if (map.isEmpty())
-            return null;
-        return getFirstFromEntry(map.firstEntry());
+        return store.firstEntry();
     }
 
     /**
      * @return the last entry in this sorted list
      */
     public Pair<K, V> lastEntry() {
-        if (map.isEmpty())
-            return null;
-        return getLastFromEntry(map.lastEntry());
-    }
-
-    private Pair<K, V> getFirstFromEntry(Entry<K, LinkedList<V>> entry) {
-        if (entry == null)
-            return null;
-        assert !entry.getValue().isEmpty() : "Empty list for key " + entry.getKey();
-        return new Pair<K, V>(entry.getKey(), CollectionUtils.getFirst(entry.getValue()));
-    }
-
-    private Pair<K, V> getLastFromEntry(Entry<K, LinkedList<V>> entry) {
-        if (entry == null)
-            return null;
-        assert !entry.getValue().isEmpty() : "Empty list for key " + entry.getKey();
-        return new Pair<K, V>(entry.getKey(), CollectionUtils.getLast(entry.getValue()));
+        return store.lastEntry();
     }
 
     /**
@@ -383,26 +451,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
      * Will fail (and return null) if the given key-value pair is not present.
      */
     public Pair<K, V> nextEntry(K key, V value) {
-        List<V> list = map.get(key);
-        if (list == null)
-            return null;
-        // Find correct position at list
-        boolean found = false;
-        for (V cur : map.get(key)) {
-            if (found) {
-                // Found during previous iteration
-                return new Pair<K, V>(key, cur);
-            }
-            if (cur.equals(value)) {
-                // Mark found, continue to next
-                found = true;
-            }
-        }
-        if (!found)
-            return null;
-        // At this point, the item was found but it was the last item in the
-        // list, so we must get the list with the next key
-        return getFirstFromEntry(map.higherEntry(key));
+        return store.nextEntry(key, value);
     }
 
     /**
@@ -412,26 +461,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
      * Will fail (and return null) if the given key-value pair is not present.
      */
     public Pair<K, V> previousEntry(K key, V value) {
-        List<V> list = map.get(key);
-        if (list == null)
-            return null;
-        // Find correct position at list
-        V prevValue = null;
-        for (V cur : map.get(key)) {
-            if (cur.equals(value)) {
-                if (prevValue != null) {
-                    // Return the previous key
-                    return new Pair<K, V>(key, prevValue);
-                } else {
-                    // The first value is the current, so break out
-                    break;
-                }
-            }
-            prevValue = cur;
-        }
-        // At this point, the item was found but it was the first item in the
-        // list, so we must get the list with the previous key
-        return getLastFromEntry(map.lowerEntry(key));
+        return store.previousEntry(key, value);
     }
 
     private final Converter<Pair<K, V>, V> valueConverter = new Converter<Pair<K, V>, V>() {
@@ -446,10 +476,11 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
     }
 
     /**
-     * @return an iterator over the unique keys in this list
+     * @return an iterator over the unique keys in this list; removing a key
+     * removes all its values
      */
     public Iterator<K> keyIterator() {
-        return map.keySet().iterator();
+        return store.keyIterator();
     }
 
     /**
@@ -457,7 +488,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
      */
     @Override
     public Iterator<Pair<K, V>> iterator() {
-        return new ListIterator(true);
+        return store.iterator(true);
     }
 
     /**
@@ -465,72 +496,7 @@ public class SortedList<K extends Comparable<K>, V> implements Iterable<Pair<K,
      * reverse order
      */
     public Iterator<Pair<K, V>> descendingIterator() {
-        return new ListIterator(false);
-    }
-
-    private class ListIterator implements Iterator<Pair<K, V>> {
-
-        private final Iterator<Entry<K, LinkedList<V>>> backingIterator;
-        private Iterator<V> currentListIterator;
-        private LinkedList<V> currentList;
-        private K currentKey;
-        private boolean nextSearched;
-        private final boolean forward;
-
-        private ListIterator(boolean forward) {
-            this.forward = forward;
-            this.backingIterator = (forward ? map.entrySet().iterator() : map.descendingMap()
-                .entrySet().iterator());
-            findNext();
-        }
-
-        private boolean findNext() {
-            nextSearched = true;
-            while (true) {
-                if (currentListIterator != null && currentListIterator.hasNext())
-                    return true;
-                if (!backingIterator.hasNext()) {
-                    currentListIterator = null;
-                    currentKey = null;
-                    return false;
-                }
-                Entry<K, LinkedList<V>> cur = backingIterator.next();
-                currentKey = cur.getKey();
-                currentList = cur.getValue();
-                currentListIterator = forward ? currentList.listIterator() : currentList
-                    .descendingIterator();
-            }
-        }
-
-        @Override
-        public boolean hasNext() {
-            if (!nextSearched)
-                findNext();
-            return currentListIterator != null && currentListIterator.hasNext();
-        }
-
-        @Override
-        public Pair<K, V> next() {
-            if (!hasNext())
-                throw new IllegalStateException("No more entries available");
-            assert currentListIterator.hasNext();
-            Pair<K, V> result = new Pair<K, V>(currentKey, currentListIterator.next());
-            nextSearched = false;
-            return result;
-        }
-
-        @Override
-        public void remove() {
-            if (nextSearched)
-                throw new IllegalStateException(
-                    "hasNext() called before remove(), state has been invalidated");
-            currentListIterator.remove();
-            entryCount--;
-            if (currentList.isEmpty()) {
-                // Remove the entire list from the backing iterator
-                backingIterator.remove();
-            }
-        }
+        return store.iterator(false);
     }
 
 }
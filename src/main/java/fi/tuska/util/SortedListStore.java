@@ -0,0 +1,91 @@
+package fi.tuska.util;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The storage structure behind a {@link SortedList}. The methods correspond
+ * to the methods of the sorted list; the list checks the arguments (null
+ * keys and values, index bounds) before calling the store.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ * @param <V> the type or values
+ */
+interface SortedListStore<K extends Comparable<K>, V> {
+
+    void clear();
+
+    boolean contains(K key);
+
+    int size();
+
+    boolean isEmpty();
+
+    K getFirstKey();
+
+    K getLastKey();
+
+    Pair<K, V> getAt(int index);
+
+    int indexOf(K key);
+
+    int rank(K key);
+
+    List<Pair<K, V>> getRange(int from, int to);
+
+    /**
+     * @return the values with the given key; always non-null
+     */
+    List<V> getAll(K key);
+
+    /**
+     * @return the first value with the given key; null if not found
+     */
+    V getFirst(K key);
+
+    /**
+     * @return the last value with the given key; null if not found
+     */
+    V getLast(K key);
+
+    Pair<K, V> getLastFloor(K key);
+
+    Pair<K, List<V>> getAllFloor(K key);
+
+    Pair<K, V> getFirstCeiling(K key);
+
+    Pair<K, List<V>> getAllCeiling(K key);
+
+    void add(K key, V value);
+
+    /**
+     * Replaces the contents of the store with the first size entries of the
+     * arrays, which are in the order of the list.
+     */
+    void build(K[] keys, V[] values, int size);
+
+    V removeFirst(K key);
+
+    boolean remove(K key, V value);
+
+    Iterator<V> iterator(K key);
+
+    Pair<K, V> firstEntry();
+
+    Pair<K, V> lastEntry();
+
+    Pair<K, V> nextEntry(K key, V value);
+
+    Pair<K, V> previousEntry(K key, V value);
+
+    Iterator<K> keyIterator();
+
+    /**
+     * @return an iterator over the entries, in ascending order if forward is
+     * true and in descending order otherwise
+     */
+    Iterator<Pair<K, V>> iterator(boolean forward);
+
+}
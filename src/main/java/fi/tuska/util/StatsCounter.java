@@ -0,0 +1,89 @@
+package fi.tuska.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the statistics of a leaking map. The counters are striped, so
+ * recording from concurrent threads (including the unsynchronized read path
+ * of the maps) does not contend on a single memory location.
+ * 
+ * @author thaapasa
+ */
+class StatsCounter {
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder putCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder expirationCount = new LongAdder();
+    private final LongAdder memoryEvictionCount = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder fixCount = new LongAdder();
+    private final LongAdder unfixCount = new LongAdder();
+    private final LongAdder bufferFullCount = new LongAdder();
+
+    void recordHit() {
+        hitCount.increment();
+    }
+
+    void recordMiss() {
+        missCount.increment();
+    }
+
+    void recordHits(int count) {
+        hitCount.add(count);
+    }
+
+    void recordMisses(int count) {
+        missCount.add(count);
+    }
+
+    void recordPut() {
+        putCount.increment();
+    }
+
+    void recordLeak(LeakCause cause) {
+        switch (cause) {
+        case EXPIRED:
+            expirationCount.increment();
+            break;
+        case MEMORY_PRESSURE:
+            memoryEvictionCount.increment();
+            break;
+        default:
+            evictionCount.increment();
+        }
+    }
+
+    void recordLoadSuccess(long loadTime) {
+        loadSuccessCount.increment();
+        totalLoadTime.add(loadTime);
+    }
+
+    void recordLoadFailure(long loadTime) {
+        loadFailureCount.increment();
+        totalLoadTime.add(loadTime);
+    }
+
+    void recordFix() {
+        fixCount.increment();
+    }
+
+    void recordUnfix() {
+        unfixCount.increment();
+    }
+
+    void recordBufferFull() {
+        bufferFullCount.increment();
+    }
+
+    CacheStats snapshot() {
+        return new CacheStats(hitCount.sum(), missCount.sum(), putCount.sum(),
+            evictionCount.sum(), expirationCount.sum(), memoryEvictionCount.sum(),
+            loadSuccessCount.sum(), loadFailureCount.sum(), totalLoadTime.sum(), fixCount.sum(),
+            unfixCount.sum(), bufferFullCount.sum());
+    }
+
+}
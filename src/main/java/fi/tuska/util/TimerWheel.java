@@ -0,0 +1,157 @@
+package fi.tuska.util;
+
+/**
+ * A hierarchical timer wheel for scheduling expiration events. Scheduling,
+ * rescheduling and cancelling a timer are O(1) operations, and advancing the
+ * wheel only processes the buckets whose time span has passed (instead of
+ * scanning all the scheduled timers).
+ *
+ * The wheel consists of levels with increasingly coarse buckets. A timer is
+ * placed on the finest level that can hold its remaining duration. When the
+ * time of a coarse bucket passes, the timers in it are either expired or
+ * cascaded down to the finer levels.
+ *
+ * The timers are intrusive: the scheduled objects extend {@link Node}, so
+ * that scheduling does not allocate. This class is not thread-safe.
+ *
+ * @author thaapasa
+ *
+ * @param <T> the type of the scheduled objects
+ */
+class TimerWheel<T extends TimerWheel.Node> {
+
+    /** Amount of buckets on each level */
+    private static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+    /**
+     * Bucket widths in nanoseconds: ~1.07 s, ~1.14 min, ~1.22 h, ~19.5 h,
+     * ~3.3 d; level i can hold durations shorter than SPANS[i + 1]
+     */
+    private static final long[] SPANS = { 1L << 30, 1L << 36, 1L << 42, 1L << 46, 1L << 48,
+        1L << 48 };
+    private static final int[] SHIFT = { 30, 36, 42, 46, 48 };
+
+    /** A node that can be scheduled on the timer wheel */
+    static class Node {
+        long time;
+        Node previous;
+        Node next;
+        boolean scheduled;
+    }
+
+    private final Node[][] wheel;
+    private long nanos;
+
+    TimerWheel(long currentTime) {
+        wheel = new Node[BUCKETS.length][];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Node[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; j++) {
+                // Sentinel nodes for the bucket lists
+                Node sentinel = new Node();
+                sentinel.previous = sentinel;
+                sentinel.next = sentinel;
+                wheel[i][j] = sentinel;
+            }
+        }
+        nanos = currentTime;
+    }
+
+    /**
+     * Schedules the node to expire at the given time. If the node is already
+     * scheduled, it is moved to the new time.
+     */
+    void schedule(T node, long time) {
+        if (node.scheduled)
+            unlink(node);
+        node.time = time;
+        link(findBucket(time), node);
+    }
+
+    /**
+     * Removes the node from the wheel, if it is scheduled.
+     */
+    void cancel(T node) {
+        if (node.scheduled)
+            unlink(node);
+    }
+
+    /**
+     * Advances the wheel to the given time. The callback is called for each
+     * node whose time has passed. The node is no longer scheduled when the
+     * callback is called, so the callback may reschedule it.
+     */
+    void advance(long currentTime, Callback<T> expired) {
+        long previousTime = nanos;
+        nanos = currentTime;
+        for (int i = 0; i < SHIFT.length; i++) {
+            long previousTicks = previousTime >>> SHIFT[i];
+            long currentTicks = currentTime >>> SHIFT[i];
+            if (currentTicks - previousTicks <= 0)
+                break;
+            expire(i, previousTicks, currentTicks - previousTicks, expired);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expire(int level, long previousTicks, long delta, Callback<T> expired) {
+        Node[] buckets = wheel[level];
+        int mask = buckets.length - 1;
+        int steps = (int) Math.min(delta + 1, buckets.length);
+        int start = (int) (previousTicks & mask);
+        for (int i = start; i < start + steps; i++) {
+            Node sentinel = buckets[i & mask];
+            // Detach the bucket contents, so that rescheduled nodes are not
+            // processed twice
+            Node node = sentinel.next;
+            sentinel.previous = sentinel;
+            sentinel.next = sentinel;
+            while (node != sentinel) {
+                Node next = node.next;
+                node.previous = null;
+                node.next = null;
+                node.scheduled = false;
+                if (node.time - nanos > 0) {
+                    // Not yet expired, cascade to a finer bucket
+                    link(findBucket(node.time), node);
+                } else {
+                    expired.callback((T) node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    private Node findBucket(long time) {
+        long duration = time - nanos;
+        if (duration < 0) {
+            // Already expired, expire on the next tick
+            time = nanos;
+        }
+        int last = wheel.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (duration < SPANS[i + 1]) {
+                long ticks = time >>> SHIFT[i];
+                int index = (int) (ticks & (wheel[i].length - 1));
+                return wheel[i][index];
+            }
+        }
+        return wheel[last][0];
+    }
+
+    private void link(Node sentinel, Node node) {
+        node.previous = sentinel.previous;
+        node.next = sentinel;
+        sentinel.previous.next = node;
+        sentinel.previous = node;
+        node.scheduled = true;
+    }
+
+    private void unlink(Node node) {
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+        node.previous = null;
+        node.next = null;
+        node.scheduled = false;
+    }
+
+}
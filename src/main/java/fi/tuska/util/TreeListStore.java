@@ -0,0 +1,444 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import fi.tuska.util.iterator.EmptyIterator;
+import fi.tuska.util.iterator.ReverseIterator;
+
+/**
+ * The default store of {@link SortedList}: an order-statistic tree that maps
+ * each key to an array list of its values. The entry at a given index and
+ * the index of a key are found in logarithmic time, since the tree nodes
+ * know the amount of entries (including duplicates) in their subtrees; the
+ * value within the list of a key is then found by its offset. The entries
+ * within a range of indices are found in logarithmic time plus the length
+ * of the range.
+ * 
+ * @author thaapasa
+ * 
+ * @param <K> the type of keys
+ * @param <V> the type or values
+ */
+class TreeListStore<K extends Comparable<K>, V> implements SortedListStore<K, V> {
+
+    private final OrderStatisticTree<K, V> tree = new OrderStatisticTree<K, V>();
+
+    @Override
+    public void clear() {
+        tree.clear();
+    }
+
+    @Override
+    public boolean contains(K key) {
+        return tree.getNode(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return tree.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return tree.isEmpty();
+    }
+
+    @Override
+    public K getFirstKey() {
+        if (tree.isEmpty())
+            return null;
+        return tree.firstNode().key;
+    }
+
+    @Override
+    public K getLastKey() {
+        if (tree.isEmpty())
+            return null;
+        return tree.lastNode().key;
+    }
+
+    @Override
+    public Pair<K, V> getAt(int index) {
+        OrderStatisticTree.Node<K, V> node = tree.select(index);
+        int offset = index - tree.rank(node);
+        return new Pair<K, V>(node.key, node.values.get(offset));
+    }
+
+    @Override
+    public int indexOf(K key) {
+        OrderStatisticTree.Node<K, V> node = tree.getNode(key);
+        return node != null ? tree.rank(node) : -1;
+    }
+
+    @Override
+    public int rank(K key) {
+        return tree.rank(key);
+    }
+
+    @Override
+    public List<Pair<K, V>> getRange(int from, int to) {
+        List<Pair<K, V>> values = new ArrayList<Pair<K, V>>(to - from);
+        if (from == to)
+            return values;
+        OrderStatisticTree.Node<K, V> node = tree.select(from);
+        int offset = from - tree.rank(node);
+        while (values.size() < to - from) {
+            int end = Math.min(node.values.size(), offset + to - from - values.size());
+            for (int i = offset; i < end; i++) {
+                values.add(new Pair<K, V>(node.key, node.values.get(i)));
+            }
+            offset = 0;
+            node = tree.successor(node);
+        }
+        return values;
+    }
+
+    @Override
+    public List<V> getAll(K key) {
+        OrderStatisticTree.Node<K, V> node = tree.getNode(key);
+        return node != null ? node.values : new ArrayList<V>();
+    }
+
+    @Override
+    public V getFirst(K key) {
+        Pair<K, V> entry = getFirstFromNode(tree.getNode(key));
+        return entry != null ? entry.getSecond() : null;
+    }
+
+    @Override
+    public V getLast(K key) {
+        Pair<K, V> entry = getLastFromNode(tree.getNode(key));
+        return entry != null ? entry.getSecond() : null;
+    }
+
+    @Override
+    public Pair<K, V> getLastFloor(K key) {
+        return getLastFromNode(tree.floorNode(key, true));
+    }
+
+    @Override
+    public Pair<K, List<V>> getAllFloor(K key) {
+        OrderStatisticTree.Node<K, V> node = tree.floorNode(key, true);
+        if (node == null)
+            return null;
+        assert !node.values.isEmpty();
+        return new Pair<K, List<V>>(node.key, node.values);
+    }
+
+    @Override
+    public Pair<K, V> getFirstCeiling(K key) {
+        return getFirstFromNode(tree.ceilingNode(key, true));
+    }
+
+    @Override
+    public Pair<K, List<V>> getAllCeiling(K key) {
+        OrderStatisticTree.Node<K, V> node = tree.ceilingNode(key, true);
+        if (node == null)
+            return null;
+        assert !node.values.isEmpty();
+        return new Pair<K, List<V>>(node.key, node.values);
+    }
+
+    @Override
+    public void build(K[] keys, V[] values, int size) {
+        tree.build(keys, values, size);
+    }
+
+    @Override
+    public void add(K key, V value) {
+        OrderStatisticTree.Node<K, V> node = tree.getOrCreateNode(key);
+        List<V> list = node.values;
+
+        // Will add to the beginning of the list if the items are not
+        // comparable
+        int pos = 0;
+        // Try to get the comparable list and search for the insertion
+        // position
+        List<? extends Comparable<V>> cList = getComparableList(list);
+        if (cList != null) {
+            pos = Collections.binarySearch(cList, value);
+            if (pos < 0) {
+                pos = -pos - 1;
+            }
+        }
+        list.add(pos, value);
+        tree.adjustCount(node, 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<? extends Comparable<V>> getComparableList(List<V> list) {
+        if (list == null || list.isEmpty())
+            return null;
+        if (list.get(0) instanceof Comparable)
+            return (List<? extends Comparable<V>>) list;
+        else
+            return null;
+    }
+
+    @Override
+    public V removeFirst(K key) {
+        OrderStatisticTree.Node<K, V> node = tree.getNode(key);
+        if (node == null)
+            return null;
+        assert !node.values.isEmpty();
+        // Remove the first entry from the list
+        V removed = node.values.remove(0);
+        removedFrom(node);
+        return removed;
+    }
+
+    @Override
+    public boolean remove(K key, V value) {
+        OrderStatisticTree.Node<K, V> node = tree.getNode(key);
+        if (node == null)
+            return false;
+        assert !node.values.isEmpty();
+        // Try to find and remove the value (returns false if value not found)
+        if (!node.values.remove(value))
+            return false;
+        // Value found and removed
+        removedFrom(node);
+        return true;
+    }
+
+    /**
+     * Updates the tree after a value has been removed from the list of the
+     * node.
+     */
+    private void removedFrom(OrderStatisticTree.Node<K, V> node) {
+        // Decrease entry count
+        tree.adjustCount(node, -1);
+        // Check if list became empty
+        if (node.values.isEmpty())
+            tree.delete(node);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("[");
+        boolean first = true;
+        for (OrderStatisticTree.Node<K, V> node = tree.firstNode(); node != null; node = tree
+            .successor(node)) {
+            if (!first) {
+                b.append(",");
+            }
+            b.append(node.key);
+            b.append(":{");
+            boolean firstVal = true;
+            for (V val : node.values) {
+                if (!firstVal) {
+                    b.append(",");
+                }
+                b.append(val);
+                firstVal = false;
+            }
+            b.append("}");
+            first = false;
+        }
+        b.append("]");
+        return b.toString();
+    }
+
+    @Override
+    public Iterator<V> iterator(final K key) {
+        final OrderStatisticTree.Node<K, V> node = tree.getNode(key);
+        if (node == null)
+            return new EmptyIterator<V>();
+        // Return the list iterator, note that the remove() method must be
+        // overridden to also decrease the entry count
+        return new Iterator<V>() {
+            private Iterator<V> it = node.values.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public V next() {
+                return it.next();
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+                removedFrom(node);
+            }
+        };
+    }
+
+    @Override
+    public Pair<K, V> firstEntry() {
+        return getFirstFromNode(tree.firstNode());
+    }
+
+    @Override
+    public Pair<K, V> lastEntry() {
+        return getLastFromNode(tree.lastNode());
+    }
+
+    private Pair<K, V> getFirstFromNode(OrderStatisticTree.Node<K, V> node) {
+        if (node == null)
+            return null;
+        assert !node.values.isEmpty() : "Empty list for key " + node.key;
+        return new Pair<K, V>(node.key, node.values.get(0));
+    }
+
+    private Pair<K, V> getLastFromNode(OrderStatisticTree.Node<K, V> node) {
+        if (node == null)
+            return null;
+        assert !node.values.isEmpty() : "Empty list for key " + node.key;
+        return new Pair<K, V>(node.key, node.values.get(node.values.size() - 1));
+    }
+
+    @Override
+    public Pair<K, V> nextEntry(K key, V value) {
+        OrderStatisticTree.Node<K, V> node = tree.getNode(key);
+        if (node == null)
+            return null;
+        // Find correct position at list
+        boolean found = false;
+        for (V cur : node.values) {
+            if (found) {
+                // Found during previous iteration
+                return new Pair<K, V>(key, cur);
+            }
+            if (cur.equals(value)) {
+                // Mark found, continue to next
+                found = true;
+            }
+        }
+        if (!found)
+            return null;
+        // At this point, the item was found but it was the last item in the
+        // list, so we must get the list with the next key
+        return getFirstFromNode(tree.successor(node));
+    }
+
+    @Override
+    public Pair<K, V> previousEntry(K key, V value) {
+        OrderStatisticTree.Node<K, V> node = tree.getNode(key);
+        if (node == null)
+            return null;
+        // Find correct position at list
+        V prevValue = null;
+        for (V cur : node.values) {
+            if (cur.equals(value)) {
+                if (prevValue != null) {
+                    // Return the previous key
+                    return new Pair<K, V>(key, prevValue);
+                } else {
+                    // The first value is the current, so break out
+                    break;
+                }
+            }
+            prevValue = cur;
+        }
+        // At this point, the item was found but it was the first item in the
+        // list, so we must get the list with the previous key
+        return getLastFromNode(tree.predecessor(node));
+    }
+
+    @Override
+    public Iterator<K> keyIterator() {
+        return new Iterator<K>() {
+            private OrderStatisticTree.Node<K, V> next = tree.firstNode();
+            private OrderStatisticTree.Node<K, V> current = null;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public K next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                current = next;
+                next = tree.successor(current);
+                return current.key;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null)
+                    throw new IllegalStateException();
+                tree.adjustCount(current, -current.values.size());
+                current.values.clear();
+                tree.delete(current);
+                current = null;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Pair<K, V>> iterator(boolean forward) {
+        return new ListIterator(forward);
+    }
+
+    private class ListIterator implements Iterator<Pair<K, V>> {
+
+        /** The node after the current one; found before the current is removed */
+        private OrderStatisticTree.Node<K, V> nextNode;
+        private OrderStatisticTree.Node<K, V> currentNode;
+        private Iterator<V> currentListIterator;
+        private boolean nextSearched;
+        private final boolean forward;
+
+        private ListIterator(boolean forward) {
+            this.forward = forward;
+            this.nextNode = forward ? tree.firstNode() : tree.lastNode();
+            findNext();
+        }
+
+        private boolean findNext() {
+            nextSearched = true;
+            while (true) {
+                if (currentListIterator != null && currentListIterator.hasNext())
+                    return true;
+                if (nextNode == null) {
+                    currentListIterator = null;
+                    currentNode = null;
+                    return false;
+                }
+                currentNode = nextNode;
+                nextNode = forward ? tree.successor(currentNode) : tree.predecessor(currentNode);
+                currentListIterator = forward ? currentNode.values.listIterator()
+                    : new ReverseIterator<V>(currentNode.values);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!nextSearched)
+                findNext();
+            return currentListIterator != null && currentListIterator.hasNext();
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            if (!hasNext())
+                throw new IllegalStateException("No more entries available");
+            assert currentListIterator.hasNext();
+            Pair<K, V> result = new Pair<K, V>(currentNode.key, currentListIterator.next());
+            nextSearched = false;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            if (nextSearched)
+                throw new IllegalStateException(
+                    "hasNext() called before remove(), state has been invalidated");
+            currentListIterator.remove();
+            // Removes the entire node if its list became empty
+            removedFrom(currentNode);
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package fi.tuska.util;
+
+/**
+ * The 2Q eviction policy. New keys enter a FIFO queue (A1in); keys evicted
+ * from it are remembered in a ghost queue (A1out). Only a key that is
+ * inserted again while it is in the ghost queue is promoted to the main LRU
+ * queue (Am). Keys that are used once, such as the keys of a scan, thus pass
+ * through A1in without flushing out the main queue.
+ *
+ * Keys inserted cold are kept apart until they are used, and they are
+ * evicted first, the oldest first, without being remembered in A1out. The
+ * first use of a cold key is handled as its insert.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ */
+public class TwoQueuePolicy<K> implements EvictionPolicy<K> {
+
+    private final KeyList<K> in = new KeyList<K>();
+    private final KeyList<K> out = new KeyList<K>();
+    private final KeyList<K> main = new KeyList<K>();
+    /** The cold keys that have not been used, the oldest at the tail */
+    private final KeyList<K> cold = new KeyList<K>();
+    /** Target size of A1in */
+    private final int inSize;
+    /** Maximum size of A1out */
+    private final int outSize;
+
+    /**
+     * Creates a policy with the recommended queue sizes: A1in holds 25% and
+     * A1out 50% of the capacity.
+     *
+     * @param capacity the amount of entries in the map
+     */
+    public TwoQueuePolicy(int capacity) {
+        this(capacity, Math.max(1, capacity / 4), Math.max(1, capacity / 2));
+    }
+
+    public TwoQueuePolicy(int capacity, int inSize, int outSize) {
+        if (inSize < 1 || inSize > capacity || outSize < 1)
+            throw new IllegalArgumentException("Invalid queue sizes " + inSize + "/" + outSize
+                + " for capacity " + capacity);
+        this.inSize = inSize;
+        this.outSize = outSize;
+    }
+
+    @Override
+    public void recordInsert(K key) {
+        if (out.remove(key)) {
+            main.addFirst(key);
+        } else {
+            in.addFirst(key);
+        }
+    }
+
+    @Override
+    public void recordColdInsert(K key) {
+        cold.addFirst(key);
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        if (cold.remove(key)) {
+            recordInsert(key);
+            return;
+        }
+        // Uses while in A1in are considered correlated and ignored
+        main.moveToHead(key);
+    }
+
+    @Override
+    public void recordRemove(K key) {
+        if (!cold.remove(key) && !in.remove(key))
+            main.remove(key);
+    }
+
+    @Override
+    public K chooseVictim(Filter<? super K> evictable) {
+        K victim = evictFrom(cold, evictable);
+        if (victim != null)
+            return victim;
+        if (in.size() > inSize || main.isEmpty()) {
+            victim = evictFromIn(evictable);
+            if (victim != null)
+                return victim;
+            return evictFrom(main, evictable);
+        }
+        victim = evictFrom(main, evictable);
+        if (victim != null)
+            return victim;
+        return evictFromIn(evictable);
+    }
+
+    private K evictFromIn(Filter<? super K> evictable) {
+        K victim = evictFrom(in, evictable);
+        if (victim != null) {
+            out.addFirst(victim);
+            if (out.size() > outSize)
+                out.removeLast();
+        }
+        return victim;
+    }
+
+    private K evictFrom(KeyList<K> list, Filter<? super K> evictable) {
+        K victim = list.findLast(evictable);
+        if (victim != null)
+            list.remove(victim);
+        return victim;
+    }
+
+    @Override
+    public int size() {
+        return in.size() + main.size() + cold.size();
+    }
+
+    @Override
+    public String toString() {
+        return "2Q";
+    }
+
+}
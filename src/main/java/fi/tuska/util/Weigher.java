@@ -0,0 +1,25 @@
+package fi.tuska.util;
+
+/**
+ * Calculates the weight of a map entry. Used by the leaking maps to express
+ * their capacity as a total weight (such as bytes) instead of an amount of
+ * entries.
+ *
+ * @author thaapasa
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public interface Weigher<K, V> {
+
+    /**
+     * Calculates the weight of the given entry. The weight of an entry must
+     * not change while the entry is stored in a map.
+     *
+     * @param key the key of the entry
+     * @param value the value of the entry
+     * @return the weight of the entry; must not be negative
+     */
+    int weigh(K key, V value);
+
+}
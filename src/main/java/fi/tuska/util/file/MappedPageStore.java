@@ -0,0 +1,339 @@
+package fi.tuska.util.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import fi.tuska.util.FixableLeakingMap;
+import fi.tuska.util.FrameBufferPool;
+import fi.tuska.util.Loader;
+
+/**
+ * A page file that is accessed through memory-mapped regions instead of
+ * separate reads and writes. The file is mapped in large regions when the
+ * pages are first accessed; reading a page returns a read-only view to the
+ * mapped region without copying, and writing a page is a copy into the
+ * region. The operating system writes the modified regions to the disk in
+ * the background; {@link #force()} writes them explicitly, for example at a
+ * checkpoint.
+ *
+ * Reads map the regions read-only, and only up to the end of the file.
+ * Writing maps the whole region for writing, which grows the file to the
+ * end of the region, so the file can be longer than the pages it holds. The
+ * amount of pages is therefore stored in a header at the start of the file,
+ * padded to a whole number of pages so that the pages stay aligned. The
+ * header is written to the disk after the pages by {@link #force()}, so
+ * after a crash the file has at least the pages that were last forced.
+ *
+ * The store can be attached to a {@link FixableLeakingMap} with page buffer
+ * values as the loader and leak listener, and to a {@link FrameBufferPool}
+ * as the page loader and frame listener:
+ *
+ * <pre>
+ * MappedPageStore store = new MappedPageStore(file, 4096);
+ * FixableLeakingMap&lt;Long, ByteBuffer&gt; pages = ...;
+ * pages.addLeakEventListener(store);
+ * ByteBuffer page = pages.get(id);
+ * if (page == null) pages.put(id, store.load(id));
+ * </pre>
+ *
+ * All operations are synchronized.
+ *
+ * @author thaapasa
+ */
+public class MappedPageStore implements Loader<Long, ByteBuffer>,
+    FixableLeakingMap.LeakEventListener<Long, ByteBuffer>, FrameBufferPool.PageLoader,
+    FrameBufferPool.FrameListener, Closeable {
+
+    private static final Logger log = Logger.getLogger(MappedPageStore.class);
+
+    /** Default size of the mapped regions */
+    public static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+    /** Identifies the page store files ("MPS1") */
+    private static final int MAGIC = 0x4D505331;
+    /** Header: magic, page size and page count */
+    private static final int HEADER_SIZE = 16;
+    private static final int PAGE_SIZE_OFFSET = 4;
+    private static final int PAGE_COUNT_OFFSET = 8;
+
+    private final File file;
+    private final int pageSize;
+    private final int pagesPerRegion;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    /** Offset of the first page: the header rounded up to whole pages */
+    private final long dataStart;
+    private final List<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+    /** Regions written after they were last forced */
+    private final BitSet modifiedRegions = new BitSet();
+    /** Regions mapped for writing (the others are mapped read-only) */
+    private final BitSet writableRegions = new BitSet();
+    /** The amount of pages in the file, not counting the mapping growth */
+    private long pageCount;
+    /** Whether the page count has changed after the header was forced */
+    private boolean headerModified = false;
+    private boolean closed = false;
+
+    public MappedPageStore(File file, int pageSize) throws IOException {
+        this(file, pageSize, DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * Opens the page store file, or creates it if the file is empty.
+     * 
+     * @param regionSize the size of the mapped regions; rounded down to a
+     * multiple of the page size
+     * @throws IOException if the file is not a page store file with the
+     * given page size
+     */
+    public MappedPageStore(File file, int pageSize, int regionSize) throws IOException {
+        if (pageSize < 1 || regionSize < pageSize)
+            throw new IllegalArgumentException("Invalid page size " + pageSize
+                + " or region size " + regionSize);
+        this.file = file;
+        this.pageSize = pageSize;
+        this.pagesPerRegion = regionSize / pageSize;
+        this.dataStart = (HEADER_SIZE + pageSize - 1) / pageSize * (long) pageSize;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        try {
+            this.header = mapHeader();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        this.pageCount = header.getLong(PAGE_COUNT_OFFSET);
+    }
+
+    /**
+     * Maps the header, writing it if the file is empty.
+     */
+    private MappedByteBuffer mapHeader() throws IOException {
+        long size = channel.size();
+        if (size != 0 && size < HEADER_SIZE)
+            throw new IOException(file + " is not a page store file");
+        MappedByteBuffer h = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (size == 0) {
+            h.putInt(0, MAGIC);
+            h.putInt(PAGE_SIZE_OFFSET, pageSize);
+            h.putLong(PAGE_COUNT_OFFSET, 0);
+            h.force();
+        } else if (h.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a page store file");
+        } else if (h.getInt(PAGE_SIZE_OFFSET) != pageSize) {
+            throw new IOException(file + " has " + h.getInt(PAGE_SIZE_OFFSET)
+                + " byte pages, not " + pageSize);
+        }
+        return h;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the amount of pages in the file: one more than the greatest
+     * page written
+     */
+    public synchronized long getPageCount() throws IOException {
+        checkOpen();
+        return pageCount;
+    }
+
+    /**
+     * Returns a read-only view to the page in the mapped file. The view stays
+     * valid until the store is closed, and reflects later writes to the page.
+     * Pages that have not been written read as zeros; the view to a page past
+     * the end of the file is not mapped, and does not reflect later writes.
+     */
+    public synchronized ByteBuffer readPage(long pageId) throws IOException {
+        return pageView(pageId, false).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the page into the given buffer, from its position on.
+     */
+    public synchronized void readPage(long pageId, ByteBuffer target) throws IOException {
+        target.put(pageView(pageId, false));
+    }
+
+    /**
+     * Copies the data to the page, from the position of the data buffer to
+     * its limit. The position of the data buffer is not changed.
+     */
+    public synchronized void writePage(long pageId, ByteBuffer data) throws IOException {
+        if (data.remaining() > pageSize)
+            throw new IllegalArgumentException("Page data is " + data.remaining()
+                + " bytes, page size is " + pageSize);
+        pageView(pageId, true).put(data.duplicate());
+        modifiedRegions.set(regionOf(pageId));
+        if (pageId >= pageCount) {
+            pageCount = pageId + 1;
+            header.putLong(PAGE_COUNT_OFFSET, pageCount);
+            headerModified = true;
+        }
+    }
+
+    public synchronized void writePage(long pageId, byte[] data) throws IOException {
+        writePage(pageId, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Writes the modified regions to the disk, and then the page count, and
+     * waits until they have been written.
+     */
+    public synchronized void force() throws IOException {
+        checkOpen();
+        int count = 0;
+        for (int r = modifiedRegions.nextSetBit(0); r >= 0; r = modifiedRegions
+            .nextSetBit(r + 1)) {
+            regions.get(r).force();
+            count++;
+        }
+        modifiedRegions.clear();
+        if (headerModified) {
+            header.force();
+            headerModified = false;
+        }
+        if (log.isDebugEnabled())
+            log.debug("Forced " + count + " regions of " + file);
+    }
+
+    /**
+     * Forces the modified regions to the disk and closes the file. The file
+     * is not truncated to the last page, as a file cannot be truncated while
+     * it is mapped on all platforms. The page views returned earlier must not
+     * be used after this.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            force();
+        } finally {
+            closed = true;
+            regions.clear();
+            writableRegions.clear();
+            channel.close();
+            raf.close();
+        }
+    }
+
+    /**
+     * Loads the page as a read-only view to the mapped file.
+     */
+    @Override
+    public ByteBuffer load(Long pageId) throws IOException {
+        return readPage(pageId.longValue());
+    }
+
+    /**
+     * Writes the leaked page to the file.
+     */
+    @Override
+    public void itemLeaked(Long pageId, ByteBuffer page) {
+        write(pageId.longValue(), page);
+    }
+
+    @Override
+    public void loadPage(long pageId, ByteBuffer frame) throws IOException {
+        readPage(pageId, frame);
+    }
+
+    @Override
+    public void frameLeaked(long pageId, ByteBuffer frame) {
+        write(pageId, frame);
+    }
+
+    private void write(long pageId, ByteBuffer page) {
+        try {
+            writePage(pageId, page);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write page " + pageId + " to " + file, e);
+        }
+    }
+
+    /**
+     * @return a view to the page, mapping its region if necessary; writable
+     * if write is true. A read past the end of the file returns an unmapped
+     * page of zeros.
+     */
+    private ByteBuffer pageView(long pageId, boolean write) throws IOException {
+        checkOpen();
+        if (pageId < 0)
+            throw new IllegalArgumentException("Invalid page " + pageId);
+        int index = regionOf(pageId);
+        int offset = (int) (pageId % pagesPerRegion) * pageSize;
+        MappedByteBuffer region = getRegion(index, write, offset + pageSize);
+        if (region == null)
+            return ByteBuffer.allocate(pageSize);
+        ByteBuffer view = region.duplicate();
+        view.position(offset);
+        view.limit(offset + pageSize);
+        return view.slice();
+    }
+
+    /**
+     * Maps the region, if it is not mapped or does not cover the given
+     * length. Reads map the region read-only and only up to the end of the
+     * file; writes map the whole region for writing.
+     * 
+     * @return the region, or null if a read is past the end of the file
+     */
+    private MappedByteBuffer getRegion(int index, boolean write, int length)
+        throws IOException {
+        while (regions.size() <= index) {
+            regions.add(null);
+        }
+        MappedByteBuffer region = regions.get(index);
+        if (writableRegions.get(index) || (!write && region != null && region.capacity() >= length))
+            return region;
+        long regionSize = (long) pagesPerRegion * pageSize;
+        long start = dataStart + index * regionSize;
+        if (write) {
+            // Mapping past the end of the file grows the file. The earlier
+            // read-only views share the mapped file, so they see the writes.
+            region = channel.map(FileChannel.MapMode.READ_WRITE, start, regionSize);
+            writableRegions.set(index);
+        } else {
+            long mapped = Math.min(regionSize, channel.size() - start);
+            if (mapped < length)
+                return null;
+            region = channel.map(FileChannel.MapMode.READ_ONLY, start, mapped);
+        }
+        regions.set(index, region);
+        if (log.isDebugEnabled())
+            log.debug("Mapped region " + index + " of " + file + (write ? "" : " read-only"));
+        return region;
+    }
+
+    private int regionOf(long pageId) {
+        long region = pageId / pagesPerRegion;
+        if (region > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Page " + pageId + " is too far in the file");
+        return (int) region;
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Page store " + file + " is closed");
+    }
+
+    @Override
+    public String toString() {
+        return "MappedPageStore " + file + " (" + pageSize + " byte pages)";
+    }
+
+}
@@ -0,0 +1,146 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class ConcurrentLeakingMapTest extends TestCase {
+
+    public void testCapacity() {
+        ConcurrentLeakingMap<Integer, Integer> map = new ConcurrentLeakingMap<Integer, Integer>(
+            100, 4);
+        assertEquals(4, map.getSegmentCount());
+        final List<Integer> leaked = new ArrayList<Integer>();
+        map.addLeakEventListener(new LeakingMap.LeakEventListener<Integer>() {
+            @Override
+            public void itemLeaked(Integer item) {
+                leaked.add(item);
+            }
+        });
+
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i + 1000);
+            assertTrue(map.getSize() <= 100);
+        }
+        assertEquals(100, map.getSize());
+        assertEquals(900, leaked.size());
+        assertEquals(100, map.keySet().size());
+        for (Integer key : map.keySet()) {
+            assertEquals(key + 1000, map.get(key).intValue());
+        }
+
+        map.setMaximumSize(10);
+        assertEquals(10, map.getMaximumSize());
+        assertEquals(10, map.getSize());
+        assertEquals(990, leaked.size());
+    }
+
+    public void testUnevenShares() {
+        ConcurrentLeakingMap<Integer, Integer> map = new ConcurrentLeakingMap<Integer, Integer>(
+            10, 3);
+        assertEquals(4, map.getSegmentCount());
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        assertEquals(10, map.getSize());
+    }
+
+    public void testSmallSize() {
+        // Every segment gets room for at least one entry
+        ConcurrentLeakingMap<Integer, Integer> map = new ConcurrentLeakingMap<Integer, Integer>(
+            3, 16);
+        assertEquals(2, map.getSegmentCount());
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        assertEquals(3, map.getSize());
+
+        map = new ConcurrentLeakingMap<Integer, Integer>(1, 16);
+        assertEquals(1, map.getSegmentCount());
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+            assertEquals(Integer.valueOf(i), map.get(i));
+        }
+        assertEquals(1, map.getSize());
+    }
+
+    public void testShrinkBelowSegmentCount() {
+        ConcurrentLeakingMap<Integer, Integer> map = new ConcurrentLeakingMap<Integer, Integer>(
+            100, 4);
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        // Every segment keeps room for one entry
+        map.setMaximumSize(2);
+        assertEquals(4, map.getMaximumSize());
+        assertEquals(4, map.getSize());
+        for (int i = 100; i < 200; i++) {
+            map.put(i, i);
+            assertEquals(Integer.valueOf(i), map.get(i));
+        }
+        try {
+            map.setMaximumSize(0);
+            fail("Set the maximum size to zero");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+    }
+
+    public void testConcurrentAccess() throws InterruptedException {
+        final ConcurrentLeakingMap<Integer, Integer> map = new ConcurrentLeakingMap<Integer, Integer>(
+            64);
+        final AtomicInteger leaks = new AtomicInteger();
+        map.addLeakEventListener(new LeakingMap.LeakEventListener<Integer>() {
+            @Override
+            public void itemLeaked(Integer item) {
+                leaks.incrementAndGet();
+            }
+        });
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 1000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        map.put(base + i, i);
+                        map.get(base + i / 2);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(map.getSize() <= 64);
+        assertEquals(8000, leaks.get() + map.getSize());
+    }
+
+    public void testBulkOperations() {
+        ConcurrentLeakingMap<Integer, Integer> map = new ConcurrentLeakingMap<Integer, Integer>(
+            100, 4);
+        Map<Integer, Integer> entries = new HashMap<Integer, Integer>();
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 80; i++) {
+            entries.put(i, i + 1000);
+            keys.add(i);
+        }
+        map.putAll(entries);
+        assertEquals(80, map.getSize());
+
+        keys.add(500);
+        Map<Integer, Integer> found = map.getAll(keys);
+        assertEquals(entries, found);
+
+        assertEquals(40, map.invalidateAll(keys.subList(0, 40)));
+        assertEquals(40, map.getSize());
+        assertNull(map.get(10));
+        assertEquals(Integer.valueOf(1050), map.get(50));
+    }
+
+}
@@ -0,0 +1,134 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class ConcurrentSortedListTest extends TestCase {
+
+    public void testSortedListOperations() {
+        ConcurrentSortedList<Integer, String> list = new ConcurrentSortedList<Integer, String>();
+        assertTrue(list.isEmpty());
+        assertNull(list.getFirstKey());
+        assertNull(list.getLastFloor(5));
+
+        list.add(2, "b");
+        list.add(2, "a");
+        list.add(6, "c");
+        list.add(9, "d");
+        assertEquals(4, list.size());
+        assertEquals("[2:{a,b},6:{c},9:{d}]", list.toString());
+        assertEquals(CollectionUtils.getList("a", "b"), list.getAll(2));
+        assertEquals("a", list.getFirst(2));
+        assertEquals("b", list.getLast(2));
+        assertNull(list.getFirst(3));
+
+        assertEquals(new Pair<Integer, String>(2, "b"), list.getLastFloor(4));
+        assertEquals(new Pair<Integer, String>(6, "c"), list.getLastFloor(6));
+        assertNull(list.getLastFloor(1));
+        assertEquals(new Pair<Integer, String>(6, "c"), list.getFirstCeiling(3));
+        assertNull(list.getFirstCeiling(10));
+        assertEquals(CollectionUtils.getList("a", "b"), list.getAllFloor(5).getSecond());
+        assertEquals(9, list.getAllCeiling(7).getFirst().intValue());
+
+        assertEquals(new Pair<Integer, String>(6, "c"), list.nextEntry(2, "b"));
+        assertEquals(new Pair<Integer, String>(2, "a"), list.previousEntry(2, "b"));
+        assertNull(list.nextEntry(2, "x"));
+
+        Iterator<Pair<Integer, String>> range = list.iterator(2, 9);
+        assertEquals("a", range.next().getSecond());
+        assertEquals("b", range.next().getSecond());
+        assertEquals("c", range.next().getSecond());
+        assertFalse(range.hasNext());
+
+        Iterator<Integer> keys = list.keyIterator();
+        assertEquals(2, keys.next().intValue());
+        keys.remove();
+        assertEquals(6, keys.next().intValue());
+        assertEquals(9, keys.next().intValue());
+        assertFalse(keys.hasNext());
+        assertEquals(2, list.size());
+
+        assertEquals("c", list.removeFirst(6));
+        assertNull(list.removeFirst(6));
+        assertFalse(list.remove(9, "x"));
+        assertTrue(list.remove(9, "d"));
+        assertTrue(list.isEmpty());
+        assertEquals(0, list.size());
+    }
+
+    public void testNonComparableValues() {
+        ConcurrentSortedList<Integer, Object> list = new ConcurrentSortedList<Integer, Object>();
+        Object first = new Object();
+        Object second = new Object();
+        list.add(1, first);
+        list.add(1, second);
+        // Newer values go first, as in SortedList
+        assertSame(second, list.getFirst(1));
+        assertSame(first, list.getLast(1));
+        Iterator<Object> it = list.iterator(1);
+        it.next();
+        it.remove();
+        assertEquals(1, list.size());
+        assertSame(first, list.getFirst(1));
+    }
+
+    public void testConcurrentProducers() throws InterruptedException {
+        final ConcurrentSortedList<Long, Integer> list = new ConcurrentSortedList<Long, Integer>();
+        final int threads = 4;
+        final int perThread = 5000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            long key = i % 1000;
+                            list.add(key, id * perThread + i);
+                            // Remove every other added value again
+                            if (i % 2 == 1 && list.removeFirst(key) == null)
+                                throw new AssertionError("Nothing to remove with key " + key);
+                            // Readers see a consistent floor/ceiling
+                            Pair<Long, Integer> floor = list.getLastFloor(key);
+                            if (floor != null && floor.getFirst() > key)
+                                throw new AssertionError("Invalid floor " + floor);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(threads * perThread / 2, list.size());
+
+        int count = 0;
+        Long previous = null;
+        for (Pair<Long, Integer> entry : list) {
+            if (previous != null)
+                assertTrue(previous <= entry.getFirst());
+            previous = entry.getFirst();
+            count++;
+        }
+        assertEquals(list.size(), count);
+        list.clear();
+        assertTrue(list.isEmpty());
+        assertEquals(0, list.size());
+    }
+
+}
@@ -0,0 +1,122 @@
+package fi.tuska.util;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DoubleSortedListTest extends TestCase {
+
+    public void testOperations() {
+        DoubleSortedList<String> list = new DoubleSortedList<String>();
+        list.add(1.5, "b");
+        list.add(-2.25, "a");
+        list.add(1.5, "c");
+        list.add(Double.NaN, "nan");
+        list.add(Double.NEGATIVE_INFINITY, "min");
+        assertEquals(5, list.size());
+        assertEquals(Double.NEGATIVE_INFINITY, list.getFirstKey());
+        assertTrue(Double.isNaN(list.getLastKey()));
+
+        assertEquals("c", list.getLastFloor(2));
+        assertEquals("a", list.getLastFloor(-2.25));
+        assertEquals("min", list.getLastFloor(-3));
+        assertEquals("b", list.getFirstCeiling(0));
+        assertEquals("nan", list.getFirstCeiling(Double.POSITIVE_INFINITY));
+        assertEquals(CollectionUtils.getList("b", "c"), list.getAllCeiling(1.5));
+
+        DoubleSortedList<String>.Cursor c = list.ceiling(-1);
+        assertEquals(1.5, c.key());
+        assertTrue(c.next());
+        assertEquals("c", c.value());
+        assertTrue(c.next());
+        assertEquals("nan", c.value());
+        assertFalse(c.next());
+
+        assertTrue(list.remove(1.5, "b"));
+        assertEquals("[-Infinity:{min},-2.25:{a},1.5:{c},NaN:{nan}]", list.toString());
+        assertTrue(list.contains(Double.NaN));
+        assertFalse(list.contains(1.25));
+        assertEquals("c", list.removeFirst(1.5));
+        assertNull(list.removeFirst(1.5));
+        assertEquals(3, list.size());
+    }
+
+    public void testSpecialKeys() {
+        DoubleSortedList<String> list = new DoubleSortedList<String>();
+        try {
+            list.getLastKey();
+            fail("No exception thrown for an empty list");
+        } catch (NoSuchElementException e) {
+            // OK
+        }
+        list.add(0.0, "zero");
+        list.add(-0.0, "negzero");
+        list.add(Double.MIN_VALUE, "tiny");
+        list.add(-Double.MIN_VALUE, "negtiny");
+        list.add(Double.POSITIVE_INFINITY, "max");
+        list.add(-Double.MAX_VALUE, "min");
+        list.add(Double.longBitsToDouble(0xfff8000000000001L), "nan");
+        assertEquals("[-1.7976931348623157E308:{min},-4.9E-324:{negtiny},-0.0:{negzero},"
+            + "0.0:{zero},4.9E-324:{tiny},Infinity:{max},NaN:{nan}]", list.toString());
+        // -0.0 and 0.0 are different keys
+        assertEquals("negzero", list.getFirst(-0.0));
+        assertEquals("negzero", list.getLastFloor(-Double.MIN_VALUE / 2));
+        assertEquals("zero", list.getFirstCeiling(0.0));
+        assertEquals(-0.0, list.floor(-0.0).key());
+        assertEquals(Double.doubleToLongBits(-0.0),
+            Double.doubleToLongBits(list.floor(-0.0).key()));
+        // All NaNs are the same key
+        assertEquals("nan", list.getFirst(Double.NaN));
+        assertEquals(Double.POSITIVE_INFINITY, list.ceiling(Double.POSITIVE_INFINITY).key());
+        DoubleSortedList<String>.Cursor c = list.cursor();
+        assertEquals(-Double.MAX_VALUE, c.key());
+        assertTrue(c.seekLast());
+        assertTrue(Double.isNaN(c.key()));
+        assertTrue(c.previous());
+        assertEquals(Double.POSITIVE_INFINITY, c.key());
+    }
+
+    public void testRandomizedAgainstSortedList() {
+        DoubleSortedList<Integer> list = new DoubleSortedList<Integer>();
+        SortedList<Double, Integer> reference = new SortedList<Double, Integer>();
+        Random random = new Random(5);
+        // Enough entries to split and remove pages; negative and positive
+        // keys with fractions
+        for (int round = 0; round < 20000; round++) {
+            double key = (random.nextInt(round < 15000 ? 2000 : 200) - 100) / 4.0;
+            if (round < 15000 ? random.nextInt(4) > 0 : random.nextInt(4) == 0) {
+                int value = random.nextInt(30);
+                list.add(key, value);
+                reference.add(key, value);
+            } else {
+                assertEquals(reference.removeFirst(key), list.removeFirst(key));
+            }
+            assertEquals(reference.size(), list.size());
+            if (round % 50 == 0) {
+                double probe = key + 0.125;
+                assertEquals(reference.getAll(key), list.getAll(key));
+                Pair<Double, Integer> floor = reference.getLastFloor(probe);
+                DoubleSortedList<Integer>.Cursor c = list.floor(probe);
+                assertEquals(floor != null, c.isValid());
+                if (floor != null) {
+                    assertEquals(floor.getFirst().doubleValue(), c.key());
+                    assertEquals(floor.getSecond(), c.value());
+                }
+                Pair<Double, Integer> ceiling = reference.getFirstCeiling(probe);
+                assertEquals(ceiling != null ? ceiling.getSecond() : null, list
+                    .getFirstCeiling(probe));
+            }
+        }
+
+        List<Pair<Double, Integer>> all = reference.getAll();
+        int i = 0;
+        for (DoubleSortedList<Integer>.Cursor c = list.cursor(); c.isValid(); c.next(), i++) {
+            assertEquals(all.get(i).getFirst().doubleValue(), c.key());
+            assertEquals(all.get(i).getSecond(), c.value());
+        }
+        assertEquals(all.size(), i);
+    }
+
+}
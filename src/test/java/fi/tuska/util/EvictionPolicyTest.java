@@ -0,0 +1,222 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class EvictionPolicyTest extends TestCase {
+
+    public void testLru() {
+        EvictionPolicy<Integer> policy = new LruPolicy<Integer>();
+        policy.recordInsert(1);
+        policy.recordInsert(2);
+        policy.recordInsert(3);
+        policy.recordAccess(1);
+        assertEquals(Integer.valueOf(2), policy.chooseVictim(null));
+        policy.recordRemove(3);
+        assertEquals(1, policy.size());
+        assertEquals(Integer.valueOf(1), policy.chooseVictim(null));
+        assertNull(policy.chooseVictim(null));
+    }
+
+    public void testLru2() {
+        EvictionPolicy<Integer> policy = new Lru2Policy<Integer>(10);
+        policy.recordInsert(1);
+        policy.recordAccess(1);
+        policy.recordInsert(2);
+        policy.recordAccess(2);
+        policy.recordInsert(3);
+        // Key 3 has been used only once
+        assertEquals(Integer.valueOf(3), policy.chooseVictim(null));
+        policy.recordAccess(1);
+        policy.recordAccess(1);
+        assertEquals(Integer.valueOf(2), policy.chooseVictim(null));
+        // The history of key 2 is remembered, so it is not evicted first
+        // after it is inserted again
+        policy.recordInsert(2);
+        policy.recordInsert(4);
+        assertEquals(Integer.valueOf(4), policy.chooseVictim(null));
+    }
+
+    public void testTwoQueue() {
+        EvictionPolicy<Integer> policy = new TwoQueuePolicy<Integer>(4, 1, 2);
+        policy.recordInsert(1);
+        policy.recordInsert(2);
+        // A1in is over its target, evict from it; key 1 goes to A1out
+        assertEquals(Integer.valueOf(1), policy.chooseVictim(null));
+        // Key 1 comes back and is promoted to the main queue
+        policy.recordInsert(1);
+        policy.recordInsert(3);
+        assertEquals(Integer.valueOf(2), policy.chooseVictim(null));
+        // A1in is within its target, so the main queue is used
+        assertEquals(Integer.valueOf(1), policy.chooseVictim(null));
+        assertEquals(Integer.valueOf(3), policy.chooseVictim(null));
+    }
+
+    public void testArc() {
+        ArcPolicy<Integer> policy = new ArcPolicy<Integer>(2);
+        policy.recordInsert(1);
+        policy.recordInsert(2);
+        policy.recordAccess(1);
+        // Key 1 is in T2, key 2 in T1
+        assertEquals(Integer.valueOf(2), policy.chooseVictim(null));
+        assertEquals(0, policy.getTargetRecencySize());
+        // Key 2 is found in B1, so T1 should have been larger
+        policy.recordInsert(2);
+        assertEquals(1, policy.getTargetRecencySize());
+        assertEquals(2, policy.size());
+    }
+
+    public void testArcPrepareInsert() {
+        ArcPolicy<Integer> policy = new ArcPolicy<Integer>(2);
+        policy.recordInsert(1);
+        policy.recordInsert(2);
+        policy.recordAccess(1);
+        assertEquals(Integer.valueOf(2), policy.chooseVictim(null));
+        policy.recordInsert(3);
+        // Key 2 is found in B1 before the victim is chosen, so T1 (key 3) is
+        // within its new target size and the victim comes from T2
+        policy.prepareInsert(2);
+        assertEquals(1, policy.getTargetRecencySize());
+        assertEquals(Integer.valueOf(1), policy.chooseVictim(null));
+        policy.recordInsert(2);
+        assertEquals(1, policy.getTargetRecencySize());
+        assertEquals(2, policy.size());
+    }
+
+    public void testLruColdInsert() {
+        EvictionPolicy<Integer> policy = new LruPolicy<Integer>();
+        policy.recordInsert(1);
+        policy.recordColdInsert(2);
+        policy.recordColdInsert(3);
+        policy.recordColdInsert(4);
+        policy.recordAccess(4);
+        // Unused cold keys go first, the oldest first
+        assertEquals(Integer.valueOf(2), policy.chooseVictim(null));
+        assertEquals(Integer.valueOf(3), policy.chooseVictim(null));
+        assertEquals(Integer.valueOf(1), policy.chooseVictim(null));
+        assertEquals(1, policy.size());
+    }
+
+    public void testArcColdInsert() {
+        ArcPolicy<Integer> policy = new ArcPolicy<Integer>(4);
+        policy.recordInsert(1);
+        policy.recordColdInsert(2);
+        policy.recordColdInsert(3);
+        policy.recordAccess(3);
+        assertEquals(3, policy.size());
+        // The unused cold key goes first and is not remembered in B1
+        assertEquals(Integer.valueOf(2), policy.chooseVictim(null));
+        policy.recordInsert(2);
+        assertEquals(0, policy.getTargetRecencySize());
+        // Key 3 was inserted in T1 when it was first used
+        assertEquals(Integer.valueOf(1), policy.chooseVictim(null));
+        assertEquals(Integer.valueOf(3), policy.chooseVictim(null));
+        assertEquals(1, policy.size());
+    }
+
+    public void testTwoQueueColdInsert() {
+        EvictionPolicy<Integer> policy = new TwoQueuePolicy<Integer>(4, 1, 2);
+        policy.recordInsert(1);
+        policy.recordColdInsert(2);
+        policy.recordColdInsert(3);
+        policy.recordColdInsert(4);
+        policy.recordAccess(4);
+        // Unused cold keys go first, the oldest first
+        assertEquals(Integer.valueOf(2), policy.chooseVictim(null));
+        assertEquals(Integer.valueOf(3), policy.chooseVictim(null));
+        // Key 4 entered A1in when it was first used
+        assertEquals(Integer.valueOf(1), policy.chooseVictim(null));
+        assertEquals(1, policy.size());
+        // Key 2 was not remembered in A1out, so it is not promoted
+        policy.recordInsert(2);
+        assertEquals(Integer.valueOf(4), policy.chooseVictim(null));
+    }
+
+    public void testLru2ColdInsert() {
+        EvictionPolicy<Integer> policy = new Lru2Policy<Integer>(10);
+        policy.recordInsert(1);
+        policy.recordAccess(1);
+        policy.recordColdInsert(2);
+        policy.recordColdInsert(3);
+        policy.recordColdInsert(4);
+        policy.recordAccess(4);
+        assertEquals(4, policy.size());
+        // Unused cold keys go first, the oldest first
+        assertEquals(Integer.valueOf(2), policy.chooseVictim(null));
+        assertEquals(Integer.valueOf(3), policy.chooseVictim(null));
+        // Key 4 has been used once, key 1 twice
+        assertEquals(Integer.valueOf(4), policy.chooseVictim(null));
+        assertEquals(Integer.valueOf(1), policy.chooseVictim(null));
+        assertEquals(0, policy.size());
+    }
+
+    public void testLruRelease() {
+        EvictionPolicy<Integer> policy = new LruPolicy<Integer>();
+        policy.recordInsert(1);
+        policy.recordInsert(2);
+        policy.recordRelease(1);
+        assertEquals(Integer.valueOf(2), policy.chooseVictim(null));
+    }
+
+    public void testFilter() {
+        for (EvictionPolicy<Integer> policy : EvictionTraceReplay.<Integer> createPolicies(10)) {
+            for (int i = 0; i < 10; i++) {
+                policy.recordInsert(i);
+            }
+            Filter<Integer> even = new Filter<Integer>() {
+                @Override
+                public boolean isValid(Integer key) {
+                    return key % 2 == 0;
+                }
+            };
+            List<Integer> victims = new ArrayList<Integer>();
+            Integer victim;
+            while ((victim = policy.chooseVictim(even)) != null) {
+                victims.add(victim);
+            }
+            assertEquals(policy.toString(), Arrays.asList(0, 2, 4, 6, 8), victims);
+            assertEquals(5, policy.size());
+        }
+    }
+
+    /**
+     * A Zipf-distributed workload with periodic scans over keys that are
+     * never used again.
+     */
+    private List<Integer> createTrace() {
+        final int keys = 2000;
+        double[] cdf = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1.0 / Math.pow(i + 1, 0.9);
+            cdf[i] = sum;
+        }
+        Random random = new Random(42);
+        List<Integer> trace = new ArrayList<Integer>();
+        int scanKey = keys;
+        for (int i = 0; i < 100000; i++) {
+            if (i % 5000 < 1000) {
+                trace.add(scanKey++);
+            } else {
+                int pos = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                trace.add(pos >= 0 ? pos : -pos - 1);
+            }
+        }
+        return trace;
+    }
+
+    public void testScanResistance() {
+        List<Integer> trace = createTrace();
+        List<EvictionPolicy<Integer>> policies = EvictionTraceReplay.createPolicies(200);
+        double lru = EvictionTraceReplay.replay(policies.get(0), 200, trace);
+        for (EvictionPolicy<Integer> policy : policies.subList(1, policies.size())) {
+            double hitRate = EvictionTraceReplay.replay(policy, 200, trace);
+            assertTrue(policy + " " + hitRate + " vs. LRU " + lru, hitRate > lru);
+        }
+    }
+
+}
@@ -1,5 +1,17 @@
 package fi.tuska.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.TestCase;
 
 public class FixableLeakingMapTest extends TestCase {
@@ -31,4 +43,585 @@ public class FixableLeakingMapTest extends TestCase {
         assertEquals(null, map.get(1));
     }
 
+    public void testNullKey() {
+        FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(2);
+        map.put(null, 100);
+        map.put(1, 101);
+        map.unfix(null);
+        assertEquals(100, map.get(null).intValue());
+        map.unfix(1);
+        map.unfix(null);
+        map.put(2, 102);
+        assertTrue(map.contains(null));
+        assertFalse(map.contains(1));
+        assertEquals(100, map.remove(null).intValue());
+        // The null key can be evicted as well
+        map.put(null, 100);
+        map.unfix(null);
+        map.put(3, 103);
+        assertFalse(map.contains(null));
+    }
+
+    public void testWeights() {
+        FixableLeakingMap<Integer, String> map = new FixableLeakingMap<Integer, String>(10);
+        map.setWeigher(new Weigher<Integer, String>() {
+            @Override
+            public int weigh(Integer key, String value) {
+                return value.length();
+            }
+        });
+
+        map.put(1, "aaaa");
+        map.put(2, "bbb");
+        assertEquals(7, map.getTotalWeight());
+        assertEquals(3, map.getFreeSlots());
+        try {
+            map.put(3, "cccc");
+            fail("No exception thrown even though buffer is full of fixed pages");
+        } catch (IndexOutOfBoundsException e) {
+            // OK
+        }
+
+        map.unfix(1);
+        assertEquals(7, map.getUnfixedSpace());
+        map.put(3, "cccc");
+        assertFalse(map.contains(1));
+        assertEquals(7, map.getTotalWeight());
+
+        map.unfix(2);
+        map.unfix(3);
+        map.setMaximumSize(5);
+        assertFalse(map.contains(2));
+        assertTrue(map.contains(3));
+        assertEquals(4, map.getTotalWeight());
+        assertEquals(1, map.getFreeSlots());
+    }
+
+    public void testShrinkBelowFixed() {
+        FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(4);
+        map.put(1, 101);
+        map.put(2, 102);
+        map.put(3, 103);
+        map.unfix(3);
+        try {
+            map.setMaximumSize(1);
+            fail("Shrank below the fixed entries");
+        } catch (IndexOutOfBoundsException e) {
+            // OK
+        }
+        // Nothing was changed
+        assertEquals(4, map.getMaximumSize());
+        assertEquals(1, map.getFreeSlots());
+        assertTrue(map.contains(3));
+        map.put(4, 104);
+        assertEquals(0, map.getFreeSlots());
+
+        map.unfix(4);
+        map.setMaximumSize(2);
+        assertEquals(2, map.getSize());
+        assertFalse(map.contains(3));
+        assertEquals(0, map.getFreeSlots());
+    }
+
+    public void testStats() {
+        FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(2);
+        map.recordStats();
+        map.put(1, 101);
+        map.put(2, 102);
+        try {
+            map.put(3, 103);
+            fail("No exception thrown even though buffer is full of fixed pages");
+        } catch (IndexOutOfBoundsException e) {
+            // OK
+        }
+        map.unfix(1);
+        map.unfix(2);
+        assertEquals(101, map.get(1).intValue());
+        map.put(3, 103);
+        assertNull(map.get(2));
+
+        CacheStats stats = map.getStats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(4, stats.getPutCount());
+        assertEquals(1, stats.getEvictionCount());
+        assertEquals(1, stats.getFixCount());
+        assertEquals(2, stats.getUnfixCount());
+        assertEquals(1, stats.getBufferFullCount());
+    }
+
+    public void testAsyncLeakDispatch() throws Exception {
+        final FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(2);
+        final List<Integer> written = new ArrayList<Integer>();
+        final CountDownLatch release = new CountDownLatch(1);
+        map.addLeakEventListener(new FixableLeakingMap.LeakEventListener<Integer, Integer>() {
+            @Override
+            public void itemLeaked(Integer key, Integer item) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                synchronized (written) {
+                    written.add(key);
+                }
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            map.setLeakDispatchExecutor(executor);
+            map.put(1, 101);
+            map.unfix(1);
+            map.put(2, 102);
+            map.put(3, 103);
+            assertFalse(map.contains(1));
+            assertEquals(1, map.getPendingLeakCount());
+
+            // get() must wait for the write-back of key 1 before reporting a
+            // miss
+            final CountDownLatch started = new CountDownLatch(1);
+            final List<Integer> result = new ArrayList<Integer>();
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    Integer value = map.get(1);
+                    synchronized (written) {
+                        result.add(written.size());
+                        result.add(value);
+                    }
+                }
+            };
+            reader.start();
+            started.await();
+            Thread.sleep(50);
+            assertTrue(result.isEmpty());
+
+            release.countDown();
+            reader.join(5000);
+            assertEquals(1, result.get(0).intValue());
+            assertNull(result.get(1));
+            map.awaitPendingLeaks();
+            assertEquals(0, map.getPendingLeakCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testEvictionPolicy() {
+        FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(10,
+            new ArcPolicy<Integer>(10));
+        final List<Integer> written = new ArrayList<Integer>();
+        map.addLeakEventListener(new FixableLeakingMap.LeakEventListener<Integer, Integer>() {
+            @Override
+            public void itemLeaked(Integer key, Integer item) {
+                written.add(key);
+            }
+        });
+        // Keys 0-4 stay fixed
+        for (int i = 0; i < 5; i++) {
+            map.put(i, i);
+        }
+        for (int i = 5; i < 100; i++) {
+            if (map.get(i % 20) == null)
+                map.put(i % 20, i);
+            map.unfix(i % 20);
+        }
+        assertEquals(10, map.getSize());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(map.isFixed(i));
+            assertFalse(written.contains(i));
+        }
+        assertEquals(5, map.getTotalFixCount());
+    }
+
+    public void testReleaseOrder() {
+        FixableLeakingMap<String, String> map = new FixableLeakingMap<String, String>(2);
+        final List<String> written = new ArrayList<String>();
+        map.addLeakEventListener(new FixableLeakingMap.LeakEventListener<String, String>() {
+            @Override
+            public void itemLeaked(String key, String item) {
+                written.add(key);
+            }
+        });
+        map.put("A", "a");
+        map.put("B", "b");
+        map.unfix("B");
+        // A was released last, so it is the most recently used entry
+        map.unfix("A");
+        map.put("C", "c");
+        assertEquals(Arrays.asList("B"), written);
+    }
+
+    public void testClockMode() {
+        FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(3,
+            FixableLeakingMap.Mode.CLOCK);
+        final List<Integer> written = new ArrayList<Integer>();
+        map.addLeakEventListener(new FixableLeakingMap.LeakEventListener<Integer, Integer>() {
+            @Override
+            public void itemLeaked(Integer key, Integer item) {
+                written.add(key);
+            }
+        });
+        map.put(1, 101);
+        map.put(2, 102);
+        map.put(3, 103);
+        try {
+            map.put(4, 104);
+            fail("No exception thrown even though buffer is full of fixed pages");
+        } catch (IndexOutOfBoundsException e) {
+            // OK
+        }
+        map.unfix(2);
+        map.unfix(3);
+        assertEquals(103, map.get(3).intValue());
+        map.unfix(3);
+        assertEquals(2, map.getUnfixedSpace());
+
+        // Key 1 is fixed and key 3 has been used, so key 2 is leaked
+        map.put(4, 104);
+        assertEquals(CollectionUtils.getList(2), written);
+        assertNull(map.get(2));
+        assertEquals(2, map.getTotalFixCount());
+
+        try {
+            map.unfix(3);
+            fail("Unfixed an entry that is not fixed");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+        try {
+            map.remove(1);
+            fail("Removed a fixed entry");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+        assertEquals(103, map.remove(3).intValue());
+        assertEquals(2, map.getSize());
+    }
+
+    public void testClockModeConcurrentPins() throws Exception {
+        final FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(
+            50, FixableLeakingMap.Mode.CLOCK);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    java.util.Random random = new java.util.Random(seed);
+                    for (int i = 0; i < 20000; i++) {
+                        int key = random.nextInt(100);
+                        Integer value = map.get(key);
+                        if (value == null) {
+                            synchronized (map) {
+                                value = map.get(key);
+                                if (value == null) {
+                                    value = key + 1000;
+                                    map.put(key, value);
+                                }
+                            }
+                        }
+                        if (value.intValue() != key + 1000)
+                            errors.incrementAndGet();
+                        map.unfix(key);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        assertEquals(0, map.getTotalFixCount());
+        assertEquals(50, map.getSize());
+        assertEquals(50, map.getUnfixedSpace());
+    }
+
+    public void testEntryHeavierThanMap() {
+        for (FixableLeakingMap.Mode mode : FixableLeakingMap.Mode.values()) {
+            FixableLeakingMap<Integer, String> map = new FixableLeakingMap<Integer, String>(3,
+                mode);
+            map.setWeigher(new Weigher<Integer, String>() {
+                @Override
+                public int weigh(Integer key, String value) {
+                    return value.length();
+                }
+            });
+            // Fails at once instead of waiting for space that cannot exist
+            map.setFrameWaitTimeout(10, TimeUnit.SECONDS);
+            try {
+                map.put(1, "aaaa");
+                fail("Put an entry heavier than the map");
+            } catch (IllegalArgumentException e) {
+                // OK
+            }
+            assertEquals(0, map.getSize());
+            assertEquals(3, map.getUnfixedSpace());
+        }
+    }
+
+    public void testDirtyTracking() throws Exception {
+        FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(4);
+        map.enableDirtyTracking();
+        final List<Integer> leaked = new ArrayList<Integer>();
+        final List<List<Integer>> flushed = new ArrayList<List<Integer>>();
+        map.addLeakEventListener(new FixableLeakingMap.LeakEventListener<Integer, Integer>() {
+            @Override
+            public void itemLeaked(Integer key, Integer item) {
+                leaked.add(key);
+            }
+
+            @Override
+            public void itemsWritten(List<Pair<Integer, Integer>> items) {
+                List<Integer> keys = new ArrayList<Integer>();
+                for (Pair<Integer, Integer> item : items) {
+                    keys.add(item.getFirst());
+                }
+                flushed.add(keys);
+            }
+        });
+        map.put(4, 104);
+        map.put(3, 103);
+        map.put(2, 102);
+        map.put(1, 101);
+        map.markDirty(4);
+        map.markDirty(1);
+        map.markDirty(3);
+        assertEquals(3, map.getDirtyCount());
+        assertTrue(map.isDirty(1));
+        assertFalse(map.isDirty(2));
+
+        // Fixed entries are not flushed by the flusher
+        assertEquals(0, map.flushDirty(10));
+        // Key 4 is released first, so it is the least recently used entry
+        map.unfix(4);
+        map.unfix(3);
+        map.unfix(2);
+        map.unfix(1);
+        try {
+            map.markDirty(1);
+            fail("Marked an unfixed entry dirty");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+
+        // Written in key order, at most two at a time
+        assertEquals(2, map.flushDirty(2));
+        assertEquals(1, flushed.size());
+        assertEquals(CollectionUtils.getList(1, 3), flushed.get(0));
+        assertEquals(0, map.getTotalFixCount());
+        assertEquals(4, map.getUnfixedSpace());
+
+        // Key 4 is still dirty and is written when leaked
+        map.put(5, 105);
+        assertEquals(CollectionUtils.getList(4), leaked);
+        // Clean entries are dropped without writing them
+        map.put(6, 106);
+        map.put(7, 107);
+        map.put(8, 108);
+        assertEquals(CollectionUtils.getList(4), leaked);
+        assertEquals(0, map.getDirtyCount());
+
+        // Checkpoint writes fixed entries as well
+        map.markDirty(8);
+        map.flushAll();
+        assertEquals(CollectionUtils.getList(8), flushed.get(1));
+        assertEquals(0, map.getDirtyCount());
+        assertEquals(4, map.getTotalFixCount());
+    }
+
+    public void testPrefetch() {
+        FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(4);
+        final List<Integer> loaded = new ArrayList<Integer>();
+        map.setPrefetchLoader(new Loader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) {
+                loaded.add(key);
+                return key < 10 ? key + 100 : null;
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        map.put(1, 101);
+        map.put(2, 102);
+        map.unfix(2);
+
+        // Key 1 is in the map, key 10 has no value
+        assertEquals(3, map.prefetch(CollectionUtils.getList(1, 3, 4, 10)));
+        assertEquals(CollectionUtils.getList(3, 4, 10), loaded);
+        assertEquals(0, map.getPrefetchingCount());
+        assertEquals(4, map.getSize());
+        assertEquals(1, map.getTotalFixCount());
+        assertFalse(map.isFixed(3));
+
+        // The prefetched entries are leaked before the older entry 2, the
+        // oldest first
+        map.put(5, 105);
+        map.unfix(5);
+        assertFalse(map.contains(3));
+        assertTrue(map.contains(4));
+        assertTrue(map.contains(2));
+        // Once used, a prefetched entry is treated like the others
+        assertEquals(104, map.get(4).intValue());
+        map.unfix(4);
+        map.put(6, 106);
+        assertFalse(map.contains(2));
+        assertTrue(map.contains(4));
+        assertTrue(map.contains(5));
+
+        // Prefetching leaks neither fixed entries nor the unused prefetched
+        // entries
+        map.get(4);
+        map.get(5);
+        map.unfix(6);
+        assertEquals(2, map.prefetch(CollectionUtils.getList(7, 8)));
+        assertTrue(map.contains(7));
+        assertFalse(map.contains(6));
+        assertFalse(map.contains(8));
+        assertEquals(4, map.getSize());
+    }
+
+    public void testPrefetchReadAhead() {
+        FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(4);
+        map.setPrefetchLoader(new Loader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) {
+                return key + 100;
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        for (int i = 1; i <= 4; i++) {
+            map.put(i, i + 100);
+            map.unfix(i);
+        }
+        // The read-ahead leaks the old entries, not its own pages
+        assertEquals(3, map.prefetch(CollectionUtils.getList(5, 6, 7)));
+        assertTrue(map.contains(4));
+        for (int i = 5; i <= 7; i++) {
+            assertTrue(map.contains(i));
+        }
+        // A normal insert leaks the oldest unused prefetched entry
+        map.put(8, 108);
+        assertFalse(map.contains(5));
+        assertTrue(map.contains(6));
+    }
+
+    public void testPrefetchRejected() {
+        FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(4);
+        map.setPrefetchLoader(new Loader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) {
+                return key + 100;
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("Shut down");
+            }
+        });
+        try {
+            map.prefetch(CollectionUtils.getList(1, 2));
+            fail("Prefetch was not rejected");
+        } catch (RejectedExecutionException e) {
+            // OK
+        }
+        assertEquals(0, map.getPrefetchingCount());
+    }
+
+    public void testFrameWait() throws Exception {
+        final FixableLeakingMap<Integer, Integer> map = new FixableLeakingMap<Integer, Integer>(
+            2);
+        map.setFrameWaitTimeout(20, TimeUnit.MILLISECONDS);
+        map.put(1, 101);
+        map.put(2, 102);
+        try {
+            map.put(3, 103);
+            fail("No exception thrown even though no entry was unfixed");
+        } catch (IndexOutOfBoundsException e) {
+            // OK
+        }
+        assertEquals(1, map.getFrameWaitCount());
+        assertEquals(1, map.getFrameWaitTimeoutCount());
+        assertTrue(map.getFrameWaitTime(TimeUnit.MILLISECONDS) >= 20);
+
+        // The waiters are served in arrival order
+        map.setFrameWaitTimeout(10, TimeUnit.SECONDS);
+        final List<Integer> inserted = Collections.synchronizedList(new ArrayList<Integer>());
+        Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            final int key = 10 + i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    map.put(key, key);
+                    inserted.add(key);
+                }
+            };
+            threads[i].start();
+            while (map.getFrameWaiterCount() < i + 1) {
+                Thread.sleep(1);
+            }
+        }
+        map.unfix(1);
+        threads[0].join();
+        map.unfix(2);
+        threads[1].join();
+        map.unfix(10);
+        threads[2].join();
+        assertEquals(CollectionUtils.getList(10, 11, 12), inserted);
+        assertEquals(0, map.getFrameWaiterCount());
+        assertEquals(4, map.getFrameWaitCount());
+        assertEquals(1, map.getFrameWaitTimeoutCount());
+    }
+
+    public void testFrameWaitSameKey() throws Exception {
+        final FixableLeakingMap<String, Integer> map = new FixableLeakingMap<String, Integer>(2);
+        map.setFrameWaitTimeout(10, TimeUnit.SECONDS);
+        map.put("A", 1);
+        map.put("B", 2);
+        // Two threads wait for space to put the same key
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int value = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        map.put("X", value);
+                        results.add("put");
+                    } catch (IllegalStateException e) {
+                        results.add(e);
+                    }
+                }
+            };
+            threads[i].start();
+            while (map.getFrameWaiterCount() < i + 1) {
+                Thread.sleep(1);
+            }
+        }
+        map.unfix("A");
+        map.unfix("B");
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2, results.size());
+        assertTrue(results.contains("put"));
+        assertTrue(results.get(0) instanceof IllegalStateException
+            || results.get(1) instanceof IllegalStateException);
+        assertEquals(1, map.getTotalFixCount());
+        assertEquals(1, map.getFixCount("X"));
+        assertEquals(map.getMaximumSize() - map.getSize(), map.getFreeSlots());
+    }
+
 }
@@ -0,0 +1,123 @@
+package fi.tuska.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class FrameBufferPoolTest extends TestCase {
+
+    private static final FrameBufferPool.PageLoader LOADER = new FrameBufferPool.PageLoader() {
+        @Override
+        public void loadPage(long pageId, ByteBuffer frame) {
+            frame.putLong(0, pageId * 10);
+        }
+    };
+
+    public void testFixAndReuse() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(3, 64);
+        final List<Long> written = new ArrayList<Long>();
+        pool.addFrameListener(new FrameBufferPool.FrameListener() {
+            @Override
+            public void frameLeaked(long pageId, ByteBuffer frame) {
+                assertEquals(pageId * 10 + 1, frame.getLong(0));
+                written.add(pageId);
+            }
+        });
+
+        assertNull(pool.get(1));
+        assertEquals(10, pool.get(1, LOADER).getLong(0));
+        assertEquals(20, pool.get(2, LOADER).getLong(0));
+        ByteBuffer frame = pool.get(3, LOADER);
+        assertEquals(64, frame.remaining());
+        assertEquals(3, pool.getSize());
+        try {
+            pool.get(4, LOADER);
+            fail("No exception thrown even though all frames are fixed");
+        } catch (IndexOutOfBoundsException e) {
+            // OK
+        }
+
+        frame.putLong(0, 31);
+        pool.markDirty(3);
+        pool.unfix(1);
+        pool.unfix(3);
+        // The failed sweep left the clock hand after page 2, so the clock
+        // clears the reference bit of page 3, then of page 1, and reuses the
+        // frame of page 3 after writing it back
+        assertEquals(40, pool.get(4, LOADER).getLong(0));
+        assertFalse(pool.contains(3));
+        assertEquals(CollectionUtils.getList(3L), written);
+
+        // Page 1 is clean, so it is not written
+        pool.unfix(4);
+        assertEquals(50, pool.get(5, LOADER).getLong(0));
+        assertFalse(pool.contains(1));
+        assertTrue(pool.contains(4));
+        assertEquals(CollectionUtils.getList(3L), written);
+        assertEquals(2, pool.getTotalFixCount());
+    }
+
+    public void testSeparateViews() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(2, 16);
+        ByteBuffer first = pool.get(1, LOADER);
+        first.position(8);
+        first.putLong(11);
+        // Another fix gets its own view to the same frame
+        ByteBuffer second = pool.get(1);
+        assertEquals(0, second.position());
+        assertEquals(16, second.remaining());
+        assertEquals(11, second.getLong(8));
+        assertEquals(16, first.position());
+        pool.unfix(1);
+        pool.unfix(1);
+    }
+
+    public void testManyPages() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(100, 16, false);
+        for (long page = 0; page < 1000; page++) {
+            ByteBuffer frame = pool.get(page * 7919, LOADER);
+            assertEquals(page * 79190, frame.getLong(0));
+            pool.unfix(page * 7919);
+        }
+        assertEquals(100, pool.getSize());
+        for (long page = 900; page < 1000; page++) {
+            assertTrue(pool.contains(page * 7919));
+        }
+        assertEquals(0, pool.getTotalFixCount());
+    }
+
+    public void testFlushAndRemove() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(2, 8);
+        final List<Long> written = new ArrayList<Long>();
+        pool.addFrameListener(new FrameBufferPool.FrameListener() {
+            @Override
+            public void frameLeaked(long pageId, ByteBuffer frame) {
+                written.add(pageId);
+            }
+        });
+        pool.allocate(7).putLong(0, 70);
+        pool.markDirty(7);
+        try {
+            pool.allocate(7);
+            fail("Allocated a page that is already in the pool");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        assertEquals(1, pool.flushAll());
+        assertFalse(pool.isDirty(7));
+        assertEquals(CollectionUtils.getList(7L), written);
+        try {
+            pool.remove(7);
+            fail("Removed a fixed page");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+        pool.unfix(7);
+        assertTrue(pool.remove(7));
+        assertEquals(0, pool.getSize());
+        assertFalse(pool.remove(7));
+    }
+
+}
@@ -0,0 +1,66 @@
+package fi.tuska.util;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class HeapPressureSizerTest extends TestCase {
+
+    public void testShrinkAndGrow() {
+        LeakingMap<Integer, Integer> map = new LeakingMap<Integer, Integer>(100);
+        map.recordStats();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        HeapPressureSizer sizer = new HeapPressureSizer(map, 20, 100);
+
+        sizer.checkUsage(0.9, 1);
+        assertEquals(50, map.getMaximumSize());
+        assertEquals(50, map.getSize());
+        CacheStats stats = map.getStats();
+        assertEquals(50, stats.getMemoryEvictionCount());
+        assertEquals(0, stats.getEvictionCount());
+
+        // The usage after collection is not updated until the next
+        // collection, so the cache is shrunk only once per collection
+        sizer.checkUsage(0.9, 1);
+        sizer.collectionThresholdExceeded(1);
+        assertEquals(50, map.getMaximumSize());
+
+        // Never below the minimum size
+        sizer.thresholdExceeded();
+        sizer.thresholdExceeded();
+        assertEquals(20, map.getMaximumSize());
+        assertEquals(80, map.getStats().getMemoryEvictionCount());
+
+        // Between the recovery level and the threshold, nothing changes
+        sizer.checkUsage(0.8, 2);
+        assertEquals(20, map.getMaximumSize());
+
+        // Grows back by steps, up to the ceiling
+        sizer.checkUsage(0.3, 2);
+        assertEquals(30, map.getMaximumSize());
+        for (int i = 0; i < 10; i++) {
+            sizer.checkUsage(0.3, 2);
+        }
+        assertEquals(100, map.getMaximumSize());
+
+        // Normal evictions are still counted separately
+        for (int i = 100; i < 200; i++) {
+            map.put(i, i);
+        }
+        assertEquals(20, map.getStats().getEvictionCount());
+        assertEquals(80, map.getStats().getMemoryEvictionCount());
+    }
+
+    public void testStartStop() {
+        ConcurrentLeakingMap<Integer, Integer> map = new ConcurrentLeakingMap<Integer, Integer>(
+            100, 4);
+        HeapPressureSizer sizer = new HeapPressureSizer(map, 10, 100);
+        sizer.start(1, TimeUnit.SECONDS);
+        sizer.stop();
+        sizer.checkUsage(0.99, 1);
+        assertEquals(50, map.getMaximumSize());
+    }
+
+}
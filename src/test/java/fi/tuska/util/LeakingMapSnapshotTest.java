@@ -0,0 +1,112 @@
+package fi.tuska.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class LeakingMapSnapshotTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("snapshot", ".lms");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    private LeakingMap<Integer, String> createMap() {
+        LeakingMap<Integer, String> map = new LeakingMap<Integer, String>(5);
+        for (int i = 1; i <= 5; i++) {
+            map.put(i, "v" + i);
+        }
+        map.get(2);
+        map.get(4);
+        return map;
+    }
+
+    private void assertOrder(LeakingMap<Integer, String> map, int... keys) {
+        List<Pair<Integer, String>> entries = map.getEntriesByRecency();
+        assertEquals(keys.length, entries.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], entries.get(i).getFirst().intValue());
+            assertEquals("v" + keys[i], entries.get(i).getSecond());
+        }
+    }
+
+    public void testWithValues() throws Exception {
+        LeakingMap<Integer, String> map = createMap();
+        assertOrder(map, 4, 2, 5, 3, 1);
+
+        LeakingMapSnapshot<Integer, String> snapshot = new LeakingMapSnapshot<Integer, String>(
+            Codecs.INTEGER, Codecs.STRING);
+        assertEquals(5, snapshot.write(map, file));
+
+        LeakingMap<Integer, String> restored = new LeakingMap<Integer, String>(5);
+        assertEquals(5, snapshot.load(restored, file));
+        assertOrder(restored, 4, 2, 5, 3, 1);
+
+        // Only the most recent entries fit in a smaller map, and they go
+        // after the entries that are already in use
+        LeakingMap<Integer, String> small = new LeakingMap<Integer, String>(3);
+        small.put(2, "v2");
+        assertEquals(2, snapshot.load(small, file));
+        assertOrder(small, 2, 4, 5);
+    }
+
+    public void testLoadDoesNotEvict() throws Exception {
+        LeakingMapSnapshot<Integer, String> snapshot = new LeakingMapSnapshot<Integer, String>(
+            Codecs.INTEGER, Codecs.STRING);
+        snapshot.write(createMap(), file);
+
+        LeakingMap<Integer, String> map = new LeakingMap<Integer, String>(5);
+        for (int i = 6; i <= 8; i++) {
+            map.put(i, "v" + i);
+        }
+        // Only two restored entries fit without evicting the live entries
+        assertEquals(2, snapshot.load(map, file));
+        assertOrder(map, 8, 7, 6, 4, 2);
+        map.put(9, "v9");
+        assertOrder(map, 9, 8, 7, 6, 4);
+        assertEquals(0, snapshot.load(map, file));
+    }
+
+    public void testKeysOnlyInBackground() throws Exception {
+        LeakingMapSnapshot<Integer, String> snapshot = new LeakingMapSnapshot<Integer, String>(
+            Codecs.INTEGER);
+        snapshot.write(createMap(), file);
+
+        LeakingMap<Integer, String> restored = new LeakingMap<Integer, String>(5);
+        try {
+            snapshot.load(restored, file);
+            fail("Loaded a snapshot without values or a loader");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+        snapshot.setLoader(new Loader<Integer, String>() {
+            @Override
+            public String load(Integer key) {
+                return "v" + key;
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> loaded = snapshot.loadAsync(restored, file, executor);
+            assertEquals(5, loaded.get(5, TimeUnit.SECONDS).intValue());
+        } finally {
+            executor.shutdown();
+        }
+        assertOrder(restored, 4, 2, 5, 3, 1);
+    }
+
+}
@@ -0,0 +1,511 @@
+package fi.tuska.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class LeakingMapTest extends TestCase {
+
+    private List<Integer> leaked;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        leaked = new ArrayList<Integer>();
+    }
+
+    private LeakingMap<Integer, Integer> createMap(int size, LeakingMap.Policy policy) {
+        LeakingMap<Integer, Integer> map = new LeakingMap<Integer, Integer>(size, policy);
+        map.addLeakEventListener(new LeakingMap.LeakEventListener<Integer>() {
+            @Override
+            public void itemLeaked(Integer item) {
+                leaked.add(item);
+            }
+        });
+        return map;
+    }
+
+    public void testLRU() {
+        LeakingMap<Integer, Integer> map = createMap(3, LeakingMap.Policy.LRU);
+        map.put(1, 101);
+        map.put(2, 102);
+        map.put(3, 103);
+        assertEquals(101, map.get(1).intValue());
+        map.put(4, 104);
+        assertEquals(CollectionUtils.getList(102), leaked);
+        assertNull(map.get(2));
+        map.put(5, 105);
+        assertEquals(CollectionUtils.getList(102, 103), leaked);
+        assertEquals(3, map.getSize());
+
+        map.setMaximumSize(1);
+        assertEquals(CollectionUtils.getList(102, 103, 101, 104), leaked);
+        assertEquals(105, map.get(5).intValue());
+    }
+
+    public void testClock() {
+        LeakingMap<Integer, Integer> map = createMap(3, LeakingMap.Policy.CLOCK);
+        assertEquals(LeakingMap.Policy.CLOCK, map.getPolicy());
+        map.put(1, 101);
+        map.put(2, 102);
+        map.put(3, 103);
+        // First sweep clears all reference bits and evicts the first entry
+        map.put(4, 104);
+        assertEquals(CollectionUtils.getList(101), leaked);
+        assertEquals(3, map.getSize());
+
+        // Referenced entries get a second chance
+        assertEquals(103, map.get(3).intValue());
+        map.put(5, 105);
+        assertEquals(2, leaked.size());
+        assertFalse(leaked.contains(103));
+        assertEquals(103, map.get(3).intValue());
+
+        map.put(5, 205);
+        assertEquals(205, map.get(5).intValue());
+        assertEquals(3, map.getSize());
+
+        map.setMaximumSize(1);
+        assertEquals(1, map.getSize());
+        assertEquals(4, leaked.size());
+    }
+
+    public void testWeights() {
+        LeakingMap<Integer, Integer> map = createMap(100, LeakingMap.Policy.LRU);
+        map.setWeigher(new Weigher<Integer, Integer>() {
+            @Override
+            public int weigh(Integer key, Integer value) {
+                return value;
+            }
+        });
+        map.put(1, 40);
+        map.put(2, 40);
+        assertEquals(80, map.getTotalWeight());
+        map.put(3, 30);
+        assertEquals(CollectionUtils.getList(40), leaked);
+        assertEquals(70, map.getTotalWeight());
+        assertNull(map.get(1));
+
+        // Growing an existing entry evicts the older entries
+        map.put(3, 90);
+        assertEquals(1, map.getSize());
+        assertEquals(90, map.getTotalWeight());
+
+        // An entry heavier than the whole map does not stay in the map
+        map.put(4, 200);
+        assertEquals(0, map.getSize());
+        assertEquals(0, map.getTotalWeight());
+    }
+
+    /** Leaking map with a manually advanced clock */
+    private static class ManualClockMap extends LeakingMap<Integer, Integer> {
+        private long time = 1000;
+
+        public ManualClockMap(int size, Policy policy) {
+            super(size, policy);
+        }
+
+        @Override
+        protected long currentTime() {
+            return time;
+        }
+
+        public void advance(long amount, TimeUnit unit) {
+            time += unit.toNanos(amount);
+        }
+    }
+
+    public void testExpireAfterWrite() {
+        final List<LeakCause> causes = new ArrayList<LeakCause>();
+        ManualClockMap map = new ManualClockMap(10, LeakingMap.Policy.LRU);
+        map.addLeakEventListener(new LeakingMap.LeakEventListener<Integer>() {
+            @Override
+            public void itemLeaked(Integer item) {
+                fail("Cause-aware notification expected");
+            }
+
+            @Override
+            public void itemLeaked(Integer item, LeakCause cause) {
+                leaked.add(item);
+                causes.add(cause);
+            }
+        });
+        map.setExpireAfterWrite(10, TimeUnit.SECONDS);
+        map.put(1, 101);
+        map.put(2, 102, 5, 0, TimeUnit.MINUTES);
+        map.advance(5, TimeUnit.SECONDS);
+        assertEquals(101, map.get(1).intValue());
+        map.advance(5, TimeUnit.SECONDS);
+        assertNull(map.get(1));
+        assertEquals(CollectionUtils.getList(101), leaked);
+        assertEquals(CollectionUtils.getList(LeakCause.EXPIRED), causes);
+        assertEquals(102, map.get(2).intValue());
+
+        // Expired entries are purged by the timer wheel without accessing
+        // them
+        map.advance(5, TimeUnit.MINUTES);
+        map.cleanUp();
+        assertEquals(0, map.getSize());
+        assertEquals(CollectionUtils.getList(101, 102), leaked);
+
+        // Rewriting a value restarts the time-to-live
+        map.put(3, 103);
+        map.advance(8, TimeUnit.SECONDS);
+        map.put(3, 203);
+        map.advance(8, TimeUnit.SECONDS);
+        assertEquals(203, map.get(3).intValue());
+    }
+
+    public void testNullKey() {
+        LeakingMap<Integer, Integer> map = createMap(2, LeakingMap.Policy.LRU);
+        map.put(null, 100);
+        map.put(1, 101);
+        assertEquals(100, map.get(null).intValue());
+        map.put(2, 102);
+        assertEquals(CollectionUtils.getList(101), leaked);
+        assertTrue(map.keySet().contains(null));
+    }
+
+    public void testBatchExpiry() {
+        ManualClockMap map = new ManualClockMap(10, LeakingMap.Policy.LRU);
+        map.setExpireAfterWrite(1, TimeUnit.HOURS);
+        Map<Integer, Integer> entries = new HashMap<Integer, Integer>();
+        entries.put(1, 101);
+        entries.put(2, 102);
+        map.putAll(entries);
+        map.advance(30, TimeUnit.MINUTES);
+        assertEquals(101, map.get(1).intValue());
+        assertEquals(2, map.getSize());
+        map.advance(30, TimeUnit.MINUTES);
+        assertNull(map.get(1));
+        assertNull(map.get(2));
+    }
+
+    public void testExpireAfterAccess() {
+        for (LeakingMap.Policy policy : LeakingMap.Policy.values()) {
+            leaked.clear();
+            ManualClockMap map = new ManualClockMap(10, policy);
+            map.addLeakEventListener(new LeakingMap.LeakEventListener<Integer>() {
+                @Override
+                public void itemLeaked(Integer item) {
+                    leaked.add(item);
+                }
+            });
+            map.setExpireAfterAccess(1, TimeUnit.MINUTES);
+            map.put(1, 101);
+            map.put(2, 102);
+            for (int i = 0; i < 10; i++) {
+                map.advance(30, TimeUnit.SECONDS);
+                assertEquals(101, map.get(1).intValue());
+            }
+            map.cleanUp();
+            assertEquals(CollectionUtils.getList(102), leaked);
+            assertEquals(1, map.getSize());
+            map.advance(2, TimeUnit.MINUTES);
+            assertNull(map.get(1));
+            map.cleanUp();
+            assertEquals(0, map.getSize());
+        }
+    }
+
+    public void testSingleFlightLoad() throws Exception {
+        final LeakingMap<Integer, Integer> map = createMap(10, LeakingMap.Policy.LRU);
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Loader<Integer, Integer> loader = new Loader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) throws Exception {
+                loadCount.incrementAndGet();
+                release.await();
+                return key + 100;
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return map.get(5, loader);
+                    }
+                }));
+            }
+            Future<Integer> async = map.getAsync(5, loader);
+            // The map must remain usable while the load is in progress
+            map.put(1, 101);
+            assertEquals(101, map.get(1).intValue());
+            release.countDown();
+            for (Future<Integer> f : results) {
+                assertEquals(105, f.get().intValue());
+            }
+            assertEquals(105, async.get().intValue());
+            assertEquals(1, loadCount.get());
+            assertEquals(105, map.get(5).intValue());
+            assertEquals(105, map.get(5, loader).intValue());
+            assertEquals(1, loadCount.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testRejectedLoad() throws Exception {
+        LeakingMap<Integer, Integer> map = createMap(10, LeakingMap.Policy.LRU);
+        Loader<Integer, Integer> loader = new Loader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) {
+                return key + 100;
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        try {
+            map.getAsync(5, loader, executor);
+            fail("Load was not rejected");
+        } catch (RejectedExecutionException e) {
+            // OK
+        }
+        // The rejected load is not left registered
+        assertEquals(105, map.getAsync(5, loader).get().intValue());
+        assertEquals(105, map.get(5).intValue());
+    }
+
+    public void testFailedLoad() throws Exception {
+        LeakingMap<Integer, Integer> map = createMap(10, LeakingMap.Policy.CLOCK);
+        Loader<Integer, Integer> failing = new Loader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) throws Exception {
+                throw new IOException("Disk failure");
+            }
+        };
+        try {
+            map.get(1, failing);
+            fail("No exception thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertNull(map.get(1));
+        assertEquals(101, map.get(1, new Loader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) {
+                return 101;
+            }
+        }).intValue());
+    }
+
+    public void testStats() throws Exception {
+        LeakingMap<Integer, Integer> map = createMap(2, LeakingMap.Policy.LRU);
+        map.put(1, 101);
+        assertEquals(CacheStats.EMPTY.toString(), map.getStats().toString());
+
+        map.recordStats();
+        map.get(1);
+        map.get(2);
+        map.put(2, 102);
+        map.put(3, 103);
+        map.get(1, new Loader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) {
+                return key + 100;
+            }
+        });
+        CacheStats stats = map.getStats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+        assertEquals(3, stats.getPutCount());
+        assertEquals(2, stats.getEvictionCount());
+        assertEquals(1, stats.getLoadSuccessCount());
+        assertEquals(0, stats.getLoadFailureCount());
+        assertEquals(1.0 / 3, stats.getHitRate(), 0.0001);
+    }
+
+    public void testAsyncLeakDispatch() throws Exception {
+        final List<List<Integer>> batches = new ArrayList<List<Integer>>();
+        final CountDownLatch release = new CountDownLatch(1);
+        LeakingMap<Integer, Integer> map = new LeakingMap<Integer, Integer>(2);
+        map.addLeakEventListener(new LeakingMap.LeakEventListener<Integer>() {
+            @Override
+            public void itemLeaked(Integer item) {
+                fail("Single item callback used for asynchronous delivery");
+            }
+
+            @Override
+            public void itemsLeaked(List<Integer> items, LeakCause cause) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                assertEquals(LeakCause.EVICTED, cause);
+                synchronized (batches) {
+                    batches.add(new ArrayList<Integer>(items));
+                }
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            map.setLeakDispatchExecutor(executor);
+            for (int i = 1; i <= 6; i++) {
+                map.put(i, i);
+            }
+            // The listener is blocked, but the map is not
+            assertEquals(2, map.getSize());
+            assertEquals(Integer.valueOf(6), map.get(6));
+            release.countDown();
+            map.awaitPendingLeaks();
+
+            List<Integer> delivered = new ArrayList<Integer>();
+            for (List<Integer> batch : batches) {
+                delivered.addAll(batch);
+            }
+            assertEquals(Arrays.asList(1, 2, 3, 4), delivered);
+            // Whatever was queued while the listener was blocked was
+            // delivered as one batch
+            assertTrue(batches.size() <= 2);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testRejectedLeakDispatch() throws Exception {
+        final List<Integer> leaked = new ArrayList<Integer>();
+        LeakingMap<Integer, Integer> map = new LeakingMap<Integer, Integer>(2);
+        map.addLeakEventListener(new LeakingMap.LeakEventListener<Integer>() {
+            @Override
+            public void itemLeaked(Integer item) {
+                leaked.add(item);
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        map.setLeakDispatchExecutor(executor);
+        for (int i = 1; i <= 4; i++) {
+            map.put(i, i);
+        }
+        // The rejected events were delivered in the calling thread
+        assertEquals(Arrays.asList(1, 2), leaked);
+        map.awaitPendingLeaks();
+    }
+
+    public void testTinyLfuAdmission() {
+        LeakingMap<Integer, Integer> map = createMap(100, LeakingMap.Policy.TINY_LFU);
+        // Make keys 0-49 frequently used
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (map.get(i) == null)
+                    map.put(i, i);
+            }
+        }
+        // A long scan over keys that are used only once
+        for (int i = 1000; i < 2000; i++) {
+            if (map.get(i) == null)
+                map.put(i, i);
+            assertTrue(map.getSize() <= 100);
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, map.get(i).intValue());
+        }
+    }
+
+    /**
+     * Replays a trace of Zipf-distributed accesses, interleaved with scans of
+     * unique keys, and returns the hit rate.
+     */
+    private double replayZipfWithScans(LeakingMap.Policy policy) {
+        final int keys = 2000;
+        double[] cdf = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1.0 / Math.pow(i + 1, 0.9);
+            cdf[i] = sum;
+        }
+        Random random = new Random(42);
+        LeakingMap<Integer, Integer> map = new LeakingMap<Integer, Integer>(200, policy);
+        map.recordStats();
+        int scanKey = keys;
+        for (int i = 0; i < 100000; i++) {
+            int key;
+            if (i % 5000 < 1000) {
+                // Scan over keys that are never used again
+                key = scanKey++;
+            } else {
+                int pos = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                key = pos >= 0 ? pos : -pos - 1;
+            }
+            if (map.get(key) == null)
+                map.put(key, key);
+        }
+        return map.getStats().getHitRate();
+    }
+
+    public void testTinyLfuHitRate() {
+        double lru = replayZipfWithScans(LeakingMap.Policy.LRU);
+        double tinyLfu = replayZipfWithScans(LeakingMap.Policy.TINY_LFU);
+        assertTrue("TinyLFU " + tinyLfu + " vs. LRU " + lru, tinyLfu > lru);
+    }
+
+    public void testBulkOperations() {
+        LeakingMap<Integer, Integer> map = createMap(5, LeakingMap.Policy.LRU);
+        map.recordStats();
+        map.putAll(new Integer[] { 1, 2, 3, 4, 5, 6, 7 }, new Integer[] { 11, 12, 13, 14, 15,
+            16, 17 });
+        // The batch overflowed, so its oldest entries were evicted at the end
+        assertEquals(5, map.getSize());
+        assertEquals(Arrays.asList(11, 12), leaked);
+
+        Integer[] values = new Integer[4];
+        assertEquals(2, map.getAll(new Integer[] { 1, 3, 8, 4 }, values));
+        assertEquals(Arrays.asList(null, 13, null, 14), Arrays.asList(values));
+        CacheStats stats = map.getStats();
+        assertEquals(2, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+
+        // Keys 3, 4, 5 and 6 have been used since 7 was stored
+        Map<Integer, Integer> found = map.getAll(Arrays.asList(5, 6, 9));
+        assertEquals(2, found.size());
+        assertEquals(Integer.valueOf(16), found.get(6));
+        Map<Integer, Integer> more = new HashMap<Integer, Integer>();
+        more.put(8, 18);
+        map.putAll(more);
+        assertEquals(Arrays.asList(11, 12, 17), leaked);
+
+        // Invalidated entries are not leaked
+        assertEquals(2, map.invalidateAll(Arrays.asList(4, 8, 10)));
+        assertEquals(3, map.getSize());
+        assertEquals(3, leaked.size());
+        assertNull(map.get(8));
+    }
+
+    public void testCustomPolicy() {
+        LeakingMap<Integer, Integer> map = new LeakingMap<Integer, Integer>(3,
+            new Lru2Policy<Integer>(10));
+        assertEquals(LeakingMap.Policy.CUSTOM, map.getPolicy());
+        map.put(1, 1);
+        map.put(2, 2);
+        map.get(1);
+        map.get(2);
+        map.put(3, 3);
+        // Key 3 has been used only once, so it is evicted first
+        map.put(4, 4);
+        assertNull(map.get(3));
+        assertEquals(Integer.valueOf(1), map.get(1));
+        assertEquals(3, map.getSize());
+    }
+
+}
@@ -0,0 +1,148 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LongLeakingMapTest extends TestCase {
+
+    private List<String> leaked;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        leaked = new ArrayList<String>();
+    }
+
+    private LongLeakingMap<String> createMap(int size) {
+        LongLeakingMap<String> map = new LongLeakingMap<String>(size);
+        map.addLeakEventListener(new LeakingMap.LeakEventListener<String>() {
+            @Override
+            public void itemLeaked(String item) {
+                leaked.add(item);
+            }
+        });
+        return map;
+    }
+
+    public void testLRU() {
+        LongLeakingMap<String> map = createMap(3);
+        map.put(1, "a");
+        map.put(2, "b");
+        map.put(3, "c");
+        assertEquals("a", map.get(1));
+        map.put(4, "d");
+        assertEquals(3, map.getSize());
+        assertEquals(1, leaked.size());
+        assertEquals("b", leaked.get(0));
+        assertNull(map.get(2));
+
+        // Replacing does not leak
+        map.put(3, "C");
+        assertEquals(1, leaked.size());
+        assertEquals("C", map.get(3));
+        assertEquals(3, map.keys()[0]);
+
+        // Removal does not leak
+        assertEquals("a", map.remove(1));
+        assertNull(map.remove(1));
+        assertEquals(2, map.getSize());
+        map.put(5, "e");
+        assertEquals(1, leaked.size());
+        map.put(6, "f");
+        assertEquals(2, leaked.size());
+        assertEquals("d", leaked.get(1));
+    }
+
+    public void testSetMaximumSize() {
+        LongLeakingMap<String> map = createMap(4);
+        for (long i = 1; i <= 4; i++) {
+            map.put(i, "v" + i);
+        }
+        map.get(1);
+        map.setMaximumSize(2);
+        assertEquals(2, leaked.size());
+        assertEquals("v2", leaked.get(0));
+        assertEquals("v3", leaked.get(1));
+        assertEquals(1, map.keys()[0]);
+        assertEquals(4, map.keys()[1]);
+
+        map.setMaximumSize(3);
+        map.put(5, "v5");
+        assertEquals(2, leaked.size());
+        assertEquals(3, map.getSize());
+    }
+
+    /**
+     * Compares the map against a LinkedHashMap in access order, with keys
+     * that collide in the hash table.
+     */
+    public void testAgainstLinkedHashMap() {
+        final int size = 50;
+        LongLeakingMap<String> map = createMap(size);
+        Map<Long, String> reference = new LinkedHashMap<Long, String>(16, 0.75f, true);
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(200) * 1024L;
+            int op = random.nextInt(10);
+            if (op < 5) {
+                assertEquals(reference.get(key), map.get(key));
+            } else if (op < 9) {
+                String value = "v" + i;
+                map.put(key, value);
+                reference.put(key, value);
+                if (reference.size() > size) {
+                    Iterator<String> it = reference.values().iterator();
+                    String eldest = it.next();
+                    it.remove();
+                    assertEquals(eldest, leaked.get(leaked.size() - 1));
+                }
+            } else {
+                assertEquals(reference.remove(key), map.remove(key));
+            }
+            assertEquals(reference.size(), map.getSize());
+        }
+    }
+
+    public void testBulkOperations() {
+        LongLeakingMap<String> map = createMap(3);
+        map.putAll(new long[] { 1, 2, 3, 4 }, new String[] { "a", "b", "c", "d" });
+        assertEquals(3, map.getSize());
+        assertEquals("a", leaked.get(0));
+
+        String[] values = new String[3];
+        assertEquals(2, map.getAll(new long[] { 2, 1, 4 }, values));
+        assertEquals("b", values[0]);
+        assertNull(values[1]);
+        assertEquals("d", values[2]);
+        assertEquals(4, map.keys()[0]);
+
+        assertEquals(2, map.invalidateAll(new long[] { 2, 3, 5 }));
+        assertEquals(1, map.getSize());
+        assertEquals(1, leaked.size());
+    }
+
+    public void testBatchEviction() {
+        LongLeakingMap<String> map = createMap(3);
+        map.put(1, "a");
+        map.put(2, "b");
+        map.put(3, "c");
+        // Key 1 is in the batch, so only the entries outside the batch are
+        // leaked to make space for 4 and 5
+        map.putAll(new long[] { 4, 1, 5, 4 }, new String[] { "d", "A", "e", "D" });
+        assertEquals(CollectionUtils.getList("b", "c"), leaked);
+        assertEquals(3, map.getSize());
+        long[] keys = map.keys();
+        assertEquals(4, keys[0]);
+        assertEquals(5, keys[1]);
+        assertEquals(1, keys[2]);
+        assertEquals("A", map.get(1));
+        assertEquals("D", map.get(4));
+    }
+
+}
@@ -0,0 +1,127 @@
+package fi.tuska.util;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LongSortedListTest extends TestCase {
+
+    public void testOperations() {
+        LongSortedList<String> list = new LongSortedList<String>();
+        assertTrue(list.isEmpty());
+        assertFalse(list.cursor().isValid());
+        assertNull(list.getLastFloor(5));
+        try {
+            list.getFirstKey();
+            fail("No exception thrown for an empty list");
+        } catch (NoSuchElementException e) {
+            // OK
+        }
+
+        list.add(2, "b");
+        list.add(2, "a");
+        list.add(6, "c");
+        list.add(9, "d");
+        assertEquals(4, list.size());
+        assertEquals("[2:{a,b},6:{c},9:{d}]", list.toString());
+        assertEquals(2, list.getFirstKey());
+        assertEquals(9, list.getLastKey());
+        assertTrue(list.contains(6));
+        assertFalse(list.contains(5));
+        assertEquals("a", list.getFirst(2));
+        assertEquals("b", list.getLast(2));
+
+        assertEquals("b", list.getLastFloor(4));
+        assertEquals("c", list.getLastFloor(6));
+        assertNull(list.getLastFloor(1));
+        assertEquals("c", list.getFirstCeiling(3));
+        assertNull(list.getFirstCeiling(10));
+        assertEquals(CollectionUtils.getList("a", "b"), list.getAllFloor(5));
+        assertEquals(CollectionUtils.getList("d"), list.getAllCeiling(7));
+        assertTrue(list.getAllCeiling(10).isEmpty());
+
+        LongSortedList<String>.Cursor c = list.floor(8);
+        assertEquals(6, c.key());
+        assertEquals("c", c.value());
+        assertTrue(c.previous());
+        assertEquals("b", c.value());
+        assertTrue(c.seekCeiling(7));
+        assertEquals(9, c.key());
+        assertFalse(c.next());
+        assertTrue(c.seekLast());
+        assertEquals("d", c.value());
+
+        c = list.ceiling(2);
+        assertTrue(c.remove());
+        assertEquals("b", c.value());
+        assertEquals(3, list.size());
+        assertEquals("b", list.removeFirst(2));
+        assertNull(list.removeFirst(2));
+        assertFalse(list.remove(9, "x"));
+        assertTrue(list.remove(9, "d"));
+        assertEquals("[6:{c}]", list.toString());
+    }
+
+    public void testRandomizedAgainstSortedList() {
+        LongSortedList<Integer> list = new LongSortedList<Integer>();
+        SortedList<Long, Integer> reference = new SortedList<Long, Integer>();
+        Random random = new Random(3);
+        // Enough entries to split and remove pages
+        for (int round = 0; round < 20000; round++) {
+            long key = random.nextInt(round < 15000 ? 2000 : 200) - 100;
+            if (round < 15000 ? random.nextInt(4) > 0 : random.nextInt(4) == 0) {
+                int value = random.nextInt(30);
+                list.add(key, value);
+                reference.add(key, value);
+            } else {
+                assertEquals(reference.removeFirst(key), list.removeFirst(key));
+            }
+            assertEquals(reference.size(), list.size());
+            if (round % 50 == 0) {
+                assertEquals(reference.getAll(key), list.getAll(key));
+                Pair<Long, Integer> floor = reference.getLastFloor(key);
+                LongSortedList<Integer>.Cursor c = list.floor(key);
+                assertEquals(floor != null, c.isValid());
+                if (floor != null) {
+                    assertEquals(floor.getFirst().longValue(), c.key());
+                    assertEquals(floor.getSecond(), c.value());
+                }
+                Pair<Long, Integer> ceiling = reference.getFirstCeiling(key);
+                assertEquals(ceiling != null ? ceiling.getSecond() : null, list
+                    .getFirstCeiling(key));
+            }
+        }
+
+        // Compare all entries in both directions, removing every third one
+        List<Pair<Long, Integer>> all = reference.getAll();
+        int i = 0;
+        for (LongSortedList<Integer>.Cursor c = list.cursor(); c.isValid(); i++) {
+            assertEquals(all.get(i).getFirst().longValue(), c.key());
+            assertEquals(all.get(i).getSecond(), c.value());
+            if (i % 3 == 0) {
+                assertTrue(reference.remove(all.get(i).getFirst(), all.get(i).getSecond()));
+                c.remove();
+            } else {
+                c.next();
+            }
+        }
+        assertEquals(all.size(), i);
+        all = reference.getAll();
+        i = all.size() - 1;
+        LongSortedList<Integer>.Cursor c = list.cursor();
+        for (c.seekLast(); c.isValid(); c.previous(), i--) {
+            assertEquals(all.get(i).getFirst().longValue(), c.key());
+        }
+        assertEquals(-1, i);
+
+        for (c = list.cursor(); c.isValid();) {
+            c.remove();
+        }
+        assertTrue(list.isEmpty());
+        list.add(1, 1);
+        assertEquals(1, list.getFirstKey());
+    }
+
+}
@@ -0,0 +1,89 @@
+package fi.tuska.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+public class PartitionedFixableLeakingMapTest extends TestCase {
+
+    public void testBorrowing() {
+        PartitionedFixableLeakingMap<Integer, Integer> map = new PartitionedFixableLeakingMap<Integer, Integer>(
+            8, 4);
+        assertEquals(4, map.getPartitionCount());
+        // Fill the map with fixed entries; full partitions borrow from the
+        // others
+        for (int i = 0; i < 8; i++) {
+            map.put(i, i + 100);
+        }
+        assertEquals(8, map.getSize());
+        assertEquals(8, map.getTotalFixCount());
+        try {
+            map.put(8, 108);
+            fail("No exception thrown even though all entries are fixed");
+        } catch (IndexOutOfBoundsException e) {
+            // OK
+        }
+        int capacity = 0;
+        for (int i = 0; i < map.getPartitionCount(); i++) {
+            capacity += map.getPartition(i).getMaximumSize();
+        }
+        assertEquals(8, capacity);
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 100, map.get(i).intValue());
+            map.unfix(i);
+            map.unfix(i);
+        }
+        assertEquals(0, map.getTotalFixCount());
+        assertEquals(8, map.getUnfixedSpace());
+
+        map.rebalance();
+        for (int i = 0; i < map.getPartitionCount(); i++) {
+            assertEquals(2, map.getPartition(i).getMaximumSize());
+        }
+        assertTrue(map.getSize() <= 8);
+    }
+
+    public void testBorrowingStats() {
+        PartitionedFixableLeakingMap<Integer, Integer> map = new PartitionedFixableLeakingMap<Integer, Integer>(
+            8, 4);
+        map.recordStats();
+        for (int i = 0; i < 8; i++) {
+            map.put(i, i + 100);
+        }
+        try {
+            map.put(8, 108);
+            fail("No exception thrown even though all entries are fixed");
+        } catch (IndexOutOfBoundsException e) {
+            // OK
+        }
+        // Each put is recorded once, although some had to borrow capacity
+        CacheStats stats = map.getStats();
+        assertEquals(9, stats.getPutCount());
+        assertEquals(1, stats.getBufferFullCount());
+    }
+
+    public void testDiagnostics() {
+        PartitionedFixableLeakingMap<Integer, Integer> map = new PartitionedFixableLeakingMap<Integer, Integer>(
+            10, 3);
+        map.put(1, 101);
+        map.put(2, 102);
+        map.put(3, 103);
+        map.get(2);
+        map.unfix(3);
+        assertEquals(3, map.getTotalFixCount());
+        assertEquals(2, map.getFixCount(2));
+        assertFalse(map.isFixed(3));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        map.printFixes(new PrintStream(out, true));
+        String printed = out.toString();
+        assertTrue(printed.contains("1: 1 fix(es)"));
+        assertTrue(printed.contains("2: 2 fix(es)"));
+        assertTrue(printed.contains("Zero fixes: [3]"));
+        assertTrue(printed.contains("Total: 3"));
+        assertEquals(2, map.getEntryFixSummary().split(", ").length);
+    }
+
+}
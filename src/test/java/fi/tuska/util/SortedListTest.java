@@ -1,6 +1,9 @@
 package fi.tuska.util;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -348,4 +351,275 @@ public class SortedListTest extends TestCase {
         assertEquals(20, it.next().intValue());
     }
 
+    public void testRankAndRange() {
+        SortedList<Integer, String> list = getList();
+        assertEquals(0, list.indexOf(1));
+        assertEquals(3, list.indexOf(2));
+        assertEquals(5, list.indexOf(3));
+        assertEquals(8, list.indexOf(6));
+        assertEquals(-1, list.indexOf(4));
+        assertEquals(0, list.rank(0));
+        assertEquals(8, list.rank(4));
+        assertEquals(9, list.rank(7));
+
+        assertEquals(CollectionUtils.getList(new Pair<Integer, String>(2, "lohi"),
+            new Pair<Integer, String>(3, "kana"), new Pair<Integer, String>(3, "lintu")), list
+            .getRange(4, 7));
+        assertEquals(0, list.getRange(3, 3).size());
+        assertEquals(list.getAll(), list.getRange(0, 9));
+        try {
+            list.getRange(5, 10);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // OK
+        }
+    }
+
+    public void testOrderStatisticsRandomized() {
+        SortedList<Integer, Integer> list = new SortedList<Integer, Integer>();
+        List<Pair<Integer, Integer>> reference = new ArrayList<Pair<Integer, Integer>>();
+        Random random = new Random(1);
+        for (int round = 0; round < 3000; round++) {
+            int key = random.nextInt(200);
+            if (random.nextInt(3) > 0) {
+                int value = random.nextInt(1000);
+                list.add(key, value);
+                int pos = 0;
+                while (pos < reference.size()
+                    && (reference.get(pos).getFirst() < key || (reference.get(pos).getFirst() == key && reference
+                        .get(pos).getSecond() < value))) {
+                    pos++;
+                }
+                reference.add(pos, new Pair<Integer, Integer>(key, value));
+            } else {
+                Integer removed = list.removeFirst(key);
+                for (int i = 0; i < reference.size(); i++) {
+                    if (reference.get(i).getFirst() == key) {
+                        assertEquals(reference.remove(i).getSecond(), removed);
+                        break;
+                    }
+                }
+            }
+            assertEquals(reference.size(), list.size());
+            if (!reference.isEmpty()) {
+                int index = random.nextInt(reference.size());
+                assertEquals(reference.get(index).getSecond(), list.getAt(index).getSecond());
+                int rank = 0;
+                while (rank < reference.size() && reference.get(rank).getFirst() < key) {
+                    rank++;
+                }
+                assertEquals(rank, list.rank(key));
+            }
+        }
+        assertEquals(reference, list.getAll());
+    }
+
+    public void testBPlusTreeBackend() {
+        SortedList<Integer, Integer> tree = new SortedList<Integer, Integer>();
+        SortedList<Integer, Integer> btree = new SortedList<Integer, Integer>(
+            SortedList.Backend.BTREE);
+        Random random = new Random(2);
+        // Enough entries to split the leaves and the inner nodes, and enough
+        // removals to empty some of them again
+        for (int round = 0; round < 20000; round++) {
+            int key = random.nextInt(round < 15000 ? 3000 : 300);
+            int op = random.nextInt(10);
+            if (round < 15000 ? op < 7 : op < 2) {
+                int value = random.nextInt(50);
+                tree.add(key, value);
+                btree.add(key, value);
+            } else if (op < 9) {
+                assertEquals(tree.removeFirst(key), btree.removeFirst(key));
+            } else {
+                Integer value = random.nextInt(50);
+                assertEquals(tree.remove(key, value), btree.remove(key, value));
+            }
+            assertEquals(tree.size(), btree.size());
+            if (round % 100 == 0) {
+                assertEquals(tree.getAll(key), btree.getAll(key));
+                assertEquals(tree.getFirst(key), btree.getFirst(key));
+                assertEquals(tree.getLast(key), btree.getLast(key));
+                assertEquals(tree.getAllFloor(key), btree.getAllFloor(key));
+                assertEquals(tree.getAllCeiling(key), btree.getAllCeiling(key));
+                assertEquals(tree.getLastFloor(key), btree.getLastFloor(key));
+                assertEquals(tree.getFirstCeiling(key), btree.getFirstCeiling(key));
+                assertEquals(tree.indexOf(key), btree.indexOf(key));
+                assertEquals(tree.rank(key), btree.rank(key));
+                if (!tree.isEmpty()) {
+                    int index = random.nextInt(tree.size());
+                    assertEquals(tree.getAt(index), btree.getAt(index));
+                    int to = Math.min(tree.size(), index + 100);
+                    assertEquals(tree.getRange(index, to), btree.getRange(index, to));
+                }
+            }
+        }
+        assertEquals(tree.getAll(), btree.getAll());
+        assertEquals(tree.getFirstKey(), btree.getFirstKey());
+        assertEquals(tree.getLastKey(), btree.getLastKey());
+        assertEquals(tree.toString(), btree.toString());
+
+        Iterator<Pair<Integer, Integer>> ti = tree.descendingIterator();
+        for (Iterator<Pair<Integer, Integer>> bi = btree.descendingIterator(); bi.hasNext();) {
+            assertEquals(ti.next(), bi.next());
+        }
+        assertFalse(ti.hasNext());
+
+        Iterator<Integer> tk = tree.keyIterator();
+        for (Iterator<Integer> bk = btree.keyIterator(); bk.hasNext();) {
+            assertEquals(tk.next(), bk.next());
+        }
+        assertFalse(tk.hasNext());
+
+        // Remove every other entry through the iterators
+        boolean drop = true;
+        for (Iterator<Pair<Integer, Integer>> it = btree.iterator(); it.hasNext(); drop = !drop) {
+            Pair<Integer, Integer> entry = it.next();
+            if (drop) {
+                it.remove();
+                assertTrue(tree.remove(entry.getFirst(), entry.getSecond()));
+            }
+        }
+        assertEquals(tree.getAll(), btree.getAll());
+        for (Iterator<Pair<Integer, Integer>> it = btree.descendingIterator(); it.hasNext();) {
+            it.next();
+            it.remove();
+        }
+        assertTrue(btree.isEmpty());
+        assertNull(btree.getFirstKey());
+        btree.add(1, 1);
+        assertEquals(1, btree.getAt(0).getSecond().intValue());
+    }
+
+    public void testBPlusTreeDuplicates() {
+        SortedList<Integer, Object> list = new SortedList<Integer, Object>(
+            SortedList.Backend.BTREE);
+        // Values that are not comparable are added before the existing ones
+        Object[] values = new Object[200];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new Object();
+            list.add(5, values[i]);
+        }
+        list.add(3, "a");
+        list.add(7, "b");
+        assertEquals(202, list.size());
+        assertEquals(1, list.indexOf(5));
+        assertEquals(201, list.rank(7));
+        assertSame(values[199], list.getFirst(5));
+        assertSame(values[0], list.getLast(5));
+        assertEquals(200, list.getAllFloor(6).getSecond().size());
+        assertEquals(200, list.getAllCeiling(4).getSecond().size());
+        assertSame(values[198], list.nextEntry(5, values[199]).getSecond());
+        assertEquals("a", list.previousEntry(5, values[199]).getSecond());
+        assertEquals("b", list.nextEntry(5, values[0]).getSecond());
+
+        int count = 0;
+        for (Iterator<Object> it = list.iterator(5); it.hasNext(); count++) {
+            it.next();
+            it.remove();
+        }
+        assertEquals(200, count);
+        assertEquals(2, list.size());
+        assertEquals("[3:{a},7:{b}]", list.toString());
+
+        DoubleValueList<Integer, String, Integer> dl = new DoubleValueList<Integer, String, Integer>(
+            SortedList.Backend.BTREE);
+        dl.add(1, "x", 1);
+        dl.add(1, "y", 2);
+        dl.add(0, "z", 3);
+        assertEquals(new Pair<String, Integer>("y", 2), dl.removeByFirst(1, "y"));
+        assertEquals(2, dl.size());
+        assertEquals(0, dl.getFirstKey().intValue());
+    }
+
+    public void testBulkBuild() {
+        Random random = new Random(4);
+        int n = 50000;
+        Integer[] keys = new Integer[n];
+        Integer[] values = new Integer[n];
+        SortedList<Integer, Integer> reference = new SortedList<Integer, Integer>();
+        for (int i = 0; i < n; i++) {
+            keys[i] = random.nextInt(n / 4);
+            values[i] = random.nextInt(100);
+            reference.add(keys[i], values[i]);
+        }
+        for (SortedList.Backend backend : SortedList.Backend.values()) {
+            SortedList<Integer, Integer> list = new SortedList<Integer, Integer>(backend);
+            list.add(-1, -1);
+            list.buildFrom(keys, values);
+            assertEquals(backend.toString(), reference.getAll(), list.getAll());
+            assertFalse(list.contains(-1));
+
+            SortedList<Integer, Integer> sorted = new SortedList<Integer, Integer>(backend);
+            Integer[] sortedKeys = new Integer[n];
+            Integer[] sortedValues = new Integer[n];
+            int i = 0;
+            for (Pair<Integer, Integer> entry : reference) {
+                sortedKeys[i] = entry.getFirst();
+                sortedValues[i++] = entry.getSecond();
+            }
+            sorted.buildFromSorted(sortedKeys, sortedValues);
+            assertEquals(backend.toString(), reference.getAll(), sorted.getAll());
+            for (int j = 0; j < 100; j++) {
+                int index = random.nextInt(n);
+                assertEquals(reference.getAt(index), sorted.getAt(index));
+                int key = random.nextInt(n / 4);
+                assertEquals(reference.rank(key), sorted.rank(key));
+                assertEquals(reference.getAllFloor(key), sorted.getAllFloor(key));
+            }
+
+            // The built lists can be modified as usual
+            for (int j = 0; j < 1000; j++) {
+                int key = random.nextInt(n / 4);
+                if (j % 2 == 0) {
+                    sorted.add(key, j);
+                    list.add(key, j);
+                } else {
+                    assertEquals(sorted.removeFirst(key), list.removeFirst(key));
+                }
+            }
+            assertEquals(list.getAll(), sorted.getAll());
+
+            try {
+                list.buildFromSorted(new Integer[] { 2, 1 }, new Integer[] { 1, 1 });
+                fail("No exception thrown for unsorted input");
+            } catch (IllegalArgumentException e) {
+                // OK
+            }
+            try {
+                list.buildFrom(new Integer[] { 2, null }, new Integer[] { 1, 1 });
+                fail("No exception thrown for a null key");
+            } catch (IllegalArgumentException e) {
+                // OK
+            }
+            list.buildFrom(new Integer[0], new Integer[0]);
+            assertTrue(list.isEmpty());
+        }
+
+        // Values that are not comparable keep their given order
+        SortedList<Integer, Object> objects = new SortedList<Integer, Object>(
+            SortedList.Backend.BTREE);
+        Object a = new Object();
+        Object b = new Object();
+        objects.buildFrom(new Integer[] { 2, 1, 2 }, new Object[] { a, "x", b });
+        assertSame(a, objects.getFirst(2));
+        assertSame(b, objects.getLast(2));
+
+        // Also when the entries are sorted in parallel
+        Integer[] objectKeys = new Integer[n];
+        Object[] objectValues = new Object[n];
+        for (int i = 0; i < n; i++) {
+            objectKeys[i] = random.nextInt(10);
+            objectValues[i] = new Object();
+        }
+        objects.buildFrom(objectKeys, objectValues);
+        for (int key = 0; key < 10; key++) {
+            List<Object> expected = new ArrayList<Object>();
+            for (int i = 0; i < n; i++) {
+                if (objectKeys[i] == key)
+                    expected.add(objectValues[i]);
+            }
+            assertEquals(expected, objects.getAll(key));
+        }
+    }
+
 }
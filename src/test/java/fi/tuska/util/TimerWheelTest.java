@@ -0,0 +1,80 @@
+package fi.tuska.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TimerWheelTest extends TestCase {
+
+    private static class Item extends TimerWheel.Node {
+        private final String name;
+
+        public Item(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final List<Item> expired = new ArrayList<Item>();
+    private final Callback<Item> collector = new Callback<Item>() {
+        @Override
+        public boolean callback(Item item) {
+            expired.add(item);
+            return true;
+        }
+    };
+
+    private static long nanos(long amount, TimeUnit unit) {
+        return unit.toNanos(amount);
+    }
+
+    public void testExpiry() {
+        long start = nanos(1, TimeUnit.HOURS);
+        TimerWheel<Item> wheel = new TimerWheel<Item>(start);
+        Item a = new Item("a");
+        Item b = new Item("b");
+        Item c = new Item("c");
+        Item d = new Item("d");
+        wheel.schedule(a, start + nanos(3, TimeUnit.SECONDS));
+        wheel.schedule(b, start + nanos(10, TimeUnit.MINUTES));
+        wheel.schedule(c, start + nanos(5, TimeUnit.HOURS));
+        wheel.schedule(d, start + nanos(20, TimeUnit.SECONDS));
+
+        wheel.advance(start + nanos(2, TimeUnit.SECONDS), collector);
+        assertTrue(expired.isEmpty());
+        wheel.advance(start + nanos(5, TimeUnit.SECONDS), collector);
+        assertEquals(CollectionUtils.getList(a), expired);
+
+        wheel.cancel(d);
+        wheel.advance(start + nanos(9, TimeUnit.MINUTES), collector);
+        assertEquals(CollectionUtils.getList(a), expired);
+        wheel.advance(start + nanos(11, TimeUnit.MINUTES), collector);
+        assertEquals(CollectionUtils.getList(a, b), expired);
+
+        // Reschedule c earlier
+        wheel.schedule(c, start + nanos(30, TimeUnit.MINUTES));
+        wheel.advance(start + nanos(4, TimeUnit.HOURS), collector);
+        assertEquals(CollectionUtils.getList(a, b, c), expired);
+    }
+
+    public void testLongJump() {
+        TimerWheel<Item> wheel = new TimerWheel<Item>(0);
+        List<Item> items = new ArrayList<Item>();
+        for (int i = 1; i <= 100; i++) {
+            Item item = new Item("i" + i);
+            items.add(item);
+            wheel.schedule(item, nanos(i * 7, TimeUnit.MINUTES));
+        }
+        wheel.advance(nanos(350, TimeUnit.MINUTES) + 1, collector);
+        assertEquals(50, expired.size());
+        wheel.advance(nanos(10, TimeUnit.DAYS), collector);
+        assertEquals(items, expired);
+    }
+
+}
@@ -0,0 +1,160 @@
+package fi.tuska.util.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import fi.tuska.util.FixableLeakingMap;
+import fi.tuska.util.FrameBufferPool;
+
+import junit.framework.TestCase;
+
+public class MappedPageStoreTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("pagestore", ".dat");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        assertTrue(file.delete());
+    }
+
+    public void testReadWrite() throws Exception {
+        MappedPageStore store = new MappedPageStore(file, 16, 64);
+        store.writePage(1, new byte[] { 1, 2, 3 });
+        ByteBuffer data = ByteBuffer.allocate(16);
+        data.putLong(0, 99);
+        // Page 9 is in the third region
+        store.writePage(9, data);
+        assertEquals(0, data.position());
+
+        ByteBuffer page = store.readPage(1);
+        assertTrue(page.isReadOnly());
+        assertEquals(16, page.remaining());
+        assertEquals(3, page.get(2));
+        assertEquals(0, store.readPage(2).getLong(0));
+        assertEquals(99, store.readPage(9).getLong(0));
+        assertEquals(10, store.getPageCount());
+
+        // The views reflect later writes
+        store.writePage(1, new byte[] { 7 });
+        assertEquals(7, page.get(0));
+        store.force();
+        store.close();
+        try {
+            store.readPage(1);
+            fail("Read from a closed store");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+
+        // The growth of the last mapped region is not counted as pages
+        assertTrue(file.length() > 11 * 16);
+        MappedPageStore reopened = new MappedPageStore(file, 16, 64);
+        assertEquals(10, reopened.getPageCount());
+        assertEquals(7, reopened.readPage(1).get(0));
+        assertEquals(99, reopened.readPage(9).getLong(0));
+        reopened.close();
+    }
+
+    public void testReadDoesNotGrowFile() throws Exception {
+        MappedPageStore store = new MappedPageStore(file, 16, 64);
+        ByteBuffer empty = store.readPage(0);
+        assertEquals(16, empty.remaining());
+        assertEquals(0, empty.getLong(0));
+        assertEquals(0, store.getPageCount());
+        // Only the header has been written
+        assertEquals(16, file.length());
+
+        store.writePage(0, new byte[] { 5 });
+        assertEquals(1, store.getPageCount());
+        store.close();
+        long length = file.length();
+
+        // The reads of the reopened file map only the existing pages
+        store = new MappedPageStore(file, 16, 64);
+        ByteBuffer page = store.readPage(0);
+        assertEquals(5, page.get(0));
+        assertEquals(0, store.readPage(5).get(0));
+        assertEquals(length, file.length());
+        // A write remaps the region for writing; the earlier view sees it
+        store.writePage(0, new byte[] { 6 });
+        assertEquals(6, page.get(0));
+        store.writePage(2, new byte[] { 8 });
+        assertEquals(8, store.readPage(2).get(0));
+        assertEquals(3, store.getPageCount());
+        store.close();
+    }
+
+    public void testPageCountAfterCrash() throws Exception {
+        MappedPageStore store = new MappedPageStore(file, 16, 64);
+        store.writePage(1, new byte[] { 1 });
+        store.force();
+        // The store is not closed, and the file has grown to cover the
+        // whole mapped region
+        assertTrue(file.length() > 2 * 16);
+        MappedPageStore reopened = new MappedPageStore(file, 16, 64);
+        assertEquals(2, reopened.getPageCount());
+        assertEquals(1, reopened.readPage(1).get(0));
+        reopened.close();
+        store.close();
+    }
+
+    public void testInvalidFile() throws Exception {
+        new MappedPageStore(file, 16, 64).close();
+        try {
+            new MappedPageStore(file, 8, 64);
+            fail("Opened a page store with the wrong page size");
+        } catch (IOException e) {
+            // OK
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeLong(0);
+        raf.writeLong(0);
+        raf.close();
+        try {
+            new MappedPageStore(file, 16, 64);
+            fail("Opened a file that is not a page store");
+        } catch (IOException e) {
+            // OK
+        }
+    }
+
+    public void testLeakingMapStore() throws Exception {
+        MappedPageStore store = new MappedPageStore(file, 8);
+        FixableLeakingMap<Long, ByteBuffer> map = new FixableLeakingMap<Long, ByteBuffer>(2);
+        map.addLeakEventListener(store);
+        for (long id = 0; id < 3; id++) {
+            ByteBuffer page = ByteBuffer.allocate(8);
+            page.putLong(0, id + 100);
+            map.put(id, page);
+            map.unfix(id);
+        }
+        // Page 0 has been leaked and written
+        assertNull(map.get(0L));
+        assertEquals(100, store.load(0L).getLong(0));
+        assertEquals(0, store.load(2L).getLong(0));
+        store.close();
+    }
+
+    public void testFrameBufferPoolStore() throws Exception {
+        MappedPageStore store = new MappedPageStore(file, 8);
+        store.writePage(5, ByteBuffer.allocate(8).putLong(0, 55));
+        FrameBufferPool pool = new FrameBufferPool(1, 8);
+        pool.addFrameListener(store);
+        assertEquals(55, pool.get(5, store).getLong(0));
+        pool.get(5).putLong(0, 56);
+        pool.markDirty(5);
+        pool.unfix(5);
+        pool.unfix(5);
+        pool.get(6, store);
+        assertEquals(56, store.readPage(5).getLong(0));
+        store.close();
+    }
+
+}